@@ -0,0 +1,66 @@
+package no.uio.odont.benchmark;
+
+import java.awt.Color;
+
+import ij.ImagePlus;
+import ij.gui.Overlay;
+import ij.measure.Calibration;
+import ij.process.ShortProcessor;
+import no.uio.odont.model.MeasurementRoot;
+
+/**
+ * Shared fixtures for the benchmarks: a calibrated 16-bit image sized like an
+ * intraoral radiograph and a fully identified root with every site placed.
+ */
+final class BenchmarkFixtures {
+    static final int WIDTH = 1600;
+    static final int HEIGHT = 1200;
+
+    static final String[] SITE_NAMES = { "Apex", "Apex GP", "Root canal deviation", "Canal entrance center",
+            "Lesion periphery", "Lesion sideM", "Lesion sideD", "Bone levelM", "Bone levelD", "CEJM", "CEJD",
+            "Canal side 1mmM", "Canal side 1mmD", "Canal side 4mmM", "Canal side 4mmD" };
+
+    private BenchmarkFixtures() {
+    }
+
+    static ImagePlus calibratedImage() {
+        ImagePlus imp = new ImagePlus("benchmark.tif", new ShortProcessor(WIDTH, HEIGHT));
+        Calibration cal = imp.getCalibration();
+        cal.pixelWidth = 0.0185;
+        cal.pixelHeight = 0.0185;
+        cal.setUnit("mm");
+        return imp;
+    }
+
+    /** Historic overlay holding {@code roots} saved roots, each with all sites. */
+    static Overlay historicOverlay(ImagePlus imp, int roots) {
+        Overlay historic = new Overlay();
+        historic.selectable(false);
+        for (int r = 0; r < roots; r++) {
+            MeasurementRoot root = new MeasurementRoot(imp, '.', new Overlay());
+            placeAllSites(root, r);
+            root.copySitesToOverlay(historic);
+        }
+        return historic;
+    }
+
+    static MeasurementRoot identifiedRoot(ImagePlus imp, Overlay historic) {
+        MeasurementRoot root = new MeasurementRoot(imp, '.', historic);
+        root.setQuadrantNumber(1);
+        root.setToothNumber("6");
+        root.setRootName("MB");
+        root.setImageType("Preop");
+        root.setQualitativeObservation("pAi", "3");
+        root.setQualitativeObservation("Apical voids", "N");
+        placeAllSites(root, 0);
+        return root;
+    }
+
+    static void placeAllSites(MeasurementRoot root, int seed) {
+        for (int i = 0; i < SITE_NAMES.length; i++) {
+            double x = (37 * (i + 1) + 101 * seed) % WIDTH + 0.5;
+            double y = (53 * (i + 1) + 67 * seed) % HEIGHT + 0.25;
+            root.addSite(SITE_NAMES[i], x, y, Color.RED);
+        }
+    }
+}
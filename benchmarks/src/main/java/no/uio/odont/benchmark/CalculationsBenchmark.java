@@ -0,0 +1,36 @@
+package no.uio.odont.benchmark;
+
+import java.awt.geom.Point2D;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import no.uio.odont.logic.Calculations;
+
+/**
+ * Cost of a single Schneider angle evaluation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class CalculationsBenchmark {
+    private final Point2D.Double agp = new Point2D.Double(10.12, 18.40);
+    private final Point2D.Double deviation = new Point2D.Double(10.80, 14.05);
+    private final Point2D.Double entrance = new Point2D.Double(10.31, 8.77);
+
+    @Benchmark
+    public double schneiderAngle() {
+        return Calculations.calculateSchneiderAngle(agp, deviation, entrance);
+    }
+}
@@ -0,0 +1,72 @@
+package no.uio.odont.benchmark;
+
+import java.awt.Color;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImagePlus;
+import ij.gui.Overlay;
+import no.uio.odont.model.MeasurementRoot;
+
+/**
+ * Per-click overlay cost with a growing number of previously saved roots kept
+ * visible in the historic overlay. The cost should not grow with
+ * {@code historicRoots}: a click only touches the changed markers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class OverlayBenchmark {
+    @Param({ "0", "10", "100", "1000" })
+    public int historicRoots;
+
+    private MeasurementRoot root;
+    private int click;
+
+    @Setup
+    public void setup() {
+        ImagePlus imp = BenchmarkFixtures.calibratedImage();
+        Overlay historic = BenchmarkFixtures.historicOverlay(imp, historicRoots);
+        root = BenchmarkFixtures.identifiedRoot(imp, historic);
+    }
+
+    /** Re-placing a site, the usual correction click. */
+    @Benchmark
+    public void placeSite() {
+        root.addSite("Apex", 100 + (click++ & 63), 200, Color.RED);
+    }
+
+    /** Re-placing Apex GP, which also moves both reference arcs. */
+    @Benchmark
+    public void placeApexGp() {
+        root.addSite("Apex GP", 100 + (click++ & 63), 200, Color.RED);
+        root.drawReferenceArcs("Apex GP");
+    }
+
+    /** Marking a site as missing and placing it again. */
+    @Benchmark
+    public void removeAndPlaceSite() {
+        root.removeSite("CEJM");
+        root.addSite("CEJM", 100 + (click++ & 63), 200, Color.RED);
+    }
+
+    /** The defensive re-apply after deleteRoi() while the overlay is in place. */
+    @Benchmark
+    public void refreshOverlay() {
+        root.refreshOverlay();
+    }
+}
@@ -0,0 +1,86 @@
+package no.uio.odont.benchmark;
+
+import java.awt.Color;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImagePlus;
+import ij.gui.Overlay;
+import no.uio.odont.Endodontic_Measurements_2;
+import no.uio.odont.model.MeasurementRoot;
+import no.uio.odont.model.MeasurementSite;
+import no.uio.odont.util.RowEncoder;
+
+/**
+ * Per-save path: formatting one site and assembling a complete result row as
+ * done by {@code onSaveRequested}, for both decimal separator conventions.
+ * {@code encodeResultRow} reuses one encoder and allocates nothing per row.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class RowFormattingBenchmark {
+    @Param({ ".", "," })
+    public String decimalSeparator;
+
+    private char csvSeparator;
+    private MeasurementSite site;
+    private MeasurementRoot root;
+    private RowEncoder encoder;
+
+    @Setup
+    public void setup() {
+        char decimal = decimalSeparator.charAt(0);
+        csvSeparator = decimal == ',' ? ';' : ',';
+
+        ImagePlus imp = BenchmarkFixtures.calibratedImage();
+        DecimalFormat formatter = new DecimalFormat("0.00");
+        DecimalFormatSymbols symbols = new DecimalFormatSymbols();
+        symbols.setDecimalSeparator(decimal);
+        formatter.setDecimalFormatSymbols(symbols);
+        site = new MeasurementSite(812.5, 604.25, Color.RED, formatter, imp.getCalibration());
+
+        root = new MeasurementRoot(imp, decimal, new Overlay());
+        root.setQuadrantNumber(1);
+        root.setToothNumber("6");
+        root.setRootName("MB");
+        root.setImageType("Preop");
+        BenchmarkFixtures.placeAllSites(root, 0);
+        encoder = new RowEncoder(decimal, csvSeparator);
+    }
+
+    @Benchmark
+    public String siteToCalibratedString() {
+        return site.toCalibratedString(csvSeparator);
+    }
+
+    @Benchmark
+    public String buildResultRow() {
+        return Endodontic_Measurements_2.buildResultRow(root, "C:\\Study\\Patient01\\LUM.tif",
+                "2026-01-15 10:42:17", "reader1", "distal overhang", csvSeparator);
+    }
+
+    /** The interactive save path: one encoder reused for every row. */
+    @Benchmark
+    public RowEncoder encodeResultRow() {
+        Endodontic_Measurements_2.encodeResultRow(encoder, root, "C:\\Study\\Patient01\\LUM.tif",
+                "2026-01-15 10:42:17", "reader1", "distal overhang");
+        return encoder;
+    }
+}
@@ -0,0 +1,278 @@
+package no.uio.odont;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.Overlay;
+import ij.measure.Calibration;
+import no.uio.odont.model.MeasurementRoot;
+import no.uio.odont.model.SiteSchema;
+import no.uio.odont.util.AppConfig;
+import no.uio.odont.util.DataStorage;
+import no.uio.odont.util.RowEncoder;
+import no.uio.odont.util.ScoredImageExporter;
+
+/**
+ * Headless batch measurement: saves roots whose landmarks are already known,
+ * e.g. annotations migrated from version 1.5 or another tool, exactly as if
+ * they had been placed in the plugin, without ImageJ windows.
+ *
+ * The manifest is a text file with a header line and one root per line,
+ * separated by tabs, semicolons or commas (detected from the header). Columns:
+ * <ul>
+ * <li>{@code image}, {@code quadrant}, {@code tooth}, {@code root},
+ * {@code image type}: required. Image paths may be relative to the manifest.</li>
+ * <li>{@code <site> x} and {@code <site> y} for any site, e.g. {@code Apex x}:
+ * coordinates in pixels, or in the image's calibrated unit if the optional
+ * {@code unit} column says so. Empty or "X" marks a missing site.</li>
+ * <li>Any qualitative observation by its key, e.g. {@code pAi}; plus optional
+ * {@code operator}, {@code timestamp} and {@code comment}.</li>
+ * </ul>
+ *
+ * Each image is opened only when a worker reaches it and closed after its
+ * roots are saved, so memory is bounded by the number of workers. Rows go to
+ * the result file the configuration selects, through the same writers and
+ * row encoder as the interactive save; scored copies go through the
+ * background exporter.
+ *
+ * Usage: {@code BatchMeasurement <manifest> [--workers n] [--no-copies]}
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public class BatchMeasurement {
+    private static final String[] REQUIRED = { "image", "quadrant", "tooth", "root", "image type" };
+
+    private final AppConfig config;
+    private final int workers;
+    private final boolean scoredCopies;
+    // One storage per worker, so saving never waits for another worker; the
+    // result writers and indexes they share are safe to use concurrently
+    private final List<DataStorage> storages = new ArrayList<>();
+    private final ThreadLocal<DataStorage> storage = ThreadLocal.withInitial(() -> {
+        DataStorage created = new DataStorage();
+        synchronized (storages) {
+            storages.add(created);
+        }
+        return created;
+    });
+
+    private final AtomicInteger images = new AtomicInteger();
+    private final AtomicInteger roots = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    public BatchMeasurement(AppConfig config, int workers, boolean scoredCopies) {
+        this.config = config;
+        this.workers = Math.max(1, workers);
+        this.scoredCopies = scoredCopies;
+    }
+
+    /**
+     * Saves every root of a manifest.
+     *
+     * @return false if any root could not be saved; the reasons are logged.
+     */
+    public boolean run(Path manifest) throws IOException, InterruptedException {
+        Map<String, List<String[]>> rootsByImage = new LinkedHashMap<>();
+        Map<String, Integer> columns = new HashMap<>();
+        char separator = readManifest(manifest, columns, rootsByImage);
+        if (separator == 0)
+            return false;
+        IJ.log("Batch measurement of " + rootsByImage.size() + " image(s) from " + manifest);
+
+        Path base = manifest.toAbsolutePath().getParent();
+        int total = rootsByImage.size();
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        for (Map.Entry<String, List<String[]>> entry : rootsByImage.entrySet()) {
+            Path image = base.resolve(entry.getKey());
+            List<String[]> lines = entry.getValue();
+            executor.execute(() -> {
+                measure(image, lines, columns, separator);
+                int done = images.incrementAndGet();
+                if (done % 100 == 0 || done == total)
+                    IJ.log(done + " of " + total + " images");
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+
+        boolean written = true;
+        synchronized (storages) {
+            for (DataStorage used : storages) {
+                written &= used.flush();
+            }
+        }
+        ScoredImageExporter.awaitIdle();
+        IJ.log("Saved " + roots + " root(s) of " + images + " image(s), failed " + failed);
+        return written && failed.get() == 0;
+    }
+
+    /**
+     * Reads the manifest into lines grouped by image.
+     *
+     * @return The field separator, or 0 if the header is unusable.
+     */
+    private char readManifest(Path manifest, Map<String, Integer> columns, Map<String, List<String[]>> rootsByImage)
+            throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(manifest, Charset.defaultCharset())) {
+            String header = in.readLine();
+            if (header == null) {
+                IJ.log("Empty manifest: " + manifest);
+                return 0;
+            }
+            char separator = header.indexOf('\t') >= 0 ? '\t' : header.indexOf(';') >= 0 ? ';' : ',';
+            String[] names = split(header, separator);
+            for (int i = 0; i < names.length; i++) {
+                columns.put(names[i].trim().toLowerCase(), i);
+            }
+            for (String required : REQUIRED) {
+                if (!columns.containsKey(required)) {
+                    IJ.log("Manifest " + manifest + " has no '" + required + "' column");
+                    return 0;
+                }
+            }
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty())
+                    continue;
+                String[] fields = split(line, separator);
+                String image = get(fields, columns, "image");
+                rootsByImage.computeIfAbsent(image, k -> new ArrayList<>()).add(fields);
+            }
+            return separator;
+        }
+    }
+
+    /** Opens one image, saves its roots and writes its scored copy. */
+    private void measure(Path image, List<String[]> lines, Map<String, Integer> columns, char separator) {
+        ImagePlus imp = IJ.openImage(image.toString());
+        if (imp == null) {
+            IJ.log("Could not open " + image + ", " + lines.size() + " root(s) not saved");
+            failed.addAndGet(lines.size());
+            return;
+        }
+        DataStorage storage = this.storage.get();
+        Calibration cal = imp.getCalibration();
+        RowEncoder encoder = new RowEncoder(config.getDecimalSeparator(), config.getCsvSeparator());
+        Overlay markers = new Overlay();
+
+        for (String[] fields : lines) {
+            try {
+                MeasurementRoot root = new MeasurementRoot(imp, config.getDecimalSeparator(), new Overlay());
+                root.setQuadrantNumber(Integer.parseInt(get(fields, columns, "quadrant")));
+                root.setToothNumber(get(fields, columns, "tooth"));
+                root.setRootName(get(fields, columns, "root"));
+                root.setImageType(get(fields, columns, "image type"));
+                for (String key : Endodontic_Measurements_2.QUALITATIVE_KEYS) {
+                    String value = get(fields, columns, key.toLowerCase());
+                    if (!value.isEmpty())
+                        root.setQualitativeObservation(key, value);
+                }
+
+                String unit = get(fields, columns, "unit");
+                boolean pixels = unit.isEmpty() || unit.startsWith("pixel");
+                if (!pixels && !unit.equals(cal.getUnit())) {
+                    IJ.log("Root of " + image + " given in " + unit + " but the image is calibrated in "
+                            + cal.getUnit() + ", not saved");
+                    failed.incrementAndGet();
+                    continue;
+                }
+                for (int site = 0; site < SiteSchema.COUNT; site++) {
+                    String name = SiteSchema.name(site);
+                    String x = get(fields, columns, name.toLowerCase() + " x");
+                    String y = get(fields, columns, name.toLowerCase() + " y");
+                    if (x.isEmpty() || y.isEmpty() || "X".equalsIgnoreCase(x) || "X".equalsIgnoreCase(y))
+                        continue;
+                    double px = parse(x, separator);
+                    double py = parse(y, separator);
+                    if (!pixels) {
+                        px = cal.getRawX(px);
+                        py = cal.getRawY(py);
+                    }
+                    root.addSite(name, px, py, SiteSchema.color(name));
+                }
+                if (!root.isFullyIdentified()) {
+                    IJ.log("Root of " + image + " is not fully identified, not saved");
+                    failed.incrementAndGet();
+                    continue;
+                }
+
+                String operator = get(fields, columns, "operator");
+                String timestamp = get(fields, columns, "timestamp");
+                Endodontic_Measurements_2.encodeResultRow(encoder, root, DataStorage.imagePath(imp),
+                        timestamp.isEmpty() ? storage.generateTimestamp() : timestamp,
+                        operator.isEmpty() ? config.getOperator() : operator, get(fields, columns, "comment"));
+                storage.saveResults(root, config, encoder.toString(), imp);
+                root.copySitesToOverlay(markers);
+                roots.incrementAndGet();
+            } catch (RuntimeException e) {
+                // Malformed numbers or unknown values: skip this root only
+                IJ.log("Invalid root of " + image + ": " + e.getMessage());
+                failed.incrementAndGet();
+            }
+        }
+
+        if (scoredCopies && markers.size() > 0) {
+            storage.saveScoredImageCopy(imp, markers);
+        }
+        imp.close();
+    }
+
+    private static String get(String[] fields, Map<String, Integer> columns, String column) {
+        Integer index = columns.get(column);
+        return index != null && index < fields.length ? fields[index].trim() : "";
+    }
+
+    /** Parses a coordinate written with either decimal separator, unless commas separate the fields. */
+    private static double parse(String value, char separator) {
+        return Double.parseDouble(separator == ',' ? value : value.replace(',', '.'));
+    }
+
+    private static String[] split(String line, char separator) {
+        List<String> fields = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= line.length(); i++) {
+            if (i == line.length() || line.charAt(i) == separator) {
+                fields.add(line.substring(start, i));
+                start = i + 1;
+            }
+        }
+        return fields.toArray(new String[0]);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: BatchMeasurement <manifest> [--workers n] [--no-copies]");
+            System.exit(1);
+        }
+        int workers = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        AppConfig config = new AppConfig();
+        boolean copies = config.isSaveScoredCopy();
+        for (int i = 1; i < args.length; i++) {
+            if ("--workers".equals(args[i]) && i + 1 < args.length) {
+                workers = Integer.parseInt(args[++i]);
+            } else if ("--no-copies".equals(args[i])) {
+                copies = false;
+            }
+        }
+        boolean ok = new BatchMeasurement(config, workers, copies).run(Paths.get(args[0]));
+        System.exit(ok ? 0 : 1);
+    }
+}
@@ -1,158 +1,595 @@
 package no.uio.odont;
 
 import java.awt.Color;
+import java.awt.EventQueue;
+import java.awt.Rectangle;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 import ij.IJ;
 import ij.ImageJ;
+import ij.ImageListener;
 import ij.ImagePlus;
 import ij.WindowManager;
-import ij.gui.Overlay;
+import ij.gui.PointRoi;
 import ij.gui.Roi;
 import ij.gui.Toolbar;
+import ij.gui.WaitForUserDialog;
 import ij.io.FileInfo;
+import ij.io.OpenDialog;
 import ij.plugin.PlugIn;
+import no.uio.odont.logic.EdgeSnapper;
 import no.uio.odont.model.MeasurementRoot;
+import no.uio.odont.model.SiteSchema;
+import no.uio.odont.ui.Loupe;
 import no.uio.odont.ui.MeasurementUI;
 import no.uio.odont.util.AppConfig;
 import no.uio.odont.util.DataStorage;
+import no.uio.odont.util.LargeTiffReader;
+import no.uio.odont.util.RasterCache;
+import no.uio.odont.util.RowEncoder;
+import no.uio.odont.util.SessionJournal;
+import no.uio.odont.util.Worklist;
+import no.uio.odont.util.WorklistScanner;
 
 /**
  * Main entry point for Endodontic Measurements 2.0.
  * Orchestrates the measurement process.
+ *
+ * One plugin window, with its configuration, stays open while images are
+ * measured: running the plugin on another image, or moving on in a worklist,
+ * only binds the window to that image's {@link ImageSession}. Images measured
+ * in the window keep their unsaved root while the window shows another one.
+ * The controls of a plugin run while another plugin's window is kept, e.g. by
+ * a script, are passed on to that plugin.
  * 
  * @author Gerald Torgersen
  * @version 2.0
  * @date January 2026
  */
 public class Endodontic_Measurements_2 implements PlugIn, MeasurementUI.ControlListener {
-    private ImagePlus imp;
+    // The plugin whose window is kept open for all images, if persistent_window is on
+    private static Endodontic_Measurements_2 resident;
+
     private AppConfig config;
     private DataStorage storage;
-    private MeasurementRoot currentRoot;
     private MeasurementUI ui;
-    private Overlay historicOverlay;
+    private RowEncoder rowEncoder;
+    // The images measured in this plugin's window, and the one it shows
+    private final Map<ImagePlus, ImageSession> sessions = new HashMap<>();
+    private ImageSession session;
+    private ImageListener imageListener;
+    private boolean contrastShown;
+    private Loupe loupe;
+    private boolean loupeShown;
+    // Set when measuring a worklist; handed on to the plugin of the next image
+    private Worklist worklist;
+    private boolean handedOver;
+    // The resident plugin this one's image was handed to, which the calls to
+    // this one are passed on to
+    private Endodontic_Measurements_2 forward;
+
+    // Qualitative observation keys in row order
+    static final String[] QUALITATIVE_KEYS = { "pAi", "Apical voids", "Coronal voids", "Orifice plug",
+            "Apical file fracture", "Coronal file fracture", "Apical perforation", "Coronal perforation", "Post",
+            "Restoration gap", "Caries", "Restoration", "Support/load" };
+
+    // Largest side of the overview of a large image
+    private static final int OVERVIEW_SIZE = 2048;
+
+    // Canal side points clicked this close to their arc are snapped, in mm;
+    // walls are looked for this far along the arc to each side of the click
+    private static final double SNAP_DISTANCE_MM = 0.5;
+    private static final double SNAP_WINDOW_MM = 0.75;
+
+    private static final String TITLE = "Endodontic Measurements 2.0";
 
     @Override
     public void run(String arg) {
-        imp = WindowManager.getCurrentImage();
+        if ("worklist".equals(arg)) {
+            startWorklist();
+            return;
+        }
+        if ("large".equals(arg)) {
+            startLargeImage();
+            return;
+        }
+        ImagePlus imp = WindowManager.getCurrentImage();
         if (imp == null) {
             IJ.noImage();
             return;
         }
+        if (LargeTiffReader.forOverview(imp) != null) {
+            IJ.error("Overview", "This is an overview of a large image. Use \"Endodontic Measurements 2.0 Large Image\"\n"
+                    + "to open a region of it at full resolution for measuring.");
+            return;
+        }
+        measure(imp, null, this);
+    }
 
+    /**
+     * Starts measuring a shown image in the resident plugin window, or if there
+     * is none, in the window of the plugin run or a new one.
+     *
+     * @param worklist The worklist the image is from, or null.
+     * @param caller   The plugin run, whose calls are passed on to the resident
+     *                 plugin; null to open a new window if there is no resident.
+     */
+    private static void measure(ImagePlus imp, Worklist worklist, Endodontic_Measurements_2 caller) {
+        Endodontic_Measurements_2 plugin = resident;
+        if (plugin == null) {
+            plugin = caller != null ? caller : new Endodontic_Measurements_2();
+            if (plugin.ui == null || !plugin.ui.isDisplayable())
+                plugin.openWindow();
+        }
+        if (caller != null)
+            caller.forward = caller != plugin ? plugin : null;
+        if (worklist != null && plugin.worklist != worklist) {
+            if (plugin.worklist != null)
+                plugin.worklist.close();
+            plugin.worklist = worklist;
+        }
+        plugin.bind(imp);
+    }
+
+    /**
+     * Reads the configuration and opens the plugin window, which is kept for
+     * the images measured next if persistent_window is on.
+     */
+    private void openWindow() {
         config = new AppConfig();
         storage = new DataStorage();
-        historicOverlay = new Overlay();
-        historicOverlay.selectable(false);
-        currentRoot = new MeasurementRoot(imp, config.getDecimalSeparator(), historicOverlay);
+        rowEncoder = new RowEncoder(config.getDecimalSeparator(), config.getCsvSeparator());
+        ui = new MeasurementUI(TITLE, this, config);
+        imageListener = new ImageListener() {
+            @Override
+            public void imageOpened(ImagePlus imp) {
+            }
+
+            @Override
+            public void imageClosed(ImagePlus imp) {
+                EventQueue.invokeLater(() -> onImageClosed(imp));
+            }
+
+            @Override
+            public void imageUpdated(ImagePlus imp) {
+            }
+        };
+        ImagePlus.addImageListener(imageListener);
+        if (config.isPersistentWindow())
+            resident = this;
+    }
+
+    /**
+     * Shows an image's root in the window, starting to measure the image if it
+     * is new to the window. The root of the image shown before is kept as it
+     * is, to be shown again when the window returns to that image.
+     */
+    private void bind(ImagePlus imp) {
+        if (session != null && session.getImage() == imp) {
+            ui.setVisible(true);
+            ui.toFront();
+            return;
+        }
+        if (session != null)
+            session.setComments(ui.getComments());
+        ImageSession next = sessions.get(imp);
+        if (next == null) {
+            next = ImageSession.open(imp, config, storage);
+            sessions.put(imp, next);
+        }
+        session = next;
 
         // Ensure point tool is selected
         IJ.setTool(Toolbar.POINT);
+        // Compute the gradient for edge snapping while the first sites are placed
+        if (config.isSnapCanalSides())
+            edgeSnapper();
 
-        ui = new MeasurementUI("Endodontic Measurements 2.0", this, config);
+        if (loupe != null) {
+            loupe.setImage(imp);
+            loupe.setRoot(session.getRoot());
+            loupe.setVisible(loupeShown);
+        }
+        if (contrastShown)
+            showContrastPreview();
+        else
+            session.getRoot().setBackdrop(null);
+        ui.setTitle(TITLE + " - " + imp.getTitle());
+        ui.showSelections(session.getSelections(), session.getComments());
+        ui.setVisible(true);
+        ui.toFront();
     }
 
-    @Override
-    public void onSaveRequested() {
-        if (!currentRoot.isFullyIdentified()) {
-            IJ.error("Identification required", "Please select quadrant, tooth, root, and image type before saving.");
+    /**
+     * Ends measuring an image; a root left unsaved is discarded. The window
+     * then shows nothing until it is bound to another image.
+     */
+    private void endSession(ImageSession ended) {
+        if (sessions.remove(ended.getImage()) == null)
+            return;
+        ended.close();
+        if (ended == session)
+            session = null;
+    }
+
+    /**
+     * Moves the window on to the current image when the image it showed is
+     * closed, if that image is measured in the window too, and otherwise hides
+     * the window until the plugin is run again. A window that is not kept is
+     * closed instead.
+     */
+    private void showCurrentImage() {
+        if (!config.isPersistentWindow()) {
+            ui.close();
+            return;
+        }
+        ImageSession current = sessions.get(WindowManager.getCurrentImage());
+        if (current != null) {
+            bind(current.getImage());
             return;
         }
+        ui.setVisible(false);
+        if (loupe != null)
+            loupe.setVisible(false);
+    }
 
-        StringBuilder sb = new StringBuilder();
-        FileInfo fi = imp.getOriginalFileInfo();
-        String path = (fi != null) ? fi.directory + fi.fileName : imp.getTitle();
-        char sep = config.getCsvSeparator();
+    private void onImageClosed(ImagePlus imp) {
+        ImageSession closed = sessions.get(imp);
+        if (closed == null)
+            return;
+        endSession(closed);
+        if (session == null)
+            showCurrentImage();
+    }
 
-        // Header info: filepath,timestamp,operator,image type,unit,quadrant,tooth,root
-        sb.append(path).append(sep);
-        sb.append(storage.generateTimestamp()).append(sep);
-        sb.append(config.getOperator()).append(sep);
-        sb.append(currentRoot.toString(sep)); // Contains: image_type, unit, quadrant, tooth, root (all separated)
+    /**
+     * Opens a large TIFF as an overview, if the current image is not one
+     * already, and starts measuring the region the user outlines on it at full
+     * resolution.
+     */
+    private void startLargeImage() {
+        ImagePlus overview = WindowManager.getCurrentImage();
+        LargeTiffReader reader = LargeTiffReader.forOverview(overview);
+        ImagePlus imp;
+        try {
+            if (reader == null) {
+                OpenDialog od = new OpenDialog("Open large TIFF");
+                if (od.getFileName() == null)
+                    return;
+                reader = LargeTiffReader.open(new File(od.getDirectory(), od.getFileName()));
+                IJ.showStatus("Reading overview of " + od.getFileName() + "...");
+                overview = reader.openOverview(OVERVIEW_SIZE);
+                overview.show();
+            }
 
-        // Qualitative observations
-        // PAI,Ap voids,Cor voids,Orifice plug,Ap file fract,Cor file fract,Ap perf,Cor
-        // perf,Post,Restoration gap,Caries,Restoration,Support/load
-        sb.append(currentRoot.getQualitativeObservation("pAi")).append(sep);
-        String[] qNames = { "Apical voids", "Coronal voids", "Orifice plug", "Apical file fracture",
-                "Coronal file fracture", "Apical perforation", "Coronal perforation", "Post",
-                "Restoration gap", "Caries", "Restoration", "Support/load" };
-        for (String q : qNames) {
-            sb.append(currentRoot.getQualitativeObservation(q)).append(sep);
+            Roi outline = overview.getRoi();
+            if (outline == null || !outline.isArea()) {
+                new WaitForUserDialog("Large image", "Draw a rectangle around the teeth to measure,\nthen click OK.")
+                        .show();
+                outline = overview.getRoi();
+                if (outline == null || !outline.isArea())
+                    return;
+            }
+            Rectangle region = reader.toFullResolution(outline.getBounds());
+            if (region.isEmpty())
+                return;
+            imp = reader.openRegion(region);
+        } catch (IOException e) {
+            IJ.error("Large image", "Could not open the image in parts: " + e.getMessage());
+            return;
+        }
+        overview.deleteRoi();
+        imp.show();
+        measure(imp, null, this);
+    }
+
+    /** Lets the user choose a worklist folder and opens its first image. */
+    private void startWorklist() {
+        String directory = IJ.getDirectory("Choose the worklist folder");
+        if (directory == null)
+            return;
+        try {
+            worklist = Worklist.of(Paths.get(directory), new AppConfig());
+        } catch (IOException e) {
+            IJ.error("Worklist", "Could not read the worklist of " + directory + ": " + e.getMessage());
+            return;
         }
+        if (worklist.size() == 0) {
+            IJ.showMessage("Worklist", "Nothing left to measure in " + directory);
+            worklist.close();
+            return;
+        }
+        openNextWorklistImage();
+    }
 
-        // Site coordinates
-        String[] singleSites = { "Apex", "Apex GP", "Root canal deviation", "Canal entrance center",
-                "Lesion periphery" };
-        for (String s : singleSites) {
-            sb.append(currentRoot.getSiteCoordinatesString(s, sep));
+    /**
+     * Shows the next image of the worklist and starts measuring it, in this
+     * window if it is kept and otherwise in a new one, or ends the worklist
+     * when all images are done.
+     */
+    private void openNextWorklistImage() {
+        ImagePlus next = worklist.next();
+        if (next == null) {
+            worklist.close();
+            IJ.showMessage("Worklist", "All " + worklist.size() + " images of " + worklist.getFolder()
+                    + " are done.");
+            worklist = null;
+            if (ui != null && ui.isDisplayable() && session == null)
+                showCurrentImage();
+            return;
         }
+        next.show();
+        List<String> roots = worklist.getOutstandingRoots();
+        IJ.log("Worklist: " + next.getTitle() + " (" + (worklist.size() - worklist.remaining()) + " of "
+                + worklist.size() + ")" + (roots.isEmpty() ? "" : ", roots left: " + String.join(", ", roots)));
+        measure(next, worklist, null);
+    }
 
-        String[] mdSites = { "Lesion side", "Bone level", "CEJ", "Canal side 1mm", "Canal side 4mm" };
-        for (String s : mdSites) {
-            sb.append(currentRoot.getSiteCoordinatesString(s + "M", sep));
-            sb.append(currentRoot.getSiteCoordinatesString(s + "D", sep));
+    /**
+     * Passes a call on to the resident plugin, if this plugin's image was
+     * handed to it, e.g. when the plugin is driven by a script.
+     *
+     * @return true if the call was passed on.
+     */
+    private boolean forwarded(Consumer<Endodontic_Measurements_2> call) {
+        if (forward == null)
+            return false;
+        call.accept(forward);
+        return true;
+    }
+
+    @Override
+    public void onSaveRequested() {
+        if (forwarded(p -> p.onSaveRequested()) || session == null)
+            return;
+        MeasurementRoot root = session.getRoot();
+        if (!root.isFullyIdentified()) {
+            IJ.error("Identification required", "Please select quadrant, tooth, root, and image type before saving.");
+            return;
         }
 
-        sb.append(ui.getComments());
+        ImagePlus imp = session.getImage();
+        String timestamp = storage.generateTimestamp();
+        encodeResultRow(rowEncoder, root, DataStorage.imagePath(imp), timestamp, config.getOperator(),
+                ui.getComments());
+        String row = rowEncoder.toString();
 
-        storage.saveResults(currentRoot, config, sb.toString(), imp);
+        CompletableFuture<Void> forced = storage.saveResults(root, config, row, imp);
+
+        // Keep the root's journal records until the row is on disk
+        SessionJournal journal = session.getJournal();
+        journal.rootSaved(timestamp);
+        if (forced != null)
+            forced.thenRun(journal::saveConfirmed);
 
         // Snapshot current sites into the historic overlay so they stay visible
         // on the image after the current root is reset.
-        currentRoot.copySitesToOverlay(historicOverlay);
+        session.rootSaved();
 
-        onResetRequested();
+        startNewRoot();
         IJ.showStatus("Measurements saved.");
     }
 
+    /**
+     * Assembles one result row in the exact order documented in the README.
+     * Kept separate from the UI so it can be benchmarked and reused headless.
+     */
+    public static String buildResultRow(MeasurementRoot root, String path, String timestamp, String operator,
+            String comments, char sep) {
+        RowEncoder encoder = new RowEncoder(root.getDecimalSeparator(), sep);
+        encodeResultRow(encoder, root, path, timestamp, operator, comments);
+        return encoder.toString();
+    }
+
+    /**
+     * Writes one result row into a reusable encoder, replacing its content.
+     */
+    public static void encodeResultRow(RowEncoder encoder, MeasurementRoot root, String path, String timestamp,
+            String operator, String comments) {
+        encoder.reset();
+
+        // Header info: filepath,timestamp,operator,image type,unit,quadrant,tooth,root
+        encoder.field(path).field(timestamp).field(operator);
+        encoder.field(root.getImageType()).field(root.getUnit()).field(root.getQuadrantNumber())
+                .field(root.getToothNumber()).field(root.getRootName());
+
+        // Qualitative observations
+        // PAI,Ap voids,Cor voids,Orifice plug,Ap file fract,Cor file fract,Ap perf,Cor
+        // perf,Post,Restoration gap,Caries,Restoration,Support/load
+        for (String q : QUALITATIVE_KEYS) {
+            encoder.field(root.getQualitativeObservation(q));
+        }
+
+        // Site coordinates, in SiteSchema order
+        boolean pixels = root.hasPixelCoordinates();
+        for (int site = 0; site < SiteSchema.COUNT; site++) {
+            if (root.hasSite(site))
+                encoder.coordinate(root.getCalibratedX(site), pixels).coordinate(root.getCalibratedY(site), pixels);
+            else
+                encoder.missingSite();
+        }
+
+        encoder.text(comments);
+    }
+
     @Override
     public void onSaveAndCloseRequested() {
+        if (forwarded(p -> p.onSaveAndCloseRequested()) || session == null)
+            return;
         onSaveRequested();
+        // Make sure every row of this image is on disk before it is closed
+        storage.flush();
+        ImageSession closing = session;
         // Save the scored image copy only now, so all roots are shown together.
         if (config.isSaveScoredCopy()) {
-            storage.saveScoredImageCopy(imp, historicOverlay);
+            storage.saveScoredImageCopy(closing.getImage(), closing.getHistoricOverlay());
         }
-        if (imp != null) {
-            imp.close();
+        endSession(closing);
+        closing.getImage().close();
+        if (worklist != null) {
+            handedOver = !config.isPersistentWindow();
+            if (handedOver)
+                ui.close();
+            openNextWorklistImage();
+        } else {
+            showCurrentImage();
         }
-        ui.close();
     }
 
     @Override
     public void onResetRequested() {
-        currentRoot = new MeasurementRoot(imp, config.getDecimalSeparator(), historicOverlay);
+        if (forwarded(p -> p.onResetRequested()) || session == null)
+            return;
+        // The root is discarded: nothing left to recover
+        session.getJournal().clear();
+        startNewRoot();
+    }
+
+    private void startNewRoot() {
+        session.newRoot();
+        if (loupe != null)
+            loupe.setRoot(session.getRoot());
+        if (contrastShown)
+            showContrastPreview();
         ui.reset();
     }
 
+    /**
+     * Shows the contrast preview behind the root shown, and in the loupe, once
+     * it is computed; by then the window may show another image or none.
+     */
+    private void showContrastPreview() {
+        ImageSession shown = session;
+        shown.getContrastPreview().whenComplete((preview, e) -> EventQueue.invokeLater(() -> {
+            if (e != null) {
+                IJ.log("Could not compute the contrast preview of " + shown.getImage().getTitle() + ": " + e);
+                return;
+            }
+            if (session != shown || !contrastShown)
+                return;
+            session.getRoot().setBackdrop(preview);
+            if (loupe != null)
+                loupe.setSource(preview.getProcessor());
+        }));
+    }
+
     @Override
     public void onSiteSelected(String siteName, Color color) {
+        if (forwarded(p -> p.onSiteSelected(siteName, color)) || session == null)
+            return;
+        ImagePlus imp = session.getImage();
+        MeasurementRoot currentRoot = session.getRoot();
         Roi roi = imp.getRoi();
+        int site = SiteSchema.indexOf(siteName);
+        boolean suggested = site >= 0 && currentRoot.hasSuggestion(site);
+        // Holding Shift accepts the suggested position
+        boolean accepted = suggested && IJ.shiftKeyDown();
+        if (accepted)
+            roi = new PointRoi(currentRoot.getSuggestedX(site), currentRoot.getSuggestedY(site));
         if (roi == null || roi.getType() != Roi.POINT) {
-            IJ.error("Please select a point on the image first.");
+            IJ.error(suggested ? "Please select a point on the image first, or hold Shift to accept the suggested "
+                    + siteName + "." : "Please select a point on the image first.");
             return;
         }
 
         double x = roi.getFloatPolygon().xpoints[0];
         double y = roi.getFloatPolygon().ypoints[0];
 
+        // A point near a canal wall is not moved: the wall is proposed instead
+        EdgeSnapper.Edges walls = accepted ? null : snapToCanalWall(site, x, y);
+        if (walls != null) {
+            currentRoot.showSuggestion(site, walls.x, walls.y, color);
+            // The other wall is suggested for the other side at the same distance
+            int opposite = oppositeCanalSide(site);
+            if (walls.hasOther() && !currentRoot.hasSite(opposite))
+                currentRoot.showSuggestion(opposite, walls.otherX, walls.otherY, SiteSchema.color(opposite));
+            IJ.showStatus("Canal wall suggested for " + siteName + ": hold Shift to accept it, or Alt to place "
+                    + siteName + " as clicked.");
+            return;
+        }
+
+        // Clear the ROI before recording: some ImageJ versions clear the overlay
+        // when deleteRoi() triggers a repaint, and adding the site re-applies it.
+        imp.deleteRoi();
         currentRoot.addSite(siteName, x, y, color);
+        session.getJournal().siteAdded(siteName, x, y, color);
+        session.getSelections().add("SITE_" + siteName);
+        if (accepted)
+            IJ.showStatus(siteName + " placed at the suggested position.");
 
         // Logic for reference arcs (Apex GP)
         if ("Apex GP".equals(siteName)) {
             currentRoot.drawReferenceArcs(siteName);
         }
+    }
+
+    /**
+     * Finds the canal walls on the reference arc of a canal side point clicked
+     * near the arc, for a site not placed yet. Holding Alt places the point as
+     * clicked, as does clicking before the image's gradient is ready.
+     *
+     * @return The walls, or null if no wall is proposed.
+     */
+    private EdgeSnapper.Edges snapToCanalWall(int site, double x, double y) {
+        MeasurementRoot currentRoot = session.getRoot();
+        if (!config.isSnapCanalSides() || IJ.altKeyDown() || site < 0 || currentRoot.hasSite(site)
+                || !currentRoot.hasSite(SiteSchema.APEX_GP))
+            return null;
+        double radius = currentRoot.getReferenceArcRadius(site);
+        if (Double.isNaN(radius))
+            return null;
+        double cx = currentRoot.getSiteX(SiteSchema.APEX_GP);
+        double cy = currentRoot.getSiteY(SiteSchema.APEX_GP);
+        double pixelWidth = session.getImage().getCalibration().pixelWidth;
+        if (Math.abs(Math.hypot(x - cx, y - cy) - radius) > SNAP_DISTANCE_MM / pixelWidth)
+            return null;
+        EdgeSnapper snapper = edgeSnapper();
+        // Not waiting for the gradient on the event dispatch thread
+        if (!snapper.isReady())
+            return null;
+        return snapper.snap(cx, cy, radius, x, y, SNAP_WINDOW_MM / pixelWidth);
+    }
 
-        imp.deleteRoi(); // Clear ROI after recording
-        // Defensive refresh: some ImageJ versions clear the overlay when deleteRoi()
-        // triggers a repaint. Re-applying ensures markers are always visible.
-        currentRoot.refreshOverlay();
+    /**
+     * @return The edge snapper of the image shown, with its gradient kept in
+     *         the raster cache between sessions.
+     */
+    private EdgeSnapper edgeSnapper() {
+        RasterCache cache = RasterCache.of(config);
+        ImagePlus image = session.getImage();
+        return EdgeSnapper.forImage(image, ip -> cache.getOrCompute(RasterCache.sourceKey(image),
+                EdgeSnapper.GRADIENT_KIND, ip.getWidth(), ip.getHeight(), () -> EdgeSnapper.gradient(ip)));
+    }
+
+    /** @return The canal side site at the same distance on the other side. */
+    private static int oppositeCanalSide(int site) {
+        switch (site) {
+            case SiteSchema.CANAL_1MM_MESIAL:
+                return SiteSchema.CANAL_1MM_DISTAL;
+            case SiteSchema.CANAL_1MM_DISTAL:
+                return SiteSchema.CANAL_1MM_MESIAL;
+            case SiteSchema.CANAL_4MM_MESIAL:
+                return SiteSchema.CANAL_4MM_DISTAL;
+            default:
+                return SiteSchema.CANAL_4MM_MESIAL;
+        }
     }
 
     @Override
     public void onMissingSiteSelected(String siteName) {
+        if (forwarded(p -> p.onMissingSiteSelected(siteName)) || session == null)
+            return;
+        MeasurementRoot currentRoot = session.getRoot();
         currentRoot.removeSite(siteName);
+        session.getJournal().siteRemoved(siteName);
+        session.getSelections().add("MISS_" + siteName);
         if ("Apex GP".equals(siteName)) {
             currentRoot.removeReferenceArcs();
         }
@@ -160,15 +597,120 @@ public class Endodontic_Measurements_2 implements PlugIn, MeasurementUI.ControlL
 
     @Override
     public void onQualitativeSelected(String key, String value) {
-        currentRoot.setQualitativeObservation(key, value);
+        if (forwarded(p -> p.onQualitativeSelected(key, value)) || session == null)
+            return;
+        session.getRoot().setQualitativeObservation(key, value);
+        session.getJournal().qualitativeSelected(key, value);
+        session.getSelections().add("QO_" + key + ";" + value);
     }
 
     @Override
     public void onIdentificationChanged(int quadrant, String tooth, String root, String imageType) {
+        if (forwarded(p -> p.onIdentificationChanged(quadrant, tooth, root, imageType)) || session == null)
+            return;
+        MeasurementRoot currentRoot = session.getRoot();
         currentRoot.setQuadrantNumber(quadrant);
         currentRoot.setToothNumber(tooth);
         currentRoot.setRootName(root);
         currentRoot.setImageType(imageType);
+        session.getJournal().identificationChanged(quadrant, tooth, root, imageType);
+        List<String> selections = session.getSelections();
+        selections.add("QTR_qNumber;" + quadrant);
+        selections.add("QTR_tNumber;" + tooth);
+        selections.add("QTR_rNumber;" + root);
+        selections.add("QTR_iType;" + imageType);
+
+        // Suggestions are for the root as identified now
+        LandmarkSuggester suggester = session.getSuggester();
+        suggester.cancel();
+        currentRoot.clearSuggestions();
+        if (currentRoot.isFullyIdentified())
+            suggester.suggest(session.getImage(), currentRoot);
+
+        // Warn before the root is measured a second time
+        if (currentRoot.isFullyIdentified()) {
+            String key = WorklistScanner.rootKey(quadrant, tooth, root);
+            if (session.isFirstRepeat(key)) {
+                IJ.showStatus(key + " is already measured on this image.");
+                IJ.log("Note: " + key + " of " + session.getImage().getTitle()
+                        + " is already measured; saving adds another row.");
+            }
+        }
+    }
+
+    @Override
+    public void onContrastPreviewChanged(boolean shown) {
+        if (forwarded(p -> p.onContrastPreviewChanged(shown)))
+            return;
+        contrastShown = shown;
+        if (session == null)
+            return;
+        if (shown) {
+            showContrastPreview();
+            return;
+        }
+        session.getRoot().setBackdrop(null);
+        if (loupe != null)
+            loupe.setSource(null);
+    }
+
+    @Override
+    public void onLoupeChanged(boolean shown) {
+        if (forwarded(p -> p.onLoupeChanged(shown)))
+            return;
+        loupeShown = shown;
+        if (!shown) {
+            if (loupe != null)
+                loupe.setVisible(false);
+            return;
+        }
+        if (session == null)
+            return;
+        if (loupe == null) {
+            ImagePlus imp = session.getImage();
+            loupe = new Loupe(imp);
+            loupe.setRoot(session.getRoot());
+            if (contrastShown)
+                showContrastPreview();
+            // Beside the image window, where it does not cover the image
+            if (imp.getWindow() != null) {
+                Rectangle bounds = imp.getWindow().getBounds();
+                loupe.setLocation(bounds.x + bounds.width, bounds.y);
+            }
+        }
+        loupe.setVisible(true);
+    }
+
+    @Override
+    public void onWindowActivated() {
+        if (forwarded(p -> p.onWindowActivated()))
+            return;
+        // Follow the reader to another image measured in this window
+        ImagePlus current = WindowManager.getCurrentImage();
+        if (session != null && current != null && current != session.getImage() && sessions.containsKey(current))
+            bind(current);
+    }
+
+    @Override
+    public void onWindowClosed() {
+        if (forwarded(p -> p.onWindowClosed()) || storage == null)
+            return;
+        // Closing the window ends the session: nothing saved may stay queued
+        storage.flush();
+        for (ImageSession open : sessions.values()) {
+            open.close();
+        }
+        sessions.clear();
+        session = null;
+        ImagePlus.removeImageListener(imageListener);
+        if (resident == this)
+            resident = null;
+        if (loupe != null)
+            loupe.dispose();
+        // Closing the window without "Save and close" also ends the worklist
+        if (worklist != null && !handedOver) {
+            worklist.close();
+        }
     }
 
     /**
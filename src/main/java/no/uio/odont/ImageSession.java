@@ -0,0 +1,272 @@
+package no.uio.odont;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.ImageRoi;
+import ij.gui.Overlay;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import no.uio.odont.logic.Clahe;
+import no.uio.odont.model.MeasurementRoot;
+import no.uio.odont.util.AppConfig;
+import no.uio.odont.util.DataStorage;
+import no.uio.odont.util.LargeTiffReader;
+import no.uio.odont.util.MeasurementRow;
+import no.uio.odont.util.SessionJournal;
+import no.uio.odont.util.WorklistScanner;
+
+/**
+ * Everything measured on one image: the root being measured, the markers of
+ * roots saved before, the session journal and what the plugin window showed
+ * for it. The plugin window shows one session at a time and can switch to
+ * another image's session and back without losing either.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+class ImageSession {
+    private static final ExecutorService PREVIEW_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Contrast preview");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final ImagePlus imp;
+    private final AppConfig config;
+    private final Overlay historicOverlay = new Overlay();
+    private final SessionJournal journal;
+    private final LandmarkSuggester suggester;
+    // Roots of this image already in the result file, as WorklistScanner.rootKey,
+    // and the rows saved for them, as rootKey@timestamp
+    private final Set<String> measuredRoots = new HashSet<>();
+    private final Set<String> savedRows = new HashSet<>();
+    private String warnedRoot;
+    private MeasurementRoot root;
+
+    // The window's buttons selected for the root, as action commands in the
+    // order chosen, and its comments, shown again when the window returns here
+    private final List<String> selections = new ArrayList<>();
+    private String comments = "";
+
+    // Contrast-enhanced view of the image, computed once and shown behind the markers
+    private CompletableFuture<ImageRoi> contrastPreview;
+
+    private ImageSession(ImagePlus imp, AppConfig config) {
+        this.imp = imp;
+        this.config = config;
+        this.suggester = new LandmarkSuggester(config);
+        this.journal = SessionJournal.open(config.getDataDirectory(), sessionKey(imp));
+        historicOverlay.selectable(false);
+    }
+
+    /**
+     * Starts measuring an image: shows the roots saved for it before and
+     * replays the root left unsaved in an earlier session, if any.
+     */
+    static ImageSession open(ImagePlus imp, AppConfig config, DataStorage storage) {
+        ImageSession session = new ImageSession(imp, config);
+        session.loadPreviousRoots(storage);
+        session.newRoot();
+        session.restore();
+        return session;
+    }
+
+    /**
+     * @return The image path, plus the region for a region of a large image, so
+     *         an unsaved root is only restored on the same pixels.
+     */
+    private static String sessionKey(ImagePlus imp) {
+        Object region = imp.getProperty(LargeTiffReader.REGION_PROPERTY);
+        if (!(region instanceof Rectangle))
+            return DataStorage.imagePath(imp);
+        Rectangle r = (Rectangle) region;
+        return DataStorage.imagePath(imp) + "@" + r.x + "," + r.y + "," + r.width + "," + r.height;
+    }
+
+    /**
+     * Shows the roots saved for this image in earlier sessions as historic
+     * markers. Coordinates saved in another unit than the image's current
+     * calibration cannot be placed and are skipped.
+     */
+    private void loadPreviousRoots(DataStorage storage) {
+        List<MeasurementRow> rows = storage.loadPreviousRows(imp, config);
+        if (rows.isEmpty())
+            return;
+
+        Calibration cal = imp.getCalibration();
+        int skipped = 0;
+        for (MeasurementRow row : rows) {
+            String key = WorklistScanner.rootKey(row.getQuadrant(), row.getTooth(), row.getRoot());
+            measuredRoots.add(key);
+            savedRows.add(key + "@" + row.getTimestamp());
+            if (!DataStorage.addMarkers(historicOverlay, row, cal))
+                skipped++;
+        }
+        if (skipped > 0) {
+            IJ.log(skipped + " previous root(s) of " + imp.getTitle() + " were saved in another unit than "
+                    + cal.getUnit() + " and are not shown.");
+        }
+        IJ.showStatus((rows.size() - skipped) + " previously saved root(s) shown.");
+    }
+
+    /**
+     * Replays the root that was being measured when ImageJ last stopped without
+     * saving it, e.g. after a crash.
+     */
+    private void restore() {
+        int replayed = journal.replay(new SessionJournal.Replay() {
+            @Override
+            public void siteAdded(String name, double x, double y, Color color) {
+                root.addSite(name, x, y, color);
+                if ("Apex GP".equals(name))
+                    root.drawReferenceArcs(name);
+                selections.add("SITE_" + name);
+            }
+
+            @Override
+            public void siteRemoved(String name) {
+                root.removeSite(name);
+                if ("Apex GP".equals(name))
+                    root.removeReferenceArcs();
+                selections.add("MISS_" + name);
+            }
+
+            @Override
+            public void identificationChanged(int quadrant, String tooth, String rootName, String imageType) {
+                root.setQuadrantNumber(quadrant);
+                root.setToothNumber(tooth);
+                root.setRootName(rootName);
+                root.setImageType(imageType);
+                selections.add("QTR_qNumber;" + quadrant);
+                selections.add("QTR_tNumber;" + tooth);
+                selections.add("QTR_rNumber;" + rootName);
+                selections.add("QTR_iType;" + imageType);
+            }
+
+            @Override
+            public void qualitativeSelected(String key, String value) {
+                root.setQualitativeObservation(key, value);
+                selections.add("QO_" + key + ";" + value);
+            }
+
+            @Override
+            public boolean rootSaved(String timestamp) {
+                String key = WorklistScanner.rootKey(root.getQuadrantNumber(), root.getToothNumber(),
+                        root.getRootName());
+                // This very save, not an earlier one of the same root; older journals
+                // only tell the root
+                if (timestamp != null ? savedRows.contains(key + "@" + timestamp) : measuredRoots.contains(key)) {
+                    // Already shown with the roots saved before
+                    newRoot();
+                    return true;
+                }
+                IJ.log("A root of " + imp.getTitle() + " was being saved when ImageJ stopped, but is not in the"
+                        + " result file. It is restored so it can be saved again.");
+                return false;
+            }
+        });
+        if (replayed > 0) {
+            IJ.log("Restored the unsaved root of " + imp.getTitle() + " from the session journal.");
+            if (root.isFullyIdentified())
+                suggester.suggest(imp, root);
+        }
+    }
+
+    /**
+     * Replaces the root with an empty one, after it was saved or discarded;
+     * the roots saved before stay shown.
+     */
+    void newRoot() {
+        suggester.cancel();
+        root = new MeasurementRoot(imp, config.getDecimalSeparator(), historicOverlay,
+                config.isRasterizeHistoricMarkers());
+        selections.clear();
+        comments = "";
+    }
+
+    /** Records that a root was saved, and keeps its markers shown. */
+    void rootSaved() {
+        measuredRoots.add(WorklistScanner.rootKey(root.getQuadrantNumber(), root.getToothNumber(),
+                root.getRootName()));
+        root.copySitesToOverlay(historicOverlay);
+    }
+
+    /**
+     * @return true the first time the root is identified as one already saved
+     *         for this image, since it was last identified as another.
+     */
+    boolean isFirstRepeat(String key) {
+        if (!measuredRoots.contains(key) || key.equals(warnedRoot))
+            return false;
+        warnedRoot = key;
+        return true;
+    }
+
+    /**
+     * @return The contrast preview of the image, computed in the background the
+     *         first time.
+     */
+    CompletableFuture<ImageRoi> getContrastPreview() {
+        if (contrastPreview == null) {
+            ImageProcessor ip = imp.getProcessor();
+            IJ.showStatus("Computing contrast preview...");
+            contrastPreview = CompletableFuture.supplyAsync(() -> {
+                long start = System.currentTimeMillis();
+                ImageRoi preview = new ImageRoi(0, 0, Clahe.apply(ip));
+                preview.setName("Contrast preview");
+                IJ.showStatus("Contrast preview (" + (System.currentTimeMillis() - start) + " ms)");
+                return preview;
+            }, PREVIEW_EXECUTOR);
+        }
+        return contrastPreview;
+    }
+
+    /** Ends measuring the image; an unsaved root is discarded. */
+    void close() {
+        suggester.cancel();
+        journal.close();
+    }
+
+    ImagePlus getImage() {
+        return imp;
+    }
+
+    MeasurementRoot getRoot() {
+        return root;
+    }
+
+    Overlay getHistoricOverlay() {
+        return historicOverlay;
+    }
+
+    SessionJournal getJournal() {
+        return journal;
+    }
+
+    LandmarkSuggester getSuggester() {
+        return suggester;
+    }
+
+    List<String> getSelections() {
+        return selections;
+    }
+
+    String getComments() {
+        return comments;
+    }
+
+    void setComments(String comments) {
+        this.comments = comments;
+    }
+}
@@ -0,0 +1,127 @@
+package no.uio.odont;
+
+import java.awt.EventQueue;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.ImageCanvas;
+import ij.process.ImageProcessor;
+import no.uio.odont.logic.LandmarkMatcher;
+import no.uio.odont.logic.LandmarkTemplates;
+import no.uio.odont.model.MeasurementRoot;
+import no.uio.odont.model.SiteSchema;
+import no.uio.odont.util.AppConfig;
+
+/**
+ * Shows suggested positions of the sites of a root as ghost markers, once the
+ * root is identified. The reader accepts a suggestion by clicking the site's
+ * button while holding Shift, or places the site anywhere else as usual.
+ *
+ * Matching runs on a background thread, on the part of the image shown, with
+ * the templates learned by {@link LandmarkTemplateBuilder}. Templates are read
+ * again when their file changes and are shared by all images, so each template
+ * is only transformed once. Results for a root that was identified again, or
+ * reset, in the meantime are dropped.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public class LandmarkSuggester {
+    public static final String TEMPLATE_FILE_NAME = "landmark-templates.bin";
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Landmark suggestions");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Guarded by LandmarkSuggester.class: the matcher of the template file as last read
+    private static LandmarkMatcher matcher;
+    private static FileTime templatesModified;
+
+    private final Path templateFile;
+    // Incremented for each request; a result is only shown for the latest
+    private final AtomicInteger generation = new AtomicInteger();
+
+    public LandmarkSuggester(AppConfig config) {
+        this.templateFile = templateFile(config);
+    }
+
+    /** @return Where {@link LandmarkTemplateBuilder} writes the templates by default. */
+    public static Path templateFile(AppConfig config) {
+        return config.getDataDirectory().resolve(TEMPLATE_FILE_NAME);
+    }
+
+    /**
+     * Suggests the positions of the root's sites not placed yet. Call on the
+     * event dispatch thread.
+     */
+    public void suggest(ImagePlus imp, MeasurementRoot root) {
+        int request = generation.incrementAndGet();
+        double pixelSizeMm = LandmarkTemplates.pixelSizeMm(imp.getCalibration());
+        if (Double.isNaN(pixelSizeMm))
+            return;
+        ImageCanvas canvas = imp.getCanvas();
+        Rectangle shown = canvas != null ? new Rectangle(canvas.getSrcRect())
+                : new Rectangle(0, 0, imp.getWidth(), imp.getHeight());
+        ImageProcessor ip = imp.getProcessor();
+        boolean upperJaw = LandmarkTemplates.isUpperJaw(root.getQuadrantNumber());
+
+        EXECUTOR.execute(() -> {
+            if (request != generation.get())
+                return;
+            LandmarkMatcher current = matcher(templateFile);
+            if (current == null)
+                return;
+            List<LandmarkMatcher.Match> matches = current.match(ip, shown, pixelSizeMm, upperJaw);
+            EventQueue.invokeLater(() -> {
+                if (request != generation.get())
+                    return;
+                for (LandmarkMatcher.Match match : matches) {
+                    String name = SiteSchema.name(match.site);
+                    root.showSuggestion(match.site, match.x, match.y, SiteSchema.color(name));
+                }
+            });
+        });
+    }
+
+    /** Drops suggestions still being computed. */
+    public void cancel() {
+        generation.incrementAndGet();
+    }
+
+    /** @return The matcher of the template file, read again if it changed; null if there is none. */
+    private static synchronized LandmarkMatcher matcher(Path file) {
+        FileTime modified;
+        try {
+            modified = Files.getLastModifiedTime(file);
+        } catch (NoSuchFileException e) {
+            matcher = null;
+            templatesModified = null;
+            return null;
+        } catch (IOException e) {
+            return matcher;
+        }
+        if (matcher != null && modified.equals(templatesModified))
+            return matcher;
+        try {
+            matcher = new LandmarkMatcher(LandmarkTemplates.load(file));
+        } catch (IOException e) {
+            IJ.log("Could not read the landmark templates " + file + ": " + e.getMessage());
+            matcher = null;
+        }
+        templatesModified = modified;
+        return matcher;
+    }
+}
@@ -0,0 +1,193 @@
+package no.uio.odont;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import no.uio.odont.logic.LandmarkTemplates;
+import no.uio.odont.util.AppConfig;
+import no.uio.odont.util.MeasurementRow;
+
+/**
+ * Headless learning of the {@link LandmarkTemplates} the plugin suggests site
+ * positions from, using the roots already measured in a study folder tree.
+ *
+ * Every result file in the tree is read; each measured image is opened once,
+ * by its saved path or, if it was moved, by its file name in the tree, and the
+ * patches around its sites are added to the templates. Images that are not
+ * calibrated in a length unit are skipped, since templates have a fixed scale
+ * in mm.
+ *
+ * Usage: {@code LandmarkTemplateBuilder <study folder> [--workers n] [--out file]}.
+ * The templates are written to {@code landmark-templates.bin} in the data
+ * directory unless another file is given.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public class LandmarkTemplateBuilder {
+    private static final String DERIVED_SUFFIX = "-derived.csv";
+
+    private final Path root;
+    private final int workers;
+    private final LandmarkTemplates templates = new LandmarkTemplates();
+
+    // Image path as written in the rows -> rows
+    private final Map<String, List<String>> rowsByImage = new LinkedHashMap<>();
+    // Image file name -> files of that name in the tree, to find moved images
+    private final Map<String, List<Path>> imagesByName = new HashMap<>();
+
+    private final AtomicInteger patches = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    public LandmarkTemplateBuilder(Path root, int workers) {
+        this.root = root;
+        this.workers = Math.max(1, workers);
+    }
+
+    /** Learns the templates from every measured image in the tree. */
+    public LandmarkTemplates run() throws IOException, InterruptedException {
+        List<Path> resultFiles = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(root)) {
+            files.filter(Files::isRegularFile).forEach(file -> {
+                String name = file.getFileName().toString();
+                String lower = name.toLowerCase();
+                if (lower.endsWith(".csv") && !lower.endsWith(DERIVED_SUFFIX)) {
+                    resultFiles.add(file);
+                } else if (!name.startsWith("Measured-")) {
+                    imagesByName.computeIfAbsent(name, k -> new ArrayList<>()).add(file);
+                }
+            });
+        }
+        for (Path file : resultFiles) {
+            readRows(file);
+        }
+        IJ.log("Found " + rowsByImage.size() + " measured image(s) in " + resultFiles.size() + " result file(s)");
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        for (Map.Entry<String, List<String>> entry : rowsByImage.entrySet()) {
+            String imagePath = entry.getKey();
+            List<String> rows = entry.getValue();
+            executor.execute(() -> learn(imagePath, rows));
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+
+        IJ.log("Learned " + patches + " patch(es), skipped " + skipped + " image(s)");
+        for (int site : LandmarkTemplates.SITES) {
+            IJ.log("  " + MeasurementRow.SITE_NAMES[site] + ": upper " + templates.getCount(site, true) + ", lower "
+                    + templates.getCount(site, false));
+        }
+        return templates;
+    }
+
+    private void readRows(Path file) throws IOException {
+        MeasurementRow row = new MeasurementRow();
+        try (BufferedReader in = Files.newBufferedReader(file, Charset.defaultCharset())) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!row.parse(line, MeasurementRow.detectSeparator(line, ',')))
+                    continue;
+                rowsByImage.computeIfAbsent(row.getPath(), k -> new ArrayList<>()).add(line);
+            }
+        }
+    }
+
+    private void learn(String imagePath, List<String> rows) {
+        try {
+            Path image = locate(imagePath);
+            ImagePlus imp = image != null ? IJ.openImage(image.toString()) : null;
+            if (imp == null) {
+                IJ.log("Could not open " + imagePath);
+                skipped.incrementAndGet();
+                return;
+            }
+            Calibration cal = imp.getCalibration();
+            double pixelSizeMm = LandmarkTemplates.pixelSizeMm(cal);
+            if (Double.isNaN(pixelSizeMm)) {
+                IJ.log("Not calibrated in a length unit, skipped: " + image);
+                skipped.incrementAndGet();
+                imp.flush();
+                return;
+            }
+
+            ImageProcessor ip = imp.getProcessor();
+            MeasurementRow row = new MeasurementRow();
+            for (String line : rows) {
+                row.parse(line, MeasurementRow.detectSeparator(line, ','));
+                boolean pixels = row.getUnit().startsWith("pixel");
+                if (!pixels && !row.getUnit().equals(cal.getUnit()))
+                    continue;
+                boolean upperJaw = LandmarkTemplates.isUpperJaw(row.getQuadrant());
+                for (int site : LandmarkTemplates.SITES) {
+                    if (!row.hasSite(site))
+                        continue;
+                    double x = pixels ? row.getX(site) + cal.xOrigin : cal.getRawX(row.getX(site));
+                    double y = pixels ? row.getY(site) + cal.yOrigin : cal.getRawY(row.getY(site));
+                    if (templates.add(site, upperJaw, ip, x, y, pixelSizeMm))
+                        patches.incrementAndGet();
+                }
+            }
+            imp.flush();
+        } catch (RuntimeException e) {
+            IJ.log("Could not learn from " + imagePath + ": " + e.getMessage());
+            skipped.incrementAndGet();
+        }
+    }
+
+    /** Resolves an image by its saved path, or by a unique file name in the tree. */
+    private Path locate(String imagePath) {
+        try {
+            Path saved = Paths.get(imagePath);
+            if (Files.isRegularFile(saved))
+                return saved;
+        } catch (InvalidPathException e) {
+            // A path from another operating system; fall back to the file name
+        }
+        String name = new File(imagePath.replace('\\', '/')).getName();
+        List<Path> candidates = imagesByName.get(name);
+        if (candidates == null || candidates.size() != 1)
+            return null;
+        return candidates.get(0);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: LandmarkTemplateBuilder <study folder> [--workers n] [--out file]");
+            System.exit(1);
+        }
+        int workers = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        Path out = LandmarkSuggester.templateFile(new AppConfig());
+        for (int i = 1; i < args.length; i++) {
+            if ("--workers".equals(args[i]) && i + 1 < args.length) {
+                workers = Integer.parseInt(args[++i]);
+            } else if ("--out".equals(args[i]) && i + 1 < args.length) {
+                out = Paths.get(args[++i]);
+            }
+        }
+        LandmarkTemplates templates = new LandmarkTemplateBuilder(Paths.get(args[0]), workers).run();
+        templates.save(out);
+        IJ.log("Templates written to " + out);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,123 @@
+package no.uio.odont;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import no.uio.odont.util.RowEncoder;
+
+/**
+ * Checks that {@link RowEncoder} writes coordinates exactly like the
+ * {@code DecimalFormat} patterns it replaced, and like {@code String.format}
+ * of the value rounded half-even.
+ *
+ * Covers exact binary ties, values one ulp either side of a tie, decimal
+ * "ties" that are not exact in binary, negative zero, small negatives that
+ * round to "-0.00", and random values over many magnitudes, with both decimal
+ * separators.
+ *
+ * Usage: {@code RowEncoderTest [randomValues]}
+ */
+public class RowEncoderTest {
+    public static void main(String[] args) {
+        int randomValues = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        System.out.println("=== Row encoder equivalence check ===");
+
+        List<Double> values = new ArrayList<>();
+        for (double tie : new double[] { 0.125, 0.375, 0.625, 0.875, 1.125, 2.5, 0.5, 1.5, 3.5, 1023.5, 12.625 }) {
+            values.add(tie);
+            values.add(Math.nextUp(tie));
+            values.add(Math.nextDown(tie));
+        }
+        for (double inexact : new double[] { 0.005, 0.015, 0.025, 1.005, 2.675, 10.555, 1.115 }) {
+            values.add(inexact);
+        }
+        for (double small : new double[] { 0.0, -0.0, -0.001, -0.004, -0.005, -0.0050001, -0.4, -0.5, -0.6 }) {
+            values.add(small);
+        }
+        for (double large : new double[] { 999999.995, 1e11 + 0.125, 1e12, 1e15 + 2, Double.MAX_VALUE }) {
+            values.add(large);
+        }
+
+        Random rand = new Random(15);
+        for (int i = 0; i < randomValues; i++) {
+            double magnitude = Math.pow(10, rand.nextInt(9) - 3);
+            double value = (rand.nextDouble() - 0.3) * magnitude;
+            // Every fourth value on a multiple of 1/8, a tie for two decimals or none
+            values.add(i % 4 == 0 ? Math.rint(value * 8) / 8 : value);
+        }
+        for (double value : new double[] { Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY }) {
+            values.add(value);
+        }
+
+        int failures = 0;
+        for (char decimalSeparator : new char[] { '.', ',' }) {
+            char csvSeparator = decimalSeparator == ',' ? ';' : ',';
+            RowEncoder encoder = new RowEncoder(decimalSeparator, csvSeparator, '-');
+            DecimalFormat calibrated = format("0.00", decimalSeparator);
+            DecimalFormat pixels = format("####", decimalSeparator);
+
+            for (double value : values) {
+                for (boolean wholePixels : new boolean[] { false, true }) {
+                    encoder.reset().coordinate(value, wholePixels);
+                    String encoded = encoder.toString();
+                    String expected = (wholePixels ? pixels : calibrated).format(value) + csvSeparator + " ";
+                    if (!encoded.equals(expected)) {
+                        failures++;
+                        report(failures, value, wholePixels, encoded, expected, "DecimalFormat");
+                        continue;
+                    }
+                    // DecimalFormat writes at most 17 significant digits, so
+                    // for huge values it is the only reference
+                    if (Double.isNaN(value) || Math.abs(value) >= 1e15)
+                        continue;
+                    expected = formatted(value, wholePixels ? 0 : 2, decimalSeparator) + csvSeparator + " ";
+                    if (!encoded.equals(expected)) {
+                        failures++;
+                        report(failures, value, wholePixels, encoded, expected, "String.format");
+                    }
+                }
+            }
+        }
+
+        System.out.println("Checked " + values.size() + " values x 2 patterns x 2 separators, " + failures
+                + " mismatch(es)");
+        System.out.println(failures == 0 ? "\n=== Check passed ===" : "\n=== Check FAILED ===");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static DecimalFormat format(String pattern, char decimalSeparator) {
+        DecimalFormat format = new DecimalFormat(pattern);
+        DecimalFormatSymbols symbols = new DecimalFormatSymbols();
+        symbols.setDecimalSeparator(decimalSeparator);
+        symbols.setMinusSign('-');
+        format.setDecimalFormatSymbols(symbols);
+        return format;
+    }
+
+    /**
+     * String.format rounds half-up, so it is given the exact value rounded
+     * half-even; a negative value rounding to zero keeps its sign, as in
+     * DecimalFormat.
+     */
+    private static String formatted(double value, int decimals, char decimalSeparator) {
+        BigDecimal rounded = new BigDecimal(value).setScale(decimals, RoundingMode.HALF_EVEN);
+        String text = String.format(Locale.ROOT, "%." + decimals + "f", rounded);
+        if (rounded.signum() == 0 && (value < 0 || 1 / value < 0))
+            text = "-" + text;
+        return text.replace('.', decimalSeparator);
+    }
+
+    private static void report(int failures, double value, boolean wholePixels, String encoded, String expected,
+            String reference) {
+        if (failures <= 20) {
+            System.err.println("Mismatch for " + value + (wholePixels ? " (pixels)" : "") + ": encoded \""
+                    + encoded + "\", " + reference + " \"" + expected + "\"");
+        }
+    }
+}
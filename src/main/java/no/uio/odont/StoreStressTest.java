@@ -0,0 +1,283 @@
+package no.uio.odont;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+
+import no.uio.odont.util.GroupCommitWriter;
+
+/**
+ * Multi-process stress test for the shared measurement store.
+ * Starts several JVMs that save rows into the same result file concurrently
+ * through the shared-store writer, then verifies that every row is present
+ * exactly once and intact.
+ *
+ * With {@code --crash}, every writer is killed once part way, while it is
+ * saving, and a new process takes over the rest of its rows. The row being
+ * saved when a writer was killed may or may not be in the store; all rows it
+ * had confirmed must be, and journals and torn rows left by the killed writers
+ * must be recovered without duplicates.
+ *
+ * Usage: {@code StoreStressTest [writers] [rowsPerWriter] [directory] [--crash]}
+ */
+public class StoreStressTest {
+    private static final String CHILD = "--child";
+    private static final String CRASH = "--crash";
+    private static final String CONFIRMED = "confirmed ";
+    private static final long KILL_WINDOW_NS = 3000000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && CHILD.equals(args[0])) {
+            runChild(new File(args[1]).toPath(), args[2], Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+            return;
+        }
+
+        List<String> positional = new ArrayList<>(Arrays.asList(args));
+        boolean crash = positional.remove(CRASH);
+        int writers = positional.size() > 0 ? Integer.parseInt(positional.get(0)) : 12;
+        int rows = positional.size() > 1 ? Integer.parseInt(positional.get(1)) : 200;
+        File dir = positional.size() > 2 ? new File(positional.get(2))
+                : Files.createTempDirectory("store-stress").toFile();
+        Path store = new File(dir, "Measurements.csv").toPath();
+        Files.deleteIfExists(store);
+
+        System.out.println("=== Shared store stress test: " + writers + " processes x " + rows + " rows"
+                + (crash ? ", each killed once" : "") + " ===");
+        System.out.println("Store: " + store);
+
+        Random random = new Random(42);
+        List<Writer> running = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            // Killed after confirming a random number of rows between a quarter and three quarters
+            int killAfter = crash ? rows / 4 + random.nextInt(Math.max(1, rows / 2)) : -1;
+            running.add(new Writer(store, "client" + i, rows, killAfter));
+        }
+        for (Writer w : running) {
+            w.start();
+        }
+
+        boolean ok = true;
+        Map<String, Integer> inFlight = new HashMap<>();
+        for (Writer w : running) {
+            w.join();
+            ok &= w.ok;
+            if (w.killedDuring >= 0)
+                inFlight.put(w.client, w.killedDuring);
+        }
+
+        ok &= verify(store, writers, rows, inFlight);
+        System.out.println(ok ? "\n=== Stress test passed ===" : "\n=== Stress test FAILED ===");
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Runs the processes of one client: one that saves all rows, or with a
+     * crash, one that is killed and one that saves the rows after the one it
+     * was saving.
+     */
+    private static class Writer extends Thread {
+        private final Path store;
+        private final String client;
+        private final int rows;
+        private final int killAfter;
+        private Process process;
+        private BufferedReader output;
+        // The row being saved when the process was killed, or -1
+        private int killedDuring = -1;
+        private boolean ok = true;
+
+        Writer(Path store, String client, int rows, int killAfter) {
+            this.store = store;
+            this.client = client;
+            this.rows = rows;
+            this.killAfter = killAfter;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Process p = startChild(0);
+                if (killAfter >= 0) {
+                    save(p, 0, killAfter);
+                    // Let the next row be saved, and kill the writer while it is at it
+                    killedDuring = killAfter;
+                    p.getOutputStream().write('\n');
+                    p.getOutputStream().flush();
+                    // Saving takes a few ms: the kill lands before, while or after it is journaled
+                    long until = System.nanoTime() + ThreadLocalRandom.current().nextLong(KILL_WINDOW_NS);
+                    while (System.nanoTime() < until) {
+                        // Sleeping is too coarse
+                    }
+                    p.destroyForcibly().waitFor();
+                    System.out.println("  " + client + ": killed while saving row " + killedDuring);
+                    p = startChild(killedDuring + 1);
+                    save(p, killedDuring + 1, rows);
+                } else {
+                    save(p, 0, rows);
+                }
+                p.getOutputStream().close();
+                printRest(p);
+                if (p.waitFor() != 0) {
+                    System.err.println("A writer process failed with exit code " + p.exitValue());
+                    ok = false;
+                }
+            } catch (IOException e) {
+                System.err.println(client + ": " + e.getMessage());
+                ok = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                ok = false;
+            }
+        }
+
+        private Process startChild(int first) throws IOException {
+            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            ProcessBuilder pb = new ProcessBuilder(java, "-Djava.awt.headless=true", "-cp",
+                    System.getProperty("java.class.path"), StoreStressTest.class.getName(), CHILD, store.toString(),
+                    client, String.valueOf(first), String.valueOf(rows));
+            pb.redirectErrorStream(true);
+            return pb.start();
+        }
+
+        /**
+         * Lets a writer process save rows {@code first} to {@code end}
+         * (exclusive) one at a time, each once the one before is confirmed.
+         */
+        private void save(Process p, int first, int end) throws IOException {
+            BufferedReader out = reader(p);
+            for (int i = first; i < end; i++) {
+                p.getOutputStream().write('\n');
+                p.getOutputStream().flush();
+                String line;
+                while ((line = out.readLine()) != null && !line.equals(CONFIRMED + i)) {
+                    System.out.println("  " + line);
+                }
+                if (line == null)
+                    throw new IOException("the writer stopped before saving row " + i);
+            }
+        }
+
+        private void printRest(Process p) throws IOException {
+            BufferedReader out = reader(p);
+            String line;
+            while ((line = out.readLine()) != null) {
+                System.out.println("  " + line);
+            }
+        }
+
+        private BufferedReader reader(Process p) {
+            if (output == null || process != p) {
+                process = p;
+                output = new BufferedReader(new InputStreamReader(p.getInputStream()));
+            }
+            return output;
+        }
+    }
+
+    /**
+     * Saves rows one by one, each when a line is read from standard input,
+     * flushing each like a "Save and close" would, and confirms each on
+     * standard output once it is flushed.
+     */
+    private static void runChild(Path store, String client, int first, int rows) throws IOException {
+        GroupCommitWriter writer = GroupCommitWriter.forPath(store, 0, true);
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        long[] latencies = new long[Math.max(1, rows - first)];
+
+        for (int i = first; i < rows; i++) {
+            if (in.readLine() == null)
+                break;
+            writer.append(row(client, i));
+            long start = System.nanoTime();
+            writer.flush();
+            latencies[i - first] = System.nanoTime() - start;
+            System.out.println(CONFIRMED + i);
+            System.out.flush();
+        }
+        writer.close();
+
+        Arrays.sort(latencies);
+        int n = latencies.length;
+        System.out.printf("%s: save latency p50 %.1f ms, p99 %.1f ms, max %.1f ms%n", client,
+                latencies[n / 2] / 1e6, latencies[Math.min(n - 1, n * 99 / 100)] / 1e6, latencies[n - 1] / 1e6);
+    }
+
+    /** @return The row saved as number {@code seq} of a client, the same in every process. */
+    private static String row(String client, int seq) {
+        Random rand = new Random(client.hashCode() * 31L + seq);
+        // Vary the length so writes straddle block boundaries
+        char[] payload = new char[200 + rand.nextInt(400)];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (char) ('a' + rand.nextInt(26));
+        }
+        String body = "stress," + client + "," + seq + "," + new String(payload);
+        return body + "," + checksum(body);
+    }
+
+    private static String checksum(String body) {
+        CRC32 crc = new CRC32();
+        crc.update(body.getBytes(Charset.defaultCharset()));
+        return Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * @param inFlight The row each killed client was saving when it was killed,
+     *                 which may be missing.
+     */
+    private static boolean verify(Path store, int writers, int rows, Map<String, Integer> inFlight)
+            throws IOException {
+        List<String> lines = Files.readAllLines(store, Charset.defaultCharset());
+        Set<String> seen = new HashSet<>();
+        int torn = 0, duplicates = 0;
+
+        for (String line : lines) {
+            int lastComma = line.lastIndexOf(',');
+            String[] parts = line.split(",");
+            if (lastComma < 0 || parts.length != 5 || !checksum(line.substring(0, lastComma)).equals(parts[4])) {
+                torn++;
+                continue;
+            }
+            if (!seen.add(parts[1] + "/" + parts[2])) {
+                duplicates++;
+            }
+        }
+
+        int lost = 0, recovered = 0;
+        for (int w = 0; w < writers; w++) {
+            String client = "client" + w;
+            int optional = inFlight.getOrDefault(client, -1);
+            for (int i = 0; i < rows; i++) {
+                boolean present = seen.contains(client + "/" + i);
+                if (i == optional) {
+                    if (present)
+                        recovered++;
+                } else if (!present) {
+                    lost++;
+                }
+            }
+        }
+
+        int expected = writers * rows - inFlight.size() + recovered;
+        System.out.println("\nRows in store: " + lines.size() + " (expected " + expected + ")");
+        System.out.println("Torn: " + torn + ", duplicated: " + duplicates + ", lost: " + lost);
+        if (!inFlight.isEmpty()) {
+            System.out.println("Rows being saved when a writer was killed: " + inFlight.size() + ", of which "
+                    + recovered + " are in the store");
+        }
+        return torn == 0 && duplicates == 0 && lost == 0 && lines.size() == expected;
+    }
+}
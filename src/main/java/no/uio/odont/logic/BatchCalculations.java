@@ -0,0 +1,188 @@
+package no.uio.odont.logic;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Batch engine computing every quantity of README Table 2 for many roots in one
+ * pass.
+ *
+ * Input is given as structure-of-arrays columns: {@code x[site][row]} and
+ * {@code y[site][row]} hold the calibrated coordinates of each site, indexed by
+ * the Table 1 site number minus one (see the {@code APEX} ... {@code LESION_DISTAL}
+ * constants). Missing sites are represented by {@code Double.NaN}, and any
+ * quantity depending on a missing site becomes {@code NaN} as well.
+ *
+ * Rows are split into chunks that are processed in parallel on a fork-join pool.
+ * No objects are allocated per row.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public class BatchCalculations {
+
+    // Site columns, Table 1 numbering minus one
+    public static final int APEX = 0;
+    public static final int APEX_GP = 1;
+    public static final int CANAL_DEVIATION = 2;
+    public static final int CANAL_ENTRANCE = 3;
+    public static final int CANAL_1MM_MESIAL = 4;
+    public static final int CANAL_1MM_DISTAL = 5;
+    public static final int CANAL_4MM_MESIAL = 6;
+    public static final int CANAL_4MM_DISTAL = 7;
+    public static final int BONE_MESIAL = 8;
+    public static final int BONE_DISTAL = 9;
+    public static final int CEJ_MESIAL = 10;
+    public static final int CEJ_DISTAL = 11;
+    public static final int LESION_PERIPHERY = 12;
+    public static final int LESION_MESIAL = 13;
+    public static final int LESION_DISTAL = 14;
+    public static final int SITE_COUNT = 15;
+
+    // Output columns, Table 2 order
+    public static final int SCHNEIDER_ANGLE = 0;
+    public static final int CANAL_DIAMETER_1MM = 1;
+    public static final int CANAL_DIAMETER_4MM = 2;
+    public static final int APEX_AGP_DISTANCE = 3;
+    public static final int LESION_HORIZONTAL = 4;
+    public static final int LESION_VERTICAL = 5;
+    public static final int BONE_HEIGHT_MESIAL = 6;
+    public static final int BONE_HEIGHT_DISTAL = 7;
+    public static final int QUANTITY_COUNT = 8;
+
+    public static final String[] QUANTITY_NAMES = { "Schneider angle", "Canal diameter 1mm",
+            "Canal diameter 4mm", "Apex-AGP distance", "Lesion horizontal", "Lesion vertical",
+            "Bone height mesial", "Bone height distal" };
+
+    // Rows per leaf task; small enough to balance, large enough to amortize forking
+    private static final int CHUNK_SIZE = 4096;
+
+    private BatchCalculations() {
+    }
+
+    /**
+     * Computes all Table 2 quantities for every row using the common fork-join pool.
+     *
+     * @param x        Calibrated x-coordinates, {@code x[site][row]}.
+     * @param y        Calibrated y-coordinates, {@code y[site][row]}.
+     * @param quadrant Quadrant number per row, used to sign the apex-AGP distance.
+     * @return The quantities as {@code result[quantity][row]}.
+     */
+    public static double[][] compute(double[][] x, double[][] y, int[] quadrant) {
+        int rows = quadrant.length;
+        double[][] out = new double[QUANTITY_COUNT][rows];
+        compute(x, y, quadrant, out, 0, rows, ForkJoinPool.commonPool());
+        return out;
+    }
+
+    /**
+     * Computes rows {@code [from, to)} into a caller-supplied output array, so
+     * that streaming callers can reuse their buffers between batches.
+     */
+    public static void compute(double[][] x, double[][] y, int[] quadrant, double[][] out, int from, int to,
+            ForkJoinPool pool) {
+        checkColumns(x, y, out, to);
+        if (to - from <= CHUNK_SIZE) {
+            computeRange(x, y, quadrant, out, from, to);
+        } else {
+            pool.invoke(new ChunkTask(x, y, quadrant, out, from, to));
+        }
+    }
+
+    /**
+     * Sequential kernel for rows {@code [from, to)}.
+     */
+    public static void computeRange(double[][] x, double[][] y, int[] quadrant, double[][] out, int from,
+            int to) {
+        double[] schneider = out[SCHNEIDER_ANGLE];
+        double[] d1 = out[CANAL_DIAMETER_1MM];
+        double[] d4 = out[CANAL_DIAMETER_4MM];
+        double[] apexAgp = out[APEX_AGP_DISTANCE];
+        double[] lesionH = out[LESION_HORIZONTAL];
+        double[] lesionV = out[LESION_VERTICAL];
+        double[] boneM = out[BONE_HEIGHT_MESIAL];
+        double[] boneD = out[BONE_HEIGHT_DISTAL];
+
+        double[] apexX = x[APEX], apexY = y[APEX];
+        double[] agpX = x[APEX_GP], agpY = y[APEX_GP];
+        double[] devX = x[CANAL_DEVIATION], devY = y[CANAL_DEVIATION];
+        double[] entX = x[CANAL_ENTRANCE], entY = y[CANAL_ENTRANCE];
+
+        for (int i = from; i < to; i++) {
+            schneider[i] = Calculations.calculateSchneiderAngle(agpX[i], agpY[i], devX[i], devY[i], entX[i],
+                    entY[i]);
+            d1[i] = pairDistance(x, y, CANAL_1MM_MESIAL, CANAL_1MM_DISTAL, i);
+            d4[i] = pairDistance(x, y, CANAL_4MM_MESIAL, CANAL_4MM_DISTAL, i);
+            apexAgp[i] = signedApexDistance(apexX[i], apexY[i], agpX[i], agpY[i], quadrant[i]);
+            lesionH[i] = pairDistance(x, y, LESION_MESIAL, LESION_DISTAL, i);
+            lesionV[i] = pairDistance(x, y, APEX, LESION_PERIPHERY, i);
+            boneM[i] = pairDistance(x, y, BONE_MESIAL, CEJ_MESIAL, i);
+            boneD[i] = pairDistance(x, y, BONE_DISTAL, CEJ_DISTAL, i);
+        }
+    }
+
+    private static double pairDistance(double[][] x, double[][] y, int a, int b, int row) {
+        return Calculations.distance(x[a][row], y[a][row], x[b][row], y[b][row]);
+    }
+
+    /**
+     * Apex-AGP distance, positive for a surplus and negative for a deficit of
+     * filling material (README Figure 3). In the maxilla (quadrants 1 and 2) the
+     * apex points up in the image, so a surplus has the AGP above the apex; in the
+     * mandible the opposite holds. Rows with an unknown quadrant keep the unsigned
+     * distance.
+     */
+    private static double signedApexDistance(double apexX, double apexY, double agpX, double agpY,
+            int quadrant) {
+        double d = Calculations.distance(apexX, apexY, agpX, agpY);
+        if (quadrant == 1 || quadrant == 2) {
+            return agpY < apexY ? d : -d;
+        } else if (quadrant == 3 || quadrant == 4) {
+            return agpY > apexY ? d : -d;
+        }
+        return d;
+    }
+
+    private static void checkColumns(double[][] x, double[][] y, double[][] out, int rows) {
+        if (x.length < SITE_COUNT || y.length < SITE_COUNT) {
+            throw new IllegalArgumentException("Expected " + SITE_COUNT + " site columns");
+        }
+        if (out.length < QUANTITY_COUNT) {
+            throw new IllegalArgumentException("Expected " + QUANTITY_COUNT + " output columns");
+        }
+        for (int s = 0; s < SITE_COUNT; s++) {
+            if (x[s].length < rows || y[s].length < rows) {
+                throw new IllegalArgumentException("Site column " + s + " is shorter than " + rows + " rows");
+            }
+        }
+    }
+
+    /** Splits the row range in halves until it fits in one chunk. */
+    private static class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final double[][] x, y, out;
+        private final int[] quadrant;
+        private final int from, to;
+
+        ChunkTask(double[][] x, double[][] y, int[] quadrant, double[][] out, int from, int to) {
+            this.x = x;
+            this.y = y;
+            this.quadrant = quadrant;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK_SIZE) {
+                computeRange(x, y, quadrant, out, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ChunkTask(x, y, quadrant, out, from, mid), new ChunkTask(x, y, quadrant, out, mid, to));
+        }
+    }
+}
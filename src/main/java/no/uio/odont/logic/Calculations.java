@@ -15,7 +15,16 @@ public class Calculations {
      * Calculates the distance between two points.
      */
     public static double distance(Point2D.Double p1, Point2D.Double p2) {
-        return p1.distance(p2);
+        return distance(p1.x, p1.y, p2.x, p2.y);
+    }
+
+    /**
+     * Calculates the distance between two points given as primitive coordinates.
+     */
+    public static double distance(double x1, double y1, double x2, double y2) {
+        double dx = x2 - x1;
+        double dy = y2 - y1;
+        return Math.sqrt(dx * dx + dy * dy);
     }
 
     /**
@@ -29,9 +38,18 @@ public class Calculations {
      * @return The Schneider angle in degrees.
      */
     public static double calculateSchneiderAngle(Point2D.Double p2, Point2D.Double p3, Point2D.Double p4) {
-        double a = p3.distance(p2); // Distance curvature to AGP
-        double b = p4.distance(p2); // Distance entrance to AGP
-        double c = p4.distance(p3); // Distance entrance to curvature
+        return calculateSchneiderAngle(p2.x, p2.y, p3.x, p3.y, p4.x, p4.y);
+    }
+
+    /**
+     * Primitive variant of {@link #calculateSchneiderAngle(Point2D.Double, Point2D.Double, Point2D.Double)}
+     * used by the batch engine to avoid allocating points per row.
+     */
+    public static double calculateSchneiderAngle(double x2, double y2, double x3, double y3, double x4,
+            double y4) {
+        double a = distance(x3, y3, x2, y2); // Distance curvature to AGP
+        double b = distance(x4, y4, x2, y2); // Distance entrance to AGP
+        double c = distance(x4, y4, x3, y3); // Distance entrance to curvature
 
         // Law of cosines: b^2 = a^2 + c^2 - 2ac * cos(β)
         // cos(β) = (a^2 + c^2 - b^2) / (2ac)
@@ -0,0 +1,193 @@
+package no.uio.odont.logic;
+
+import java.util.stream.IntStream;
+
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Contrast-limited adaptive histogram equalization (CLAHE) of an image, for
+ * display only.
+ *
+ * The image is divided into a grid of tiles. Each tile's histogram is clipped
+ * at a multiple of its mean bin count, the excess spread over all bins, and
+ * turned into a mapping to 0-255. Each pixel is mapped by the four nearest
+ * tiles, weighted by its distance to their centers, so tile borders do not
+ * show. Tiles, and then bands of rows, are processed in parallel on the common
+ * fork-join pool.
+ *
+ * Pixel values are binned over the range of the image itself, so 16-bit images
+ * with a narrow range, such as underexposed films, use all 256 bins. The
+ * result is inverted for an image shown with an inverted LUT, so it is as dark
+ * where the image is shown dark.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public final class Clahe {
+    /** Tiles along the longer side of the image. */
+    public static final int TILES = 8;
+    /** Histogram bins are clipped at this multiple of the mean bin count. */
+    public static final double CLIP_LIMIT = 3.0;
+
+    private static final int BINS = 256;
+    private static final int ROWS_PER_BAND = 64;
+
+    private Clahe() {
+    }
+
+    /**
+     * @return The equalized image, 8-bit, of the same size; the image itself is
+     *         only read.
+     */
+    public static ByteProcessor apply(ImageProcessor ip) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        byte[] bins = toBins(ip);
+        // Exclusive or with 255 inverts a value
+        int invert = ip.isInvertedLut() ? 255 : 0;
+
+        // Square tiles, TILES along the longer side
+        int tileSize = Math.max(1, (Math.max(width, height) + TILES - 1) / TILES);
+        int columns = (width + tileSize - 1) / tileSize;
+        int rows = (height + tileSize - 1) / tileSize;
+        byte[][] maps = new byte[columns * rows][];
+        IntStream.range(0, maps.length).parallel().forEach(t -> {
+            int x0 = (t % columns) * tileSize;
+            int y0 = (t / columns) * tileSize;
+            maps[t] = tileMapping(bins, width, x0, y0, Math.min(tileSize, width - x0),
+                    Math.min(tileSize, height - y0));
+        });
+
+        // Interpolate between the mappings of the four nearest tile centers
+        byte[] out = new byte[width * height];
+        int bands = (height + ROWS_PER_BAND - 1) / ROWS_PER_BAND;
+        IntStream.range(0, bands).parallel().forEach(band -> {
+            int[] left = new int[width];
+            int[] right = new int[width];
+            float[] weight = new float[width];
+            for (int x = 0; x < width; x++) {
+                double tx = (x + 0.5) / tileSize - 0.5;
+                int c = (int) Math.floor(tx);
+                weight[x] = (float) (tx - c);
+                left[x] = Math.max(0, Math.min(columns - 1, c));
+                right[x] = Math.max(0, Math.min(columns - 1, c + 1));
+            }
+            int end = Math.min(height, (band + 1) * ROWS_PER_BAND);
+            for (int y = band * ROWS_PER_BAND; y < end; y++) {
+                double ty = (y + 0.5) / tileSize - 0.5;
+                int r = (int) Math.floor(ty);
+                float wy = (float) (ty - r);
+                int top = Math.max(0, Math.min(rows - 1, r)) * columns;
+                int bottom = Math.max(0, Math.min(rows - 1, r + 1)) * columns;
+                int offset = y * width;
+                for (int x = 0; x < width; x++) {
+                    int bin = bins[offset + x] & 0xff;
+                    float wx = weight[x];
+                    float upper = (maps[top + left[x]][bin] & 0xff) * (1 - wx)
+                            + (maps[top + right[x]][bin] & 0xff) * wx;
+                    float lower = (maps[bottom + left[x]][bin] & 0xff) * (1 - wx)
+                            + (maps[bottom + right[x]][bin] & 0xff) * wx;
+                    out[offset + x] = (byte) (invert ^ (int) (upper * (1 - wy) + lower * wy + 0.5f));
+                }
+            }
+        });
+        return new ByteProcessor(width, height, out);
+    }
+
+    /** @return The clipped, equalizing mapping of one tile's bins to 0-255. */
+    private static byte[] tileMapping(byte[] bins, int width, int x0, int y0, int tileWidth, int tileHeight) {
+        int[] histogram = new int[BINS];
+        for (int y = y0; y < y0 + tileHeight; y++) {
+            int offset = y * width;
+            for (int x = x0; x < x0 + tileWidth; x++) {
+                histogram[bins[offset + x] & 0xff]++;
+            }
+        }
+
+        int count = tileWidth * tileHeight;
+        int limit = Math.max(1, (int) (CLIP_LIMIT * count / BINS));
+        int excess = 0;
+        for (int i = 0; i < BINS; i++) {
+            if (histogram[i] > limit) {
+                excess += histogram[i] - limit;
+                histogram[i] = limit;
+            }
+        }
+        int share = excess / BINS;
+        int rest = excess - share * BINS;
+        for (int i = 0; i < BINS; i++) {
+            histogram[i] += share + (i < rest ? 1 : 0);
+        }
+
+        byte[] map = new byte[BINS];
+        long cumulative = 0;
+        for (int i = 0; i < BINS; i++) {
+            cumulative += histogram[i];
+            map[i] = (byte) Math.round(255.0 * cumulative / count);
+        }
+        return map;
+    }
+
+    /** @return The histogram bin of each pixel, over the image's own range. */
+    private static byte[] toBins(ImageProcessor ip) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        int n = width * height;
+        Object pixels = ip.getPixels();
+        byte[] bins = new byte[n];
+        if (pixels instanceof byte[]) {
+            // 8-bit values are their own bins
+            System.arraycopy(pixels, 0, bins, 0, n);
+            return bins;
+        }
+
+        float[] values;
+        if (pixels instanceof short[]) {
+            short[] shorts = (short[]) pixels;
+            int min = 65535;
+            int max = 0;
+            for (short s : shorts) {
+                int v = s & 0xffff;
+                if (v < min)
+                    min = v;
+                if (v > max)
+                    max = v;
+            }
+            // Binned through a lookup table from 16-bit values, in parallel
+            double scale = max > min ? (BINS - 1.0) / (max - min) : 0;
+            int low = min;
+            byte[] table = new byte[max - min + 1];
+            for (int v = 0; v < table.length; v++) {
+                table[v] = (byte) (v * scale + 0.5);
+            }
+            IntStream.range(0, (n + 65535) / 65536).parallel().forEach(chunk -> {
+                int end = Math.min(n, (chunk + 1) * 65536);
+                for (int i = chunk * 65536; i < end; i++) {
+                    bins[i] = table[(shorts[i] & 0xffff) - low];
+                }
+            });
+            return bins;
+        }
+        if (ip instanceof ColorProcessor) {
+            values = (float[]) ip.convertToFloatProcessor().getPixels();
+        } else {
+            values = (float[]) pixels;
+        }
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        for (float v : values) {
+            if (v < min)
+                min = v;
+            if (v > max)
+                max = v;
+        }
+        double scale = max > min ? (BINS - 1.0) / (max - min) : 0;
+        for (int i = 0; i < n; i++) {
+            bins[i] = (byte) ((values[i] - min) * scale + 0.5);
+        }
+        return bins;
+    }
+}
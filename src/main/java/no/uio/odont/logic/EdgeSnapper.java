@@ -0,0 +1,256 @@
+package no.uio.odont.logic;
+
+import java.nio.FloatBuffer;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Snaps canal side points to the canal walls where they cross a reference arc
+ * around Apex GP.
+ *
+ * The intensity change along the arc is sampled from the image's gradient, a
+ * Sobel filter of the image smoothed by a Gaussian. Near the click, the two
+ * strongest changes are taken as the two walls of the canal, and each is
+ * refined to a fraction of a pixel with a parabola through its neighbours.
+ *
+ * The gradient is computed once per image on a background thread, as soon as
+ * the image is opened for measuring, so a click only samples a few hundred
+ * points. It is computed again if the image's pixels are replaced. The caller
+ * may supply it instead, e.g. from a cache of an earlier session.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public class EdgeSnapper {
+    /** Names the gradient, and how it is computed, among derived rasters. */
+    public static final String GRADIENT_KIND = "gradient-sobel-sigma1";
+
+    // Smoothing before differentiation, in pixels
+    private static final double SIGMA = 1.0;
+    // Spacing of the samples along the arc, in pixels
+    private static final double STEP = 0.25;
+    // A change must stand out this much from the mean along the arc to be a wall
+    private static final double MIN_CONTRAST = 1.5;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Edge gradient");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    // Snappers of the images being measured
+    private static final Map<ImagePlus, EdgeSnapper> SNAPPERS = new WeakHashMap<>();
+
+    private final Object pixels;
+    private final int width;
+    private final int height;
+    private final Future<FloatBuffer[]> gradient;
+
+    /** The walls found along an arc, in image pixels. */
+    public static final class Edges {
+        /** The wall nearest the click. */
+        public final double x;
+        public final double y;
+        /** The other wall, or NaN if only one was found. */
+        public final double otherX;
+        public final double otherY;
+
+        Edges(double x, double y, double otherX, double otherY) {
+            this.x = x;
+            this.y = y;
+            this.otherX = otherX;
+            this.otherY = otherY;
+        }
+
+        public boolean hasOther() {
+            return !Double.isNaN(otherX);
+        }
+    }
+
+    private EdgeSnapper(ImageProcessor ip, Function<ImageProcessor, FloatBuffer[]> source) {
+        this.pixels = ip.getPixels();
+        this.width = ip.getWidth();
+        this.height = ip.getHeight();
+        this.gradient = EXECUTOR.submit(() -> source.apply(ip));
+    }
+
+    /**
+     * Returns the snapper of an image, starting to compute its gradient in the
+     * background if there is none yet for its current pixels.
+     */
+    public static EdgeSnapper forImage(ImagePlus imp) {
+        return forImage(imp, ip -> {
+            float[][] g = gradient(ip);
+            return new FloatBuffer[] { FloatBuffer.wrap(g[0]), FloatBuffer.wrap(g[1]) };
+        });
+    }
+
+    /**
+     * Returns the snapper of an image, starting to get its gradient in the
+     * background if there is none yet for its current pixels.
+     *
+     * @param source Returns the {@link #gradient(ImageProcessor)} of the
+     *               image's processor; called on a background thread.
+     */
+    public static synchronized EdgeSnapper forImage(ImagePlus imp, Function<ImageProcessor, FloatBuffer[]> source) {
+        ImageProcessor ip = imp.getProcessor();
+        EdgeSnapper snapper = SNAPPERS.get(imp);
+        if (snapper == null || snapper.pixels != ip.getPixels()) {
+            snapper = new EdgeSnapper(ip, source);
+            SNAPPERS.put(imp, snapper);
+        }
+        return snapper;
+    }
+
+    /** @return true once the gradient is available, so {@link #snap} does not wait. */
+    public boolean isReady() {
+        return gradient.isDone();
+    }
+
+    /**
+     * Finds the canal walls on the arc around ({@code cx}, {@code cy}) near a
+     * click, waiting for the gradient if it is still being computed.
+     *
+     * @param radius     Radius of the arc in pixels.
+     * @param halfWindow How far along the arc to each side of the click to
+     *                   look, in pixels.
+     * @return The walls, or null if no change along the arc stands out.
+     */
+    public Edges snap(double cx, double cy, double radius, double clickX, double clickY, double halfWindow) {
+        FloatBuffer[] g;
+        try {
+            g = gradient.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+        if (radius <= 0 || width < 3 || height < 3)
+            return null;
+
+        // Sample the change along the arc: the gradient along its tangent
+        double clickAngle = Math.atan2(clickY - cy, clickX - cx);
+        double span = Math.min(halfWindow, radius * Math.PI / 2);
+        int n = 2 * (int) Math.ceil(span / STEP) + 1;
+        double stepAngle = STEP / radius;
+        double firstAngle = clickAngle - (n / 2) * stepAngle;
+        double[] profile = new double[n];
+        double mean = 0;
+        for (int i = 0; i < n; i++) {
+            double angle = firstAngle + i * stepAngle;
+            double cos = Math.cos(angle);
+            double sin = Math.sin(angle);
+            double x = cx + radius * cos;
+            double y = cy + radius * sin;
+            profile[i] = Math.abs(-sin * interpolate(g[0], x, y) + cos * interpolate(g[1], x, y));
+            mean += profile[i];
+        }
+        mean /= n;
+
+        // The two strongest local maxima, at least a pixel apart
+        int first = strongestMaximum(profile, MIN_CONTRAST * mean, -1);
+        if (first < 0)
+            return null;
+        int second = strongestMaximum(profile, MIN_CONTRAST * mean, first);
+
+        // The wall nearest the click is snapped to; the click is at n / 2
+        int near = first;
+        int other = second;
+        if (second >= 0 && Math.abs(second - n / 2) < Math.abs(first - n / 2)) {
+            near = second;
+            other = first;
+        }
+        double nearAngle = firstAngle + (near + peakOffset(profile, near)) * stepAngle;
+        if (other < 0)
+            return new Edges(cx + radius * Math.cos(nearAngle), cy + radius * Math.sin(nearAngle), Double.NaN,
+                    Double.NaN);
+        double otherAngle = firstAngle + (other + peakOffset(profile, other)) * stepAngle;
+        return new Edges(cx + radius * Math.cos(nearAngle), cy + radius * Math.sin(nearAngle),
+                cx + radius * Math.cos(otherAngle), cy + radius * Math.sin(otherAngle));
+    }
+
+    /**
+     * @return The index of the highest local maximum of at least
+     *         {@code threshold} that is a pixel or more from {@code except}; or
+     *         -1 if there is none.
+     */
+    private static int strongestMaximum(double[] profile, double threshold, int except) {
+        int apart = (int) Math.ceil(1 / STEP);
+        int best = -1;
+        for (int i = 1; i < profile.length - 1; i++) {
+            if (profile[i] < threshold || profile[i] < profile[i - 1] || profile[i] <= profile[i + 1])
+                continue;
+            if (except >= 0 && Math.abs(i - except) < apart)
+                continue;
+            if (best < 0 || profile[i] > profile[best])
+                best = i;
+        }
+        return best;
+    }
+
+    /** @return The offset in [-0.5, 0.5] of the top of a parabola through a maximum and its neighbours. */
+    private static double peakOffset(double[] profile, int i) {
+        double left = profile[i - 1];
+        double right = profile[i + 1];
+        double curvature = left - 2 * profile[i] + right;
+        if (curvature >= 0)
+            return 0;
+        return Math.max(-0.5, Math.min(0.5, (left - right) / (2 * curvature)));
+    }
+
+    /**
+     * Bilinear interpolation at a position in site coordinates, where pixel
+     * centers are at half coordinates; 0 outside the image.
+     */
+    private double interpolate(FloatBuffer values, double x, double y) {
+        x -= 0.5;
+        y -= 0.5;
+        if (x < 0 || y < 0 || x > width - 1 || y > height - 1)
+            return 0;
+        int x0 = Math.min((int) x, width - 2);
+        int y0 = Math.min((int) y, height - 2);
+        double fx = x - x0;
+        double fy = y - y0;
+        int i = y0 * width + x0;
+        double topLeft = values.get(i);
+        double bottomLeft = values.get(i + width);
+        double top = topLeft + fx * (values.get(i + 1) - topLeft);
+        double bottom = bottomLeft + fx * (values.get(i + width + 1) - bottomLeft);
+        return top + fy * (bottom - top);
+    }
+
+    /** @return The horizontal and vertical Sobel gradients of the smoothed image, row by row. */
+    public static float[][] gradient(ImageProcessor ip) {
+        FloatProcessor fp = ip.convertToFloatProcessor();
+        fp.blurGaussian(SIGMA);
+        int width = fp.getWidth();
+        int height = fp.getHeight();
+        float[] v = (float[]) fp.getPixels();
+        float[] gx = new float[v.length];
+        float[] gy = new float[v.length];
+        for (int y = 1; y < height - 1; y++) {
+            int row = y * width;
+            for (int x = 1; x < width - 1; x++) {
+                int i = row + x;
+                float a = v[i - width - 1], b = v[i - width], c = v[i - width + 1];
+                float d = v[i - 1], f = v[i + 1];
+                float g = v[i + width - 1], h = v[i + width], k = v[i + width + 1];
+                gx[i] = (c + 2 * f + k - a - 2 * d - g) / 8;
+                gy[i] = (g + 2 * h + k - a - 2 * b - c) / 8;
+            }
+        }
+        return new float[][] { gx, gy };
+    }
+}
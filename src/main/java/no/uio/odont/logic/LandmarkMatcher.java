@@ -0,0 +1,279 @@
+package no.uio.odont.logic;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import ij.process.FHT;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Suggests site positions by normalized cross-correlation (NCC) of an image
+ * with the {@link LandmarkTemplates}.
+ *
+ * The search area is scaled to the template scale and transformed once with
+ * ImageJ's fast Hartley transform; each template, at each of a few scales, is
+ * correlated with it in the frequency domain. The correlations are normalized
+ * by the local image variance from summed-area tables, so the score is the NCC
+ * in [-1, 1] at every position. Templates and scales are matched in parallel
+ * on the common fork-join pool.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public class LandmarkMatcher {
+    /** Lowest NCC a suggestion is made for. */
+    public static final double MIN_SCORE = 0.3;
+    /** Largest side of the search area in template pixels, 100 mm. */
+    public static final int MAX_SEARCH_SIZE = 1024;
+
+    // Template sizes relative to the learned ones, for teeth of other sizes
+    private static final double[] SCALES = { 0.8, 1.0, 1.25 };
+
+    private final LandmarkTemplates templates;
+
+    // Transformed templates by site, jaw, scale and transform size; they only
+    // depend on the templates, so each is transformed once
+    private final Map<Long, FHT> kernels = new ConcurrentHashMap<>();
+
+    /** A suggested position of a site. */
+    public static final class Match {
+        public final int site;
+        public final double x;
+        public final double y;
+        public final double score;
+
+        Match(int site, double x, double y, double score) {
+            this.site = site;
+            this.x = x;
+            this.y = y;
+            this.score = score;
+        }
+    }
+
+    public LandmarkMatcher(LandmarkTemplates templates) {
+        this.templates = templates;
+    }
+
+    /**
+     * Finds the best position of every site there is a template for.
+     *
+     * @param ip          The image; only read.
+     * @param region      The part of the image to search, in its pixels. Parts
+     *                    larger than {@link #MAX_SEARCH_SIZE} are searched around
+     *                    their center.
+     * @param pixelSizeMm The image's pixel size.
+     * @param upperJaw    Which jaw the root is in.
+     * @return The positions in image pixels with a score of at least
+     *         {@link #MIN_SCORE}.
+     */
+    public List<Match> match(ImageProcessor ip, Rectangle region, double pixelSizeMm, boolean upperJaw) {
+        List<Match> matches = new ArrayList<>();
+        double imagePixels = LandmarkTemplates.PIXEL_SIZE_MM / pixelSizeMm;
+        Rectangle area = limit(region, (int) (MAX_SEARCH_SIZE * imagePixels));
+        area = area.intersection(new Rectangle(0, 0, ip.getWidth(), ip.getHeight()));
+        FloatProcessor search = LandmarkTemplates.toTemplateScale(ip, area, pixelSizeMm);
+        if (search == null)
+            return matches;
+        int width = search.getWidth();
+        int height = search.getHeight();
+        double scaleX = area.width / (double) width;
+        double scaleY = area.height / (double) height;
+
+        List<Integer> sites = new ArrayList<>();
+        for (int site : LandmarkTemplates.SITES) {
+            if (templates.getCount(site, upperJaw) > 0)
+                sites.add(site);
+        }
+        int largest = templateSize(SCALES.length - 1);
+        if (sites.isEmpty() || width < largest || height < largest)
+            return matches;
+
+        int power = 2;
+        while (power < Math.max(width, height))
+            power *= 2;
+        int n = power;
+        // Zero mean, so the float transform is not dominated by the mean level;
+        // the templates are zero mean, so the correlation does not change
+        FloatProcessor padded = new FloatProcessor(n, n);
+        padded.insert(search, 0, 0);
+        padded.setRoi(0, 0, width, height);
+        padded.subtract(search.getStatistics().mean);
+        padded.resetRoi();
+        FHT image = new FHT(padded);
+        image.transform();
+        double[] sum = summedArea(search, false);
+        double[] sumOfSquares = summedArea(search, true);
+
+        // One job per template and scale; keep the best position of each
+        int jobs = sites.size() * SCALES.length;
+        double[][] best = new double[jobs][];
+        IntStream.range(0, jobs).parallel().forEach(job -> {
+            int site = sites.get(job / SCALES.length);
+            int scale = job % SCALES.length;
+            FHT kernel = kernel(site, upperJaw, scale, n);
+            if (kernel != null)
+                best[job] = correlate(image, n, kernel, sum, sumOfSquares, width, height);
+        });
+
+        for (int t = 0; t < sites.size(); t++) {
+            double[] top = null;
+            for (int s = 0; s < SCALES.length; s++) {
+                double[] candidate = best[t * SCALES.length + s];
+                if (candidate != null && (top == null || candidate[2] > top[2]))
+                    top = candidate;
+            }
+            if (top != null && top[2] >= MIN_SCORE) {
+                matches.add(new Match(sites.get(t), area.x + top[0] * scaleX, area.y + top[1] * scaleY, top[2]));
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Returns a template at one of the {@link #SCALES}, normalized, padded to
+     * the transform size and transformed.
+     *
+     * @return The transformed template, or null if it is flat.
+     */
+    private FHT kernel(int site, boolean upperJaw, int scale, int n) {
+        long key = (((long) site * 2 + (upperJaw ? 0 : 1)) * SCALES.length + scale) << 32 | n;
+        FHT kernel = kernels.get(key);
+        if (kernel != null)
+            return kernel;
+
+        int size = LandmarkTemplates.SIZE;
+        int m = templateSize(scale);
+        FloatProcessor t = new FloatProcessor(size, size, templates.get(site, upperJaw), null);
+        if (m != size) {
+            t.setInterpolationMethod(ImageProcessor.BILINEAR);
+            t = (FloatProcessor) t.resize(m, m, true);
+        }
+        double[] values = new double[m * m];
+        float[] pixels = (float[]) t.getPixels();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = pixels[i];
+        }
+        if (!LandmarkTemplates.normalize(values))
+            return null;
+
+        FloatProcessor padded = new FloatProcessor(n, n);
+        float[] paddedPixels = (float[]) padded.getPixels();
+        for (int y = 0; y < m; y++) {
+            for (int x = 0; x < m; x++) {
+                paddedPixels[y * n + x] = (float) values[y * m + x];
+            }
+        }
+        kernel = new FHT(padded);
+        kernel.transform();
+        kernel.originalWidth = m;
+        kernels.put(key, kernel);
+        return kernel;
+    }
+
+    private static int templateSize(int scale) {
+        return (int) Math.round(LandmarkTemplates.SIZE * SCALES[scale]);
+    }
+
+    /**
+     * Correlates one transformed template with the transformed search area.
+     *
+     * @return {x, y, score} of the best position, the template's center in
+     *         search pixels; or null if there is none.
+     */
+    private static double[] correlate(FHT image, int n, FHT kernel, double[] sum, double[] sumOfSquares, int width,
+            int height) {
+        int m = kernel.originalWidth;
+        FHT product = image.conjugateMultiply(kernel);
+        product.inverseTransform();
+        float[] correlation = (float[]) product.getPixels();
+
+        // NCC at each position where the template lies inside the search area
+        double bestScore = -2;
+        int bestX = -1;
+        int bestY = -1;
+        for (int y = 0; y + m <= height; y++) {
+            for (int x = 0; x + m <= width; x++) {
+                double score = ncc(correlation, n, sum, sumOfSquares, width, m, x, y);
+                if (score > bestScore) {
+                    bestScore = score;
+                    bestX = x;
+                    bestY = y;
+                }
+            }
+        }
+        if (bestX < 0)
+            return null;
+
+        // Refine to a fraction of a pixel with a parabola through the neighbours
+        double dx = 0;
+        double dy = 0;
+        if (bestX > 0 && bestX + m < width) {
+            dx = peakOffset(ncc(correlation, n, sum, sumOfSquares, width, m, bestX - 1, bestY), bestScore,
+                    ncc(correlation, n, sum, sumOfSquares, width, m, bestX + 1, bestY));
+        }
+        if (bestY > 0 && bestY + m < height) {
+            dy = peakOffset(ncc(correlation, n, sum, sumOfSquares, width, m, bestX, bestY - 1), bestScore,
+                    ncc(correlation, n, sum, sumOfSquares, width, m, bestX, bestY + 1));
+        }
+        return new double[] { bestX + dx + m / 2.0, bestY + dy + m / 2.0, bestScore };
+    }
+
+    /** @return The NCC with the template's top left corner at (x, y), or -2 where the image is flat. */
+    private static double ncc(float[] correlation, int n, double[] sum, double[] sumOfSquares, int width, int m,
+            int x, int y) {
+        int stride = width + 1;
+        int a = y * stride + x;
+        int b = a + m;
+        int c = a + m * stride;
+        int d = c + m;
+        double count = m * m;
+        double s1 = sum[d] - sum[b] - sum[c] + sum[a];
+        double s2 = sumOfSquares[d] - sumOfSquares[b] - sumOfSquares[c] + sumOfSquares[a];
+        double variance = s2 - s1 * s1 / count;
+        if (variance <= 1e-6 * count)
+            return -2;
+        return correlation[y * n + x] / Math.sqrt(variance);
+    }
+
+    /** @return The offset in [-0.5, 0.5] of the top of a parabola through three values. */
+    private static double peakOffset(double left, double center, double right) {
+        double curvature = left - 2 * center + right;
+        if (curvature >= 0 || left < -1 || right < -1)
+            return 0;
+        return Math.max(-0.5, Math.min(0.5, (left - right) / (2 * curvature)));
+    }
+
+    /** @return A summed-area table of the values, or their squares, with a leading zero row and column. */
+    private static double[] summedArea(FloatProcessor fp, boolean squares) {
+        int width = fp.getWidth();
+        int height = fp.getHeight();
+        float[] pixels = (float[]) fp.getPixels();
+        int stride = width + 1;
+        double[] table = new double[stride * (height + 1)];
+        for (int y = 0; y < height; y++) {
+            double row = 0;
+            for (int x = 0; x < width; x++) {
+                double v = pixels[y * width + x];
+                row += squares ? v * v : v;
+                table[(y + 1) * stride + x + 1] = table[y * stride + x + 1] + row;
+            }
+        }
+        return table;
+    }
+
+    /** @return The part of a region no larger than {@code size} around its center. */
+    private static Rectangle limit(Rectangle region, int size) {
+        if (region.width <= size && region.height <= size)
+            return region;
+        int width = Math.min(region.width, size);
+        int height = Math.min(region.height, size);
+        return new Rectangle(region.x + (region.width - width) / 2, region.y + (region.height - height) / 2, width,
+                height);
+    }
+}
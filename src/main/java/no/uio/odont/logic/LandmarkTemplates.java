@@ -0,0 +1,237 @@
+package no.uio.odont.logic;
+
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import ij.measure.Calibration;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import no.uio.odont.model.SiteSchema;
+
+/**
+ * Appearance templates of the sites that {@link LandmarkMatcher} suggests,
+ * learned from roots measured before.
+ *
+ * A template is the mean of the image patches around a site, each made zero
+ * mean and unit norm, at a fixed scale of {@link #PIXEL_SIZE_MM} per pixel.
+ * Upper and lower jaw teeth point in opposite directions on a radiograph, so
+ * each site has a template per jaw.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public class LandmarkTemplates {
+    /** Sites templates are learned for and suggested. */
+    public static final int[] SITES = { SiteSchema.APEX, SiteSchema.APEX_GP, SiteSchema.CANAL_ENTRANCE,
+            SiteSchema.CEJ_MESIAL, SiteSchema.CEJ_DISTAL };
+
+    /** Size in mm of a template pixel; images are scaled to it before matching. */
+    public static final double PIXEL_SIZE_MM = 0.1;
+    /** Width and height of a template in pixels. */
+    public static final int SIZE = 48;
+
+    private static final int MAGIC = 0x454d544c; // "EMTL"
+    private static final int VERSION = 1;
+
+    // Sums of normalized patches and their counts, by site and jaw (0 upper, 1 lower)
+    private final double[][][] sums = new double[SiteSchema.COUNT][2][];
+    private final int[][] counts = new int[SiteSchema.COUNT][2];
+
+    /** @return true for the quadrants of the upper jaw, permanent or deciduous. */
+    public static boolean isUpperJaw(int quadrant) {
+        return quadrant == 1 || quadrant == 2 || quadrant == 5 || quadrant == 6;
+    }
+
+    /** @return Size of a pixel in mm, or NaN if the image is not calibrated in a length unit. */
+    public static double pixelSizeMm(Calibration cal) {
+        String unit = cal.getUnit();
+        if (!cal.scaled() || unit == null)
+            return Double.NaN;
+        switch (unit.toLowerCase()) {
+            case "mm":
+                return cal.pixelWidth;
+            case "cm":
+                return cal.pixelWidth * 10;
+            case "um":
+            case "µm":
+            case "micron":
+                return cal.pixelWidth / 1000;
+            default:
+                return Double.NaN;
+        }
+    }
+
+    /**
+     * Scales part of an image to {@link #PIXEL_SIZE_MM} per pixel, averaging
+     * pixels when scaling down.
+     *
+     * @param region Part of the image in its pixels; clipped to the image.
+     * @return The scaled part, or null if nothing of it is inside the image.
+     */
+    public static FloatProcessor toTemplateScale(ImageProcessor ip, Rectangle region, double pixelSizeMm) {
+        Rectangle clipped = region.intersection(new Rectangle(0, 0, ip.getWidth(), ip.getHeight()));
+        double factor = pixelSizeMm / PIXEL_SIZE_MM;
+        int width = (int) Math.round(clipped.width * factor);
+        int height = (int) Math.round(clipped.height * factor);
+        if (width < 1 || height < 1)
+            return null;
+        // Copied pixel by pixel: the image's own ROI may be in use on the event thread
+        FloatProcessor part = new FloatProcessor(clipped.width, clipped.height);
+        boolean color = ip instanceof ColorProcessor;
+        for (int y = 0; y < clipped.height; y++) {
+            for (int x = 0; x < clipped.width; x++) {
+                int px = clipped.x + x;
+                int py = clipped.y + y;
+                part.setf(x, y, color ? ip.getPixelValue(px, py) : ip.getf(px, py));
+            }
+        }
+        part.setInterpolationMethod(ImageProcessor.BILINEAR);
+        return (FloatProcessor) part.resize(width, height, true);
+    }
+
+    /**
+     * Adds the patch around a measured site to its template.
+     *
+     * @param x Site x-coordinate in image pixels.
+     * @param y Site y-coordinate in image pixels.
+     * @return false if the patch is not inside the image or is flat.
+     */
+    public synchronized boolean add(int site, boolean upperJaw, ImageProcessor ip, double x, double y,
+            double pixelSizeMm) {
+        double half = SIZE / 2.0 * PIXEL_SIZE_MM / pixelSizeMm;
+        Rectangle around = new Rectangle((int) Math.floor(x - half), (int) Math.floor(y - half),
+                (int) Math.ceil(2 * half) + 1, (int) Math.ceil(2 * half) + 1);
+        if (!new Rectangle(0, 0, ip.getWidth(), ip.getHeight()).contains(around))
+            return false;
+        FloatProcessor scaled = toTemplateScale(ip, around, pixelSizeMm);
+        if (scaled == null)
+            return false;
+
+        // The site's position in the scaled patch. Interpolation takes pixel
+        // centers at whole coordinates, sites at half coordinates.
+        double cx = (x - around.x) * scaled.getWidth() / around.width;
+        double cy = (y - around.y) * scaled.getHeight() / around.height;
+        double[] patch = new double[SIZE * SIZE];
+        for (int j = 0; j < SIZE; j++) {
+            for (int i = 0; i < SIZE; i++) {
+                patch[j * SIZE + i] = scaled.getInterpolatedValue(cx + i - SIZE / 2.0, cy + j - SIZE / 2.0);
+            }
+        }
+        if (!normalize(patch))
+            return false;
+
+        int jaw = upperJaw ? 0 : 1;
+        if (sums[site][jaw] == null)
+            sums[site][jaw] = new double[SIZE * SIZE];
+        for (int i = 0; i < patch.length; i++) {
+            sums[site][jaw][i] += patch[i];
+        }
+        counts[site][jaw]++;
+        return true;
+    }
+
+    /**
+     * @return The template of a site, zero mean and unit norm, row by row; or
+     *         null if no patch was learned for it.
+     */
+    public synchronized float[] get(int site, boolean upperJaw) {
+        double[] sum = sums[site][upperJaw ? 0 : 1];
+        if (sum == null)
+            return null;
+        double[] mean = sum.clone();
+        if (!normalize(mean))
+            return null;
+        float[] template = new float[mean.length];
+        for (int i = 0; i < mean.length; i++) {
+            template[i] = (float) mean[i];
+        }
+        return template;
+    }
+
+    /** @return Number of patches learned for a site. */
+    public synchronized int getCount(int site, boolean upperJaw) {
+        return counts[site][upperJaw ? 0 : 1];
+    }
+
+    /** Makes values zero mean and unit norm. @return false if they are all equal. */
+    static boolean normalize(double[] values) {
+        double mean = 0;
+        for (double v : values) {
+            mean += v;
+        }
+        mean /= values.length;
+        double norm = 0;
+        for (int i = 0; i < values.length; i++) {
+            values[i] -= mean;
+            norm += values[i] * values[i];
+        }
+        if (norm < 1e-12)
+            return false;
+        norm = Math.sqrt(norm);
+        for (int i = 0; i < values.length; i++) {
+            values[i] /= norm;
+        }
+        return true;
+    }
+
+    /** Writes the templates, replacing the file only once it is complete. */
+    public synchronized void save(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeDouble(PIXEL_SIZE_MM);
+            out.writeInt(SIZE);
+            for (int site = 0; site < SiteSchema.COUNT; site++) {
+                for (int jaw = 0; jaw < 2; jaw++) {
+                    out.writeInt(counts[site][jaw]);
+                    if (counts[site][jaw] == 0)
+                        continue;
+                    for (double v : sums[site][jaw]) {
+                        out.writeDouble(v);
+                    }
+                }
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads templates written by {@link #save(Path)}.
+     *
+     * @throws IOException if the file is missing or was written for another
+     *                     template size.
+     */
+    public static LandmarkTemplates load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readDouble() != PIXEL_SIZE_MM
+                    || in.readInt() != SIZE)
+                throw new IOException("not a landmark template file of this version");
+            LandmarkTemplates templates = new LandmarkTemplates();
+            for (int site = 0; site < SiteSchema.COUNT; site++) {
+                for (int jaw = 0; jaw < 2; jaw++) {
+                    int count = in.readInt();
+                    templates.counts[site][jaw] = count;
+                    if (count == 0)
+                        continue;
+                    double[] sum = new double[SIZE * SIZE];
+                    for (int i = 0; i < sum.length; i++) {
+                        sum[i] = in.readDouble();
+                    }
+                    templates.sums[site][jaw] = sum;
+                }
+            }
+            return templates;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package no.uio.odont.model;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import ij.ImagePlus;
+import ij.gui.ImageCanvas;
+import ij.gui.OvalRoi;
+import ij.gui.Overlay;
+import ij.gui.PointRoi;
+import ij.gui.Roi;
+
+/**
+ * The markers of previously saved roots drawn as one overlay element from
+ * cached bitmaps, instead of one ROI per dot and ring.
+ *
+ * ImageJ redraws every overlay ROI on each repaint, zoom and pan, which
+ * becomes sluggish on panoramic images with hundreds of saved roots. Saved
+ * markers never change, so they are rasterized once per zoom level into ARGB
+ * tiles of {@link #TILE_SIZE} screen pixels, and a repaint only draws the
+ * tiles in view. Tiles are created as they come into view and the least
+ * recently used are dropped beyond {@link #CACHE_BYTES}; tiles without
+ * markers take no memory.
+ *
+ * The layer follows its historic overlay, which only grows: markers added
+ * since the last use are picked up and only the tiles they touch are redrawn.
+ * ROIs other than point and oval markers are not rasterized.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public class HistoricMarkerLayer extends Roi {
+    private static final long serialVersionUID = 1L;
+
+    static final int TILE_SIZE = 256;
+    private static final long CACHE_BYTES = 64L * 1024 * 1024;
+    // Grid cell in image pixels for finding the markers of a tile
+    private static final int CELL_SIZE = 128;
+    private static final BufferedImage EMPTY = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+
+    private static final Map<Overlay, HistoricMarkerLayer> LAYERS = new WeakHashMap<>();
+
+    private final Overlay source;
+    private int synced;
+
+    // Markers as parallel arrays: dot centre or oval bounds in image pixels
+    private int count;
+    private boolean[] oval = new boolean[64];
+    private double[] x = new double[64];
+    private double[] y = new double[64];
+    private double[] w = new double[64];
+    private double[] h = new double[64];
+    private int[] rgb = new int[64];
+
+    private final int gridColumns;
+    private final int gridRows;
+    private int[][] grid;
+    private int[] gridCounts;
+
+    private final Map<Long, BufferedImage> tiles = new LinkedHashMap<>(64, 0.75f, true);
+    // Number of cached tiles per zoom level
+    private final Map<Float, Integer> magnifications = new HashMap<>();
+    private long cachedBytes;
+
+    private HistoricMarkerLayer(Overlay source, int imageWidth, int imageHeight) {
+        super(0, 0, imageWidth, imageHeight);
+        this.source = source;
+        gridColumns = imageWidth / CELL_SIZE + 1;
+        gridRows = imageHeight / CELL_SIZE + 1;
+        grid = new int[gridColumns * gridRows][];
+        gridCounts = new int[gridColumns * gridRows];
+    }
+
+    /**
+     * Returns the layer showing the markers of a historic overlay on an image,
+     * updated with the markers added to the overlay since it was last used.
+     * The same layer, with its cached tiles, is returned for every root measured
+     * on the image.
+     */
+    public static synchronized HistoricMarkerLayer of(Overlay historic, ImagePlus imp) {
+        HistoricMarkerLayer layer = LAYERS.get(historic);
+        if (layer == null || historic.size() < layer.synced || layer.getBounds().width != imp.getWidth()
+                || layer.getBounds().height != imp.getHeight()) {
+            layer = new HistoricMarkerLayer(historic, imp.getWidth(), imp.getHeight());
+            LAYERS.put(historic, layer);
+        }
+        layer.sync();
+        return layer;
+    }
+
+    /**
+     * @return The historic ROIs this layer cannot draw, to be shown as they are.
+     */
+    public List<Roi> getUnrasterized() {
+        List<Roi> rois = new ArrayList<>();
+        for (int i = 0; i < source.size(); i++) {
+            Roi roi = source.get(i);
+            if (!isMarker(roi))
+                rois.add(roi);
+        }
+        return rois;
+    }
+
+    /** @return Number of rasterized markers. */
+    public int getMarkerCount() {
+        return count;
+    }
+
+    private synchronized void sync() {
+        int first = count;
+        for (; synced < source.size(); synced++) {
+            Roi roi = source.get(synced);
+            if (roi instanceof PointRoi) {
+                PointRoi point = (PointRoi) roi;
+                double px = point.getFloatPolygon().xpoints[0];
+                double py = point.getFloatPolygon().ypoints[0];
+                // ImageJ draws points at integer coordinates in the pixel centre
+                if (px == Math.floor(px) && py == Math.floor(py)) {
+                    px += 0.5;
+                    py += 0.5;
+                }
+                add(false, px, py, 0, 0, roi.getStrokeColor());
+            } else if (roi instanceof OvalRoi) {
+                add(true, roi.getXBase(), roi.getYBase(), roi.getFloatWidth(), roi.getFloatHeight(),
+                        roi.getStrokeColor());
+            }
+        }
+        // Only the tiles reached by new markers are redrawn
+        for (int i = first; i < count; i++) {
+            invalidate(i);
+        }
+    }
+
+    private static boolean isMarker(Roi roi) {
+        return roi instanceof PointRoi || roi instanceof OvalRoi;
+    }
+
+    private void add(boolean isOval, double mx, double my, double mw, double mh, Color color) {
+        if (count == x.length) {
+            int capacity = count * 2;
+            oval = Arrays.copyOf(oval, capacity);
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            w = Arrays.copyOf(w, capacity);
+            h = Arrays.copyOf(h, capacity);
+            rgb = Arrays.copyOf(rgb, capacity);
+        }
+        oval[count] = isOval;
+        x[count] = mx;
+        y[count] = my;
+        w[count] = mw;
+        h[count] = mh;
+        rgb[count] = (color != null ? color : Roi.getColor()).getRGB();
+
+        // Register the marker in every grid cell it touches
+        int x0 = clamp((int) Math.floor(mx - 1) / CELL_SIZE, gridColumns);
+        int x1 = clamp((int) Math.floor(mx + mw + 1) / CELL_SIZE, gridColumns);
+        int y0 = clamp((int) Math.floor(my - 1) / CELL_SIZE, gridRows);
+        int y1 = clamp((int) Math.floor(my + mh + 1) / CELL_SIZE, gridRows);
+        for (int gy = y0; gy <= y1; gy++) {
+            for (int gx = x0; gx <= x1; gx++) {
+                int cell = gy * gridColumns + gx;
+                if (grid[cell] == null)
+                    grid[cell] = new int[4];
+                else if (gridCounts[cell] == grid[cell].length)
+                    grid[cell] = Arrays.copyOf(grid[cell], gridCounts[cell] * 2);
+                grid[cell][gridCounts[cell]++] = count;
+            }
+        }
+        count++;
+    }
+
+    private static int clamp(int value, int size) {
+        return Math.max(0, Math.min(size - 1, value));
+    }
+
+    /** Drops the cached tiles, at any zoom level, that a marker reaches into. */
+    private void invalidate(int marker) {
+        for (Float magnification : new ArrayList<>(magnifications.keySet())) {
+            double tile = TILE_SIZE / magnification;
+            // One screen pixel of margin for the stroke
+            double margin = 2 / magnification;
+            int firstColumn = Math.max(0, (int) Math.floor((x[marker] - margin) / tile));
+            int lastColumn = (int) Math.floor((x[marker] + w[marker] + margin) / tile);
+            int firstRow = Math.max(0, (int) Math.floor((y[marker] - margin) / tile));
+            int lastRow = (int) Math.floor((y[marker] + h[marker] + margin) / tile);
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn; column++) {
+                    removeTile(key(magnification, column, row));
+                }
+            }
+        }
+    }
+
+    private static long key(float magnification, int column, int row) {
+        return ((long) Float.floatToIntBits(magnification) << 32) | ((long) (column & 0xffff) << 16)
+                | (row & 0xffff);
+    }
+
+    private void removeTile(long key) {
+        BufferedImage removed = tiles.remove(key);
+        if (removed != null)
+            forget(key, removed);
+    }
+
+    /** Updates the bookkeeping for a tile no longer cached. */
+    private void forget(long key, BufferedImage tile) {
+        cachedBytes -= bytes(tile);
+        Float magnification = Float.intBitsToFloat((int) (key >>> 32));
+        int left = magnifications.get(magnification) - 1;
+        if (left == 0)
+            magnifications.remove(magnification);
+        else
+            magnifications.put(magnification, left);
+    }
+
+    @Override
+    public synchronized void drawOverlay(Graphics g) {
+        ImageCanvas canvas = ic != null ? ic : (imp != null ? imp.getCanvas() : null);
+        if (canvas == null || count == 0)
+            return;
+        double magnification = canvas.getMagnification();
+        Rectangle srcRect = canvas.getSrcRect();
+
+        // Visible part of the image in magnified image coordinates
+        Rectangle clip = g.getClipBounds();
+        if (clip == null)
+            clip = new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight());
+        double originX = srcRect.x * magnification;
+        double originY = srcRect.y * magnification;
+        int firstColumn = Math.max(0, (int) Math.floor((originX + clip.x) / TILE_SIZE));
+        int firstRow = Math.max(0, (int) Math.floor((originY + clip.y) / TILE_SIZE));
+        int lastColumn = (int) Math.floor((originX + clip.x + clip.width - 1) / TILE_SIZE);
+        int lastRow = (int) Math.floor((originY + clip.y + clip.height - 1) / TILE_SIZE);
+        lastColumn = Math.min(lastColumn, (int) Math.ceil(getBounds().width * magnification / TILE_SIZE));
+        lastRow = Math.min(lastRow, (int) Math.ceil(getBounds().height * magnification / TILE_SIZE));
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                BufferedImage tile = tile(magnification, column, row);
+                if (tile != EMPTY) {
+                    g.drawImage(tile, (int) Math.round(column * TILE_SIZE - originX),
+                            (int) Math.round(row * TILE_SIZE - originY), null);
+                }
+            }
+        }
+    }
+
+    private BufferedImage tile(double magnification, int column, int row) {
+        long key = key((float) magnification, column, row);
+        BufferedImage tile = tiles.get(key);
+        if (tile != null)
+            return tile;
+
+        tile = render(magnification, column, row);
+        tiles.put(key, tile);
+        cachedBytes += bytes(tile);
+        magnifications.merge((float) magnification, 1, Integer::sum);
+        Iterator<Map.Entry<Long, BufferedImage>> it = tiles.entrySet().iterator();
+        while (cachedBytes > CACHE_BYTES && it.hasNext()) {
+            Map.Entry<Long, BufferedImage> eldest = it.next();
+            if (eldest.getValue() == tile)
+                break;
+            it.remove();
+            forget(eldest.getKey(), eldest.getValue());
+        }
+        return tile;
+    }
+
+    /** Rasterizes the markers reaching into one tile, or returns EMPTY if there are none. */
+    BufferedImage render(double magnification, int column, int row) {
+        double tile = TILE_SIZE / magnification;
+        double left = column * tile;
+        double top = row * tile;
+        int gx0 = clamp((int) Math.floor(left / CELL_SIZE), gridColumns);
+        int gx1 = clamp((int) Math.floor((left + tile) / CELL_SIZE), gridColumns);
+        int gy0 = clamp((int) Math.floor(top / CELL_SIZE), gridRows);
+        int gy1 = clamp((int) Math.floor((top + tile) / CELL_SIZE), gridRows);
+
+        BufferedImage image = null;
+        Graphics2D g = null;
+        int offsetX = column * TILE_SIZE;
+        int offsetY = row * TILE_SIZE;
+        for (int gy = gy0; gy <= gy1; gy++) {
+            for (int gx = gx0; gx <= gx1; gx++) {
+                int cell = gy * gridColumns + gx;
+                for (int n = 0; n < gridCounts[cell]; n++) {
+                    int i = grid[cell][n];
+                    // A marker spanning several cells is drawn from its first cell in this tile only
+                    if (!isFirstCell(i, cell, gx0, gy0))
+                        continue;
+                    if (image == null) {
+                        image = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+                        g = image.createGraphics();
+                        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+                    }
+                    g.setColor(new Color(rgb[i], true));
+                    if (oval[i]) {
+                        int sx = (int) Math.round(x[i] * magnification) - offsetX;
+                        int sy = (int) Math.round(y[i] * magnification) - offsetY;
+                        int sw = (int) Math.round(w[i] * magnification);
+                        int sh = (int) Math.round(h[i] * magnification);
+                        g.drawOval(sx, sy, sw, sh);
+                    } else {
+                        int sx = (int) Math.floor(x[i] * magnification) - offsetX;
+                        int sy = (int) Math.floor(y[i] * magnification) - offsetY;
+                        g.fillRect(sx, sy, 1, 1);
+                    }
+                }
+            }
+        }
+        if (g != null)
+            g.dispose();
+        return image != null ? image : EMPTY;
+    }
+
+    /** @return true if {@code cell} is the first cell, within the tile's cells, that holds the marker. */
+    private boolean isFirstCell(int marker, int cell, int gx0, int gy0) {
+        int x0 = Math.max(gx0, clamp((int) Math.floor(x[marker] - 1) / CELL_SIZE, gridColumns));
+        int y0 = Math.max(gy0, clamp((int) Math.floor(y[marker] - 1) / CELL_SIZE, gridRows));
+        return cell == y0 * gridColumns + x0;
+    }
+
+    private static long bytes(BufferedImage tile) {
+        // Empty tiles are charged for their map entry, so their number stays bounded
+        return tile == EMPTY ? 1024 : 4L * tile.getWidth() * tile.getHeight();
+    }
+}
@@ -1,15 +1,18 @@
 package no.uio.odont.model;
 
+import java.awt.BasicStroke;
 import java.awt.Color;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 
 import ij.ImagePlus;
 import ij.gui.OvalRoi;
 import ij.gui.Overlay;
+import ij.gui.PointRoi;
 import ij.gui.Roi;
 import ij.measure.Calibration;
 
@@ -26,15 +29,36 @@ public class MeasurementRoot {
     private final ImagePlus imp;
     private final Calibration calibration;
     private final DecimalFormat formatter;
-    private final Map<String, MeasurementSite> sites = new LinkedHashMap<>();
+    // Sites by SiteSchema index: coordinates in pixels, and a bit per placed site
+    private final double[] siteX = new double[SiteSchema.COUNT];
+    private final double[] siteY = new double[SiteSchema.COUNT];
+    private final Color[] siteColors = new Color[SiteSchema.COUNT];
+    private int placed;
     private final Map<String, String> qualitativeObservations = new LinkedHashMap<>();
 
     // Store reference arcs separately so we can clear them easily
     private final Map<String, Roi> referenceRois = new LinkedHashMap<>();
 
+    // Dot and ring of each placed site as currently shown in the overlay
+    private final Roi[] siteDots = new Roi[SiteSchema.COUNT];
+    private final Roi[] siteRings = new Roi[SiteSchema.COUNT];
+
+    // Ghost markers of suggested positions of sites not placed yet
+    private final Roi[] suggestions = new Roi[SiteSchema.COUNT];
+    private final double[] suggestedX = new double[SiteSchema.COUNT];
+    private final double[] suggestedY = new double[SiteSchema.COUNT];
+
+    // Display-only image drawn behind all markers, e.g. a contrast preview
+    private Roi backdrop;
+
     // Historic ROIs from previously saved roots — shown persistently on the image
     private final Overlay baseOverlay;
 
+    // The overlay shown on the image: the historic markers followed by this
+    // root's sites and arcs. It is built once and changed in place on every
+    // click, so a click costs the same however many roots were saved before.
+    private final Overlay overlay = new Overlay();
+
     private int quadrantNumber = -1;
     private String toothNumber = "-1";
     private String rootName = "-1";
@@ -53,19 +77,51 @@ public class MeasurementRoot {
      *                            visible. Pass an empty Overlay for a clean start.
      */
     public MeasurementRoot(ImagePlus imp, char decimalFormatSymbol, Overlay baseOverlay) {
+        this(imp, decimalFormatSymbol, baseOverlay, false);
+    }
+
+    /**
+     * Constructs a new MeasurementRoot.
+     *
+     * @param imp                 The image being measured.
+     * @param decimalFormatSymbol The symbol to use for decimal separation.
+     * @param baseOverlay         Historic ROIs from previously saved roots to keep
+     *                            visible. Pass an empty Overlay for a clean start.
+     * @param rasterizeHistoric   true to show the historic markers as one cached
+     *                            {@link HistoricMarkerLayer} instead of one ROI each.
+     */
+    public MeasurementRoot(ImagePlus imp, char decimalFormatSymbol, Overlay baseOverlay, boolean rasterizeHistoric) {
         this.imp = imp;
         this.calibration = imp.getCalibration();
         this.baseOverlay = (baseOverlay != null) ? baseOverlay : new Overlay();
 
         // Initialize formatter based on calibration units
-        String pattern = calibration.getUnit().equals("pixels") ? "####" : "0.00";
+        String pattern = hasPixelCoordinates() ? "####" : "0.00";
         this.formatter = new DecimalFormat(pattern);
         DecimalFormatSymbols symbols = new DecimalFormatSymbols();
         symbols.setDecimalSeparator(decimalFormatSymbol);
         this.formatter.setDecimalFormatSymbols(symbols);
 
-        // Apply the base overlay immediately so historic markers stay visible
-        refreshOverlay();
+        // Prevent the Point Tool from picking up overlay markers as selections.
+        // Without this, clicking near a registered-site PointRoi removes it from
+        // the overlay and makes it the active selection, causing it to "disappear".
+        overlay.selectable(false);
+
+        // Show historic markers from previously saved roots first (behind current ones)
+        if (rasterizeHistoric) {
+            HistoricMarkerLayer layer = HistoricMarkerLayer.of(this.baseOverlay, imp);
+            overlay.add(layer);
+            for (Roi roi : layer.getUnrasterized()) {
+                overlay.add(roi);
+            }
+        } else {
+            for (int i = 0; i < this.baseOverlay.size(); i++) {
+                overlay.add(this.baseOverlay.get(i));
+            }
+        }
+
+        // Apply the overlay immediately so historic markers stay visible
+        imp.setOverlay(overlay);
     }
 
     public void setQuadrantNumber(int number) {
@@ -88,15 +144,136 @@ public class MeasurementRoot {
         return quadrantNumber > 0 && !"-1".equals(toothNumber) && !"-1".equals(rootName) && !"-1".equals(imageType);
     }
 
+    /**
+     * Places a site, replacing it if it was placed before.
+     *
+     * @param name A site name of the {@link SiteSchema}.
+     * @throws IllegalArgumentException if there is no site of that name.
+     */
     public void addSite(String name, double x, double y, Color color) {
-        MeasurementSite site = new MeasurementSite(x, y, color, formatter, calibration);
-        sites.put(name, site);
-        refreshOverlay();
+        int site = siteIndex(name);
+        siteX[site] = x;
+        siteY[site] = y;
+        siteColors[site] = color;
+
+        PointRoi roi = new PointRoi(x, y);
+        roi.setPointType(PointRoi.DOT);
+        roi.setSize(1); // small filled dot, no crosshair
+        roi.setName(name);
+        roi.setStrokeColor(color);
+        OvalRoi ring = siteRing(x, y);
+        ring.setName(name + "_ring");
+        ring.setStrokeColor(color);
+
+        if (hasSite(site)) {
+            replace(siteDots[site], roi);
+            replace(siteRings[site], ring);
+        } else {
+            overlay.add(roi);
+            overlay.add(ring);
+        }
+        siteDots[site] = roi;
+        siteRings[site] = ring;
+        placed |= 1 << site;
+        if (suggestions[site] != null) {
+            remove(suggestions[site]);
+            suggestions[site] = null;
+        }
+        repaint();
+    }
+
+    /**
+     * Shows a suggested position of a site not placed yet as a dashed ghost
+     * marker, replacing an earlier suggestion.
+     *
+     * @param site A {@link SiteSchema} index.
+     */
+    public void showSuggestion(int site, double x, double y, Color color) {
+        if (hasSite(site))
+            return;
+        int r = 8;
+        OvalRoi ghost = new OvalRoi(x - r, y - r, r * 2, r * 2);
+        ghost.setName(SiteSchema.name(site) + "_suggestion");
+        ghost.setStrokeColor(new Color(color.getRed(), color.getGreen(), color.getBlue(), 160));
+        ghost.setStroke(new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10, new float[] { 3, 3 }, 0));
+        if (suggestions[site] != null)
+            replace(suggestions[site], ghost);
+        else
+            overlay.add(ghost);
+        suggestions[site] = ghost;
+        suggestedX[site] = x;
+        suggestedY[site] = y;
+        repaint();
+    }
+
+    /** @return true if a position is suggested for a site not placed yet. */
+    public boolean hasSuggestion(int site) {
+        return suggestions[site] != null;
+    }
+
+    /** @return The suggested x-coordinate of a site in pixels. */
+    public double getSuggestedX(int site) {
+        return suggestedX[site];
+    }
+
+    /** @return The suggested y-coordinate of a site in pixels. */
+    public double getSuggestedY(int site) {
+        return suggestedY[site];
     }
 
+    /** Removes every ghost marker, e.g. when the root is identified again. */
+    public void clearSuggestions() {
+        boolean changed = false;
+        for (int site = 0; site < SiteSchema.COUNT; site++) {
+            if (suggestions[site] != null) {
+                remove(suggestions[site]);
+                suggestions[site] = null;
+                changed = true;
+            }
+        }
+        if (changed)
+            repaint();
+    }
+
+    /** Marks a site as missing. */
     public void removeSite(String name) {
-        sites.remove(name);
-        refreshOverlay();
+        int site = siteIndex(name);
+        if (suggestions[site] != null) {
+            remove(suggestions[site]);
+            suggestions[site] = null;
+            repaint();
+        }
+        if (!hasSite(site))
+            return;
+        placed &= ~(1 << site);
+        remove(siteDots[site]);
+        remove(siteRings[site]);
+        siteDots[site] = null;
+        siteRings[site] = null;
+        siteColors[site] = null;
+        repaint();
+    }
+
+    /** @param site A {@link SiteSchema} index. */
+    public boolean hasSite(int site) {
+        return (placed & (1 << site)) != 0;
+    }
+
+    /** @return The x-coordinate in pixels of a placed site. */
+    public double getSiteX(int site) {
+        return siteX[site];
+    }
+
+    /** @return The y-coordinate in pixels of a placed site. */
+    public double getSiteY(int site) {
+        return siteY[site];
+    }
+
+    private static int siteIndex(String name) {
+        int site = SiteSchema.indexOf(name);
+        if (site < 0)
+            throw new IllegalArgumentException("Unknown measurement site: " + name);
+        return site;
     }
 
     public void setQualitativeObservation(String key, String value) {
@@ -108,67 +285,134 @@ public class MeasurementRoot {
     }
 
     /**
-     * Rebuilds the overlay with all current sites and reference ROIs.
+     * Shows this root's overlay on the image again if it was replaced.
      *
      * This is public so the controller can call it after imp.deleteRoi() as a
      * defensive measure — in some ImageJ versions deleteRoi() can affect the overlay.
+     * It does not rebuild anything and costs nothing while the overlay is in place.
      */
     public void refreshOverlay() {
-        Overlay overlay = new Overlay();
+        if (imp.getOverlay() != overlay)
+            imp.setOverlay(overlay);
+    }
 
-        // Prevent the Point Tool from picking up overlay markers as selections.
-        // Without this, clicking near a registered-site PointRoi removes it from
-        // the overlay and makes it the active selection, causing it to "disappear".
-        overlay.selectable(false);
+    /**
+     * @return The markers of this root as drawn on the image: site dots and
+     *         rings, reference arcs and suggestions; a new list.
+     */
+    public List<Roi> getRois() {
+        List<Roi> rois = new ArrayList<>();
+        for (int site = 0; site < SiteSchema.COUNT; site++) {
+            if (siteDots[site] != null)
+                rois.add(siteDots[site]);
+            if (siteRings[site] != null)
+                rois.add(siteRings[site]);
+            if (suggestions[site] != null)
+                rois.add(suggestions[site]);
+        }
+        rois.addAll(referenceRois.values());
+        return rois;
+    }
 
-        // Show historic markers from previously saved roots first (behind current ones)
-        for (int i = 0; i < baseOverlay.size(); i++) {
-            overlay.add(baseOverlay.get(i));
+    /**
+     * Shows a display-only image behind all markers, e.g. a contrast-enhanced
+     * view, without changing the pixels sites are placed on.
+     *
+     * @param roi The image, covering the whole image; null removes it.
+     */
+    public void setBackdrop(Roi roi) {
+        if (roi == backdrop)
+            return;
+        if (backdrop != null)
+            remove(backdrop);
+        backdrop = roi;
+        if (roi != null) {
+            // First in the overlay, so it is drawn first
+            overlay.add(roi);
+            for (int i = overlay.size() - 1; i > 0; i--) {
+                overlay.set(overlay.get(i - 1), i);
+            }
+            overlay.set(roi, 0);
         }
+        repaint();
+    }
 
-        // Add all measurement sites (dot + ring per site)
-        for (Map.Entry<String, MeasurementSite> entry : sites.entrySet()) {
-            String name = entry.getKey();
-            MeasurementSite site = entry.getValue();
+    /** Repaints the image once after the overlay was changed in place. */
+    private void repaint() {
+        if (imp.getOverlay() != overlay)
+            imp.setOverlay(overlay);
+        else
+            imp.draw();
+    }
 
-            Roi roi = site.toRoi();
-            roi.setName(name);
-            roi.setStrokeColor(site.getColor());
+    /**
+     * Replaces one of this root's ROIs in the overlay, keeping its position.
+     * This root's ROIs are the last ones of the overlay, behind the historic
+     * markers, so searching from the end only passes over those.
+     */
+    private void replace(Roi old, Roi roi) {
+        int index = indexOf(old);
+        if (index >= 0)
+            overlay.set(roi, index);
+        else
             overlay.add(roi);
+    }
 
-            OvalRoi ring = siteRing(site);
-            ring.setName(name + "_ring");
-            ring.setStrokeColor(site.getColor());
-            overlay.add(ring);
-        }
+    private void remove(Roi old) {
+        int index = indexOf(old);
+        if (index >= 0)
+            overlay.remove(index);
+    }
 
-        // Add all reference arcs
-        for (Roi roi : referenceRois.values()) {
-            overlay.add(roi);
+    private int indexOf(Roi roi) {
+        for (int i = overlay.size() - 1; i >= 0; i--) {
+            if (overlay.get(i) == roi)
+                return i;
         }
-
-        imp.setOverlay(overlay);
+        return -1;
     }
 
     public void drawReferenceArcs(String siteName) {
-        removeReferenceArcs(); // Clear existing
-
-        MeasurementSite site = sites.get(siteName);
-        if (site == null)
+        int site = siteIndex(siteName);
+        if (!hasSite(site)) {
+            removeReferenceArcs();
             return;
+        }
 
-        double x = site.getX();
-        double y = site.getY();
+        double x = siteX[site];
+        double y = siteY[site];
 
         addReferenceArc("near", x, y, NEAR_DISTANCE);
         addReferenceArc("far", x, y, FAR_DISTANCE);
+        repaint();
+    }
 
-        refreshOverlay();
+    /**
+     * @param site A {@link SiteSchema} index.
+     * @return Radius in pixels of the reference arc a canal side site lies on,
+     *         or NaN for other sites.
+     */
+    public double getReferenceArcRadius(int site) {
+        switch (site) {
+            case SiteSchema.CANAL_1MM_MESIAL:
+            case SiteSchema.CANAL_1MM_DISTAL:
+                return NEAR_DISTANCE / calibration.pixelWidth;
+            case SiteSchema.CANAL_4MM_MESIAL:
+            case SiteSchema.CANAL_4MM_DISTAL:
+                return FAR_DISTANCE / calibration.pixelWidth;
+            default:
+                return Double.NaN;
+        }
     }
 
     public void removeReferenceArcs() {
+        if (referenceRois.isEmpty())
+            return;
+        for (Roi arc : referenceRois.values()) {
+            remove(arc);
+        }
         referenceRois.clear();
-        refreshOverlay();
+        repaint();
     }
 
     private void addReferenceArc(String name, double x, double y, double distanceMm) {
@@ -180,13 +424,51 @@ public class MeasurementRoot {
         arc.setName(name);
         arc.setStrokeColor(Color.RED);
 
-        referenceRois.put(name, arc);
+        // Moving the arcs replaces them where they are
+        Roi previous = referenceRois.put(name, arc);
+        if (previous != null)
+            replace(previous, arc);
+        else
+            overlay.add(arc);
+    }
+
+    /** @return The x-coordinate of a placed site in calibrated units. */
+    public double getCalibratedX(int site) {
+        return calibration.getX(siteX[site]);
     }
 
-    public String getSiteCoordinatesString(String siteName, char csvSeparator) {
-        return Optional.ofNullable(sites.get(siteName))
-                .map(site -> site.toCalibratedString(csvSeparator))
-                .orElse(MeasurementSite.getMissingString(csvSeparator));
+    /** @return The y-coordinate of a placed site in calibrated units. */
+    public double getCalibratedY(int site) {
+        return calibration.getY(siteY[site]);
+    }
+
+    /** @return true if the image is uncalibrated and coordinates are whole pixels. */
+    public boolean hasPixelCoordinates() {
+        return calibration.getUnit().equals("pixels");
+    }
+
+    public String getUnit() {
+        return calibration.getUnit();
+    }
+
+    public char getDecimalSeparator() {
+        return formatter.getDecimalFormatSymbols().getDecimalSeparator();
+    }
+
+    public int getQuadrantNumber() {
+        return quadrantNumber;
+    }
+
+    public String getToothNumber() {
+        return toothNumber;
+    }
+
+    public String getRootName() {
+        return rootName;
+    }
+
+    public String getImageType() {
+        return imageType;
     }
 
     public String toString(char csvSeparator) {
@@ -203,32 +485,52 @@ public class MeasurementRoot {
      * matches the appearance during measurement.
      */
     public void copySitesToOverlay(Overlay target) {
-        for (Map.Entry<String, MeasurementSite> entry : sites.entrySet()) {
-            String name = entry.getKey();
-            MeasurementSite site = entry.getValue();
-
-            Roi roi = site.toRoi();
-            roi.setName(name);
-            roi.setStrokeColor(site.getColor());
-            target.add(roi);
-
-            OvalRoi ring = siteRing(site);
-            ring.setName(name + "_ring");
-            ring.setStrokeColor(site.getColor());
-            target.add(ring);
+        for (int site = 0; site < SiteSchema.COUNT; site++) {
+            if (hasSite(site))
+                addMarker(target, SiteSchema.name(site), siteX[site], siteY[site], siteColors[site]);
         }
     }
 
-    /** Creates a small ring OvalRoi centered on the given site (fixed 5 px radius). */
-    private static OvalRoi siteRing(MeasurementSite site) {
+    /**
+     * Adds the dot + ring marker of one site to an overlay, e.g. when restoring
+     * roots saved in an earlier session.
+     *
+     * @param x Image x-coordinate in pixels.
+     * @param y Image y-coordinate in pixels.
+     */
+    public static void addMarker(Overlay target, String name, double x, double y, Color color) {
+        PointRoi roi = new PointRoi(x, y);
+        roi.setPointType(PointRoi.DOT);
+        roi.setSize(1);
+        roi.setName(name);
+        roi.setStrokeColor(color);
+        target.add(roi);
+
+        OvalRoi ring = siteRing(x, y);
+        ring.setName(name + "_ring");
+        ring.setStrokeColor(color);
+        target.add(ring);
+    }
+
+    /** Creates a small ring OvalRoi centered on the given point (fixed 5 px radius). */
+    private static OvalRoi siteRing(double x, double y) {
         int r = 5;
-        return new OvalRoi(site.getX() - r, site.getY() - r, r * 2, r * 2);
+        return new OvalRoi(x - r, y - r, r * 2, r * 2);
     }
 
     /**
-     * @return the Map of sites
+     * @return The placed sites by name, in row order. The map is created on
+     *         every call; use {@link #hasSite(int)} and the coordinate getters
+     *         where that matters.
      */
     public Map<String, MeasurementSite> getSites() {
+        Map<String, MeasurementSite> sites = new LinkedHashMap<>();
+        for (int site = 0; site < SiteSchema.COUNT; site++) {
+            if (hasSite(site)) {
+                sites.put(SiteSchema.name(site),
+                        new MeasurementSite(siteX[site], siteY[site], siteColors[site], formatter, calibration));
+            }
+        }
         return sites;
     }
 }
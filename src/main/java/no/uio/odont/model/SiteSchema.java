@@ -0,0 +1,86 @@
+package no.uio.odont.model;
+
+import java.awt.Color;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The fixed set of measurement sites, numbered densely in the order their
+ * coordinates appear in a result row.
+ *
+ * Site names are what the UI, the journal and the overlay use; the indices let
+ * a root keep its sites in plain arrays and write a row by walking them in
+ * order, without looking names up again.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public final class SiteSchema {
+    public static final int APEX = 0;
+    public static final int APEX_GP = 1;
+    public static final int CANAL_DEVIATION = 2;
+    public static final int CANAL_ENTRANCE = 3;
+    public static final int LESION_PERIPHERY = 4;
+    public static final int LESION_MESIAL = 5;
+    public static final int LESION_DISTAL = 6;
+    public static final int BONE_MESIAL = 7;
+    public static final int BONE_DISTAL = 8;
+    public static final int CEJ_MESIAL = 9;
+    public static final int CEJ_DISTAL = 10;
+    public static final int CANAL_1MM_MESIAL = 11;
+    public static final int CANAL_1MM_DISTAL = 12;
+    public static final int CANAL_4MM_MESIAL = 13;
+    public static final int CANAL_4MM_DISTAL = 14;
+
+    public static final int COUNT = 15;
+
+    private static final String[] NAMES = { "Apex", "Apex GP", "Root canal deviation", "Canal entrance center",
+            "Lesion periphery", "Lesion sideM", "Lesion sideD", "Bone levelM", "Bone levelD", "CEJM", "CEJD",
+            "Canal side 1mmM", "Canal side 1mmD", "Canal side 4mmM", "Canal side 4mmD" };
+
+    // Marker colors; the mesial and distal site of a pair share one
+    private static final Color PURPLE = new Color(128, 0, 128);
+    private static final Color TEAL = new Color(0, 128, 128);
+    private static final Color[] COLORS = { Color.RED, Color.BLUE, Color.GREEN, Color.YELLOW, Color.CYAN,
+            Color.ORANGE, Color.ORANGE, Color.MAGENTA, Color.MAGENTA, Color.PINK, Color.PINK, PURPLE, PURPLE, TEAL,
+            TEAL };
+
+    private static final Map<String, Integer> INDICES = new HashMap<>();
+
+    static {
+        for (int i = 0; i < COUNT; i++) {
+            INDICES.put(NAMES[i], i);
+        }
+    }
+
+    private SiteSchema() {
+    }
+
+    /** @return The name of a site, as shown on its button. */
+    public static String name(int site) {
+        return NAMES[site];
+    }
+
+    /** @return Site names in row order; a new array the caller may change. */
+    public static String[] names() {
+        return NAMES.clone();
+    }
+
+    /** @return The marker color of a site, as shown next to its buttons. */
+    public static Color color(int site) {
+        return COLORS[site];
+    }
+
+    /** @return The marker color of a site by name; red for an unknown name. */
+    public static Color color(String name) {
+        int site = indexOf(name);
+        return site >= 0 ? COLORS[site] : Color.RED;
+    }
+
+    /** @return The index of a site, or -1 if no site has this name. */
+    public static int indexOf(String name) {
+        Integer index = INDICES.get(name);
+        return index != null ? index : -1;
+    }
+}
@@ -0,0 +1,316 @@
+package no.uio.odont.ui;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Stroke;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+
+import ij.ImagePlus;
+import ij.gui.ImageCanvas;
+import ij.gui.OvalRoi;
+import ij.gui.PointRoi;
+import ij.gui.Roi;
+import ij.gui.Toolbar;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import no.uio.odont.model.MeasurementRoot;
+
+/**
+ * A magnifier window that follows the cursor over the image while the Point
+ * tool is selected, showing the root's markers and reference arcs.
+ *
+ * The magnified view is assembled from upscaled tiles of {@link #TILE_SIZE}
+ * screen pixels, sampled bicubically from the image through its display range
+ * and coloured by its LUT, inverted or not, and kept in an LRU cache per
+ * magnification, so moving the cursor only draws cached tiles and repaints the
+ * loupe, never the image window. Tiles are dropped when the source, its display
+ * range or its LUT changes.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public class Loupe extends JFrame {
+    private static final long serialVersionUID = 1L;
+
+    static final int TILE_SIZE = 128;
+    private static final int VIEW_SIZE = 256;
+    private static final long CACHE_BYTES = 16L * 1024 * 1024;
+    // Magnification relative to the image window, as a power of two within limits
+    private static final double RELATIVE_MAGNIFICATION = 4;
+    private static final int MAX_SCALE = 32;
+
+    private ImagePlus imp;
+    private final MouseAdapter tracker;
+    private final JPanel view;
+    private MeasurementRoot root;
+
+    // What is magnified: the image, or a display-only view of it
+    private ImageProcessor source;
+    private double displayMin;
+    private double displayMax;
+    // The source's color model, and the LUT tiles are colored by
+    private ColorModel colorModel;
+    private IndexColorModel lut;
+
+    // Cursor in image coordinates, NaN when it is outside the image
+    private double cursorX = Double.NaN;
+    private double cursorY = Double.NaN;
+
+    // Upscaled tiles by scale and position, least recently used first
+    private final Map<Long, BufferedImage> tiles = new LinkedHashMap<>(64, 0.75f, true);
+    private long cachedBytes;
+
+    public Loupe(ImagePlus imp) {
+        super("Loupe");
+        this.imp = imp;
+        this.source = imp.getProcessor();
+        view = new JPanel() {
+            @Override
+            protected void paintComponent(Graphics g) {
+                super.paintComponent(g);
+                paintView((Graphics2D) g);
+            }
+        };
+        view.setPreferredSize(new Dimension(VIEW_SIZE, VIEW_SIZE));
+        view.setBackground(Color.DARK_GRAY);
+        add(view);
+        setFocusableWindowState(false);
+        setAlwaysOnTop(true);
+        pack();
+
+        tracker = new MouseAdapter() {
+            @Override
+            public void mouseMoved(MouseEvent e) {
+                track(e);
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                track(e);
+            }
+
+            @Override
+            public void mouseExited(MouseEvent e) {
+                cursorX = Double.NaN;
+                view.repaint();
+            }
+        };
+        listen(imp);
+    }
+
+    /** Follows the cursor over another image instead, e.g. when measuring moves on to it. */
+    public synchronized void setImage(ImagePlus imp) {
+        unlisten(this.imp);
+        this.imp = imp;
+        source = imp.getProcessor();
+        root = null;
+        cursorX = Double.NaN;
+        clearTiles();
+        listen(imp);
+        view.repaint();
+    }
+
+    private void listen(ImagePlus imp) {
+        ImageCanvas canvas = imp.getCanvas();
+        if (canvas != null) {
+            canvas.addMouseMotionListener(tracker);
+            canvas.addMouseListener(tracker);
+        }
+    }
+
+    private void unlisten(ImagePlus imp) {
+        ImageCanvas canvas = imp.getCanvas();
+        if (canvas != null) {
+            canvas.removeMouseMotionListener(tracker);
+            canvas.removeMouseListener(tracker);
+        }
+    }
+
+    /** Shows the markers of the root being measured. */
+    public void setRoot(MeasurementRoot root) {
+        this.root = root;
+        view.repaint();
+    }
+
+    /**
+     * Magnifies a display-only view of the image instead of the image itself,
+     * e.g. a contrast preview of the same size; null magnifies the image.
+     */
+    public synchronized void setSource(ImageProcessor ip) {
+        source = ip != null ? ip : imp.getProcessor();
+        clearTiles();
+        view.repaint();
+    }
+
+    /** Stops following the cursor and closes the window. */
+    @Override
+    public void dispose() {
+        unlisten(imp);
+        super.dispose();
+    }
+
+    private void track(MouseEvent e) {
+        if (Toolbar.getToolId() != Toolbar.POINT || !isVisible())
+            return;
+        ImageCanvas canvas = imp.getCanvas();
+        cursorX = canvas.offScreenXD(e.getX());
+        cursorY = canvas.offScreenYD(e.getY());
+        view.repaint();
+    }
+
+    private void paintView(Graphics2D g) {
+        if (Double.isNaN(cursorX))
+            return;
+        ImageCanvas canvas = imp.getCanvas();
+        int scale = scale(canvas != null ? canvas.getMagnification() : 1);
+        int width = view.getWidth();
+        int height = view.getHeight();
+        // Image coordinates of the view's top left corner
+        double left = cursorX - width / 2.0 / scale;
+        double top = cursorY - height / 2.0 / scale;
+
+        // Tiles are aligned to the scaled image, so they are reused as the cursor moves
+        int firstColumn = (int) Math.floor(left * scale / TILE_SIZE);
+        int firstRow = (int) Math.floor(top * scale / TILE_SIZE);
+        int lastColumn = (int) Math.floor((left * scale + width) / TILE_SIZE);
+        int lastRow = (int) Math.floor((top * scale + height) / TILE_SIZE);
+        int offsetX = (int) Math.round(left * scale);
+        int offsetY = (int) Math.round(top * scale);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                BufferedImage tile = tile(scale, column, row);
+                if (tile != null)
+                    g.drawImage(tile, column * TILE_SIZE - offsetX, row * TILE_SIZE - offsetY, null);
+            }
+        }
+
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        if (root != null) {
+            for (Roi roi : root.getRois()) {
+                drawMarker(g, roi, scale, offsetX, offsetY);
+            }
+        }
+
+        // Cross hair at the cursor
+        g.setColor(new Color(255, 255, 255, 128));
+        g.drawLine(width / 2, 0, width / 2, height / 2 - 6);
+        g.drawLine(width / 2, height / 2 + 6, width / 2, height);
+        g.drawLine(0, height / 2, width / 2 - 6, height / 2);
+        g.drawLine(width / 2 + 6, height / 2, width, height / 2);
+    }
+
+    private static void drawMarker(Graphics2D g, Roi roi, int scale, int offsetX, int offsetY) {
+        Color color = roi.getStrokeColor() != null ? roi.getStrokeColor() : Roi.getColor();
+        g.setColor(color);
+        if (roi instanceof PointRoi) {
+            float[] xs = roi.getFloatPolygon().xpoints;
+            float[] ys = roi.getFloatPolygon().ypoints;
+            for (int i = 0; i < xs.length; i++) {
+                double x = xs[i] * scale - offsetX;
+                double y = ys[i] * scale - offsetY;
+                g.fill(new Ellipse2D.Double(x - 2, y - 2, 4, 4));
+            }
+        } else if (roi instanceof OvalRoi) {
+            Rectangle2D.Double b = roi.getFloatBounds();
+            Stroke stroke = roi.getStroke();
+            g.setStroke(stroke != null ? stroke : new BasicStroke(1));
+            g.draw(new Ellipse2D.Double(b.x * scale - offsetX, b.y * scale - offsetY, b.width * scale,
+                    b.height * scale));
+            g.setStroke(new BasicStroke(1));
+        }
+    }
+
+    /** @return Magnification of the loupe: a power of two, a few times that of the window. */
+    static int scale(double windowMagnification) {
+        int scale = 2;
+        while (scale < RELATIVE_MAGNIFICATION * windowMagnification && scale < MAX_SCALE) {
+            scale *= 2;
+        }
+        return scale;
+    }
+
+    /** Returns a tile of the scaled image, upscaling it if it is not cached. */
+    private synchronized BufferedImage tile(int scale, int column, int row) {
+        ImageProcessor ip = source;
+        if (source == imp.getProcessor() && (imp.getDisplayRangeMin() != displayMin
+                || imp.getDisplayRangeMax() != displayMax)) {
+            displayMin = imp.getDisplayRangeMin();
+            displayMax = imp.getDisplayRangeMax();
+            clearTiles();
+        }
+        if (!(ip instanceof ColorProcessor) && ip.getColorModel() != colorModel) {
+            colorModel = ip.getColorModel();
+            lut = ip.getLut();
+            clearTiles();
+        }
+        long key = ((long) scale << 56) ^ ((long) (column & 0xfffffff) << 28) ^ (row & 0xfffffff);
+        BufferedImage tile = tiles.get(key);
+        if (tile != null)
+            return tile;
+
+        Rectangle bounds = new Rectangle(0, 0, ip.getWidth() * scale, ip.getHeight() * scale);
+        if (!bounds.intersects(new Rectangle(column * TILE_SIZE, row * TILE_SIZE, TILE_SIZE, TILE_SIZE)))
+            return null;
+        tile = ip instanceof ColorProcessor ? new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_BYTE_GRAY)
+                : new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_BYTE_INDEXED, lut);
+        byte[] pixels = ((DataBufferByte) tile.getRaster().getDataBuffer()).getData();
+        boolean display = ip == imp.getProcessor() && !(ip instanceof ColorProcessor);
+        double min = display ? displayMin : 0;
+        double range = display ? displayMax - displayMin : 255;
+        if (range <= 0)
+            range = 1;
+        for (int y = 0; y < TILE_SIZE; y++) {
+            // Sample at the output pixel's center; image pixel centers are at whole coordinates
+            double sy = (row * TILE_SIZE + y + 0.5) / scale - 0.5;
+            for (int x = 0; x < TILE_SIZE; x++) {
+                double sx = (column * TILE_SIZE + x + 0.5) / scale - 0.5;
+                double v;
+                if (sx < -0.5 || sy < -0.5 || sx > ip.getWidth() - 0.5 || sy > ip.getHeight() - 0.5)
+                    v = 0;
+                else if (ip instanceof ColorProcessor)
+                    v = brightness(((ColorProcessor) ip).getInterpolatedRGBPixel(sx, sy));
+                else
+                    v = (ip.getBicubicInterpolatedPixel(sx, sy, ip) - min) * 255 / range;
+                pixels[y * TILE_SIZE + x] = (byte) Math.max(0, Math.min(255, Math.round(v)));
+            }
+        }
+
+        tiles.put(key, tile);
+        cachedBytes += TILE_SIZE * TILE_SIZE;
+        Iterator<BufferedImage> it = tiles.values().iterator();
+        while (cachedBytes > CACHE_BYTES && it.hasNext()) {
+            it.next();
+            it.remove();
+            cachedBytes -= TILE_SIZE * TILE_SIZE;
+        }
+        return tile;
+    }
+
+    private static double brightness(int rgb) {
+        return 0.299 * ((rgb >> 16) & 0xff) + 0.587 * ((rgb >> 8) & 0xff) + 0.114 * (rgb & 0xff);
+    }
+
+    private void clearTiles() {
+        tiles.clear();
+        cachedBytes = 0;
+    }
+}
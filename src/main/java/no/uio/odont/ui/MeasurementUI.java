@@ -3,7 +3,11 @@ package no.uio.odont.ui;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.WindowEvent;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import javax.swing.*;
 
 import ij.IJ;
@@ -12,6 +16,7 @@ import ij.gui.GUI;
 import ij.gui.GenericDialog;
 import ij.plugin.frame.PlugInFrame;
 import no.uio.odont.model.MeasurementRoot;
+import no.uio.odont.model.SiteSchema;
 import no.uio.odont.util.AppConfig;
 
 /**
@@ -38,9 +43,10 @@ public class MeasurementUI extends PlugInFrame implements ActionListener {
     // Constants from original app for site names
     private final String[] rootNames = { "1", "B", "L", "M", "D", "MB", "ML", "DB", "DL", "X" };
     private final String[] imageTypes = { "Preop", "Compl", "Ctrl", "Other" };
-    private final String[] singleSitesNames = { "Apex", "Apex GP", "Root canal deviation", "Canal entrance center",
-            "Lesion periphery" };
-    private final String[] mdSitesNames = { "Lesion side", "Bone level", "CEJ", "Canal side 1mm", "Canal side 4mm" };
+    private static final String[] singleSitesNames = { "Apex", "Apex GP", "Root canal deviation",
+            "Canal entrance center", "Lesion periphery" };
+    private static final String[] mdSitesNames = { "Lesion side", "Bone level", "CEJ", "Canal side 1mm",
+            "Canal side 4mm" };
     private final String[] qualitativeYnNames = { "Apical voids", "Coronal voids", "Orifice plug",
             "Apical file fracture", "Coronal file fracture", "Apical perforation", "Coronal perforation", "Post" };
     private final String[][] qualitativeOtherItems = {
@@ -50,11 +56,6 @@ public class MeasurementUI extends PlugInFrame implements ActionListener {
             { "Support/load", "NS", "Two appr", "One appr", "No appr", "Bridge abutment" }
     };
 
-    private final Color[][] siteColors = {
-            { Color.RED, Color.BLUE, Color.GREEN, Color.YELLOW, Color.CYAN }, // Single sites
-            { Color.ORANGE, Color.MAGENTA, Color.PINK, new Color(128, 0, 128), new Color(0, 128, 128) } // MD sites
-    };
-
     /**
      * Interface for the controller to listen to UI events.
      */
@@ -72,6 +73,14 @@ public class MeasurementUI extends PlugInFrame implements ActionListener {
         void onQualitativeSelected(String key, String value);
 
         void onIdentificationChanged(int quadrant, String tooth, String root, String imageType);
+
+        void onContrastPreviewChanged(boolean shown);
+
+        void onLoupeChanged(boolean shown);
+
+        void onWindowActivated();
+
+        void onWindowClosed();
     }
 
     public MeasurementUI(String title, ControlListener listener, AppConfig config) {
@@ -298,7 +307,7 @@ public class MeasurementUI extends PlugInFrame implements ActionListener {
 
             // Color label at start
             c.gridx = 0;
-            p.add(createColorLabel(siteColors[0][i]), c);
+            p.add(createColorLabel(SiteSchema.color(singleSitesNames[i])), c);
 
             // Toggle button
             c.gridx = 1;
@@ -318,7 +327,7 @@ public class MeasurementUI extends PlugInFrame implements ActionListener {
 
             // Color label at end (column 5 per v1.5)
             c.gridx = 5;
-            p.add(createColorLabel(siteColors[0][i]), c);
+            p.add(createColorLabel(SiteSchema.color(singleSitesNames[i])), c);
         }
         return p;
     }
@@ -347,7 +356,7 @@ public class MeasurementUI extends PlugInFrame implements ActionListener {
 
             // Color label start
             c.gridx = 0;
-            p.add(createColorLabel(siteColors[1][i]), c);
+            p.add(createColorLabel(SiteSchema.color(mdSitesNames[i] + "M")), c);
 
             // Mesial
             c.gridx = 1;
@@ -381,7 +390,7 @@ public class MeasurementUI extends PlugInFrame implements ActionListener {
 
             // Color label end
             c.gridx = 5;
-            p.add(createColorLabel(siteColors[1][i]), c);
+            p.add(createColorLabel(SiteSchema.color(mdSitesNames[i] + "M")), c);
         }
         return p;
     }
@@ -508,7 +517,7 @@ public class MeasurementUI extends PlugInFrame implements ActionListener {
             listener.onResetRequested();
         } else if (cmd.startsWith("SITE_")) {
             String siteName = cmd.substring(5);
-            Color color = getSiteColor(siteName);
+            Color color = SiteSchema.color(siteName);
             listener.onSiteSelected(siteName, color);
         } else if (cmd.startsWith("MISS_")) {
             listener.onMissingSiteSelected(cmd.substring(5));
@@ -527,7 +536,15 @@ public class MeasurementUI extends PlugInFrame implements ActionListener {
         String it = getSelectedActionCommand(iTypeGroup, "-1");
 
         listener.onIdentificationChanged(q, t, r, it);
+        updateMeasurementsEnabled();
+    }
 
+    /** Unlocks the measurement panels once the root is fully identified, and locks them otherwise. */
+    private void updateMeasurementsEnabled() {
+        int q = getSelectedValue(qNumberGroup, -1);
+        String t = getSelectedActionCommand(tNumberGroup, "-1");
+        String r = getSelectedActionCommand(rNumberGroup, "-1");
+        String it = getSelectedActionCommand(iTypeGroup, "-1");
         boolean isFullyIdentified = (q != -1 && !"-1".equals(t) && !"-1".equals(r) && !"-1".equals(it));
 
         Component[] comps = this.getComponents();
@@ -569,19 +586,17 @@ public class MeasurementUI extends PlugInFrame implements ActionListener {
         return cmd;
     }
 
-    private Color getSiteColor(String name) {
-        for (int i = 0; i < singleSitesNames.length; i++) {
-            if (singleSitesNames[i].equals(name))
-                return siteColors[0][i];
-        }
-        for (int i = 0; i < mdSitesNames.length; i++) {
-            if (name.startsWith(mdSitesNames[i]))
-                return siteColors[1][i];
-        }
-        return Color.RED;
+    public void reset() {
+        clearSelections();
+        commentsField.setText("");
+
+        // clearSelection() does NOT fire action events, so updateIdentification()
+        // is never triggered automatically. Call it explicitly so the measurement
+        // panels are re-disabled until the user re-identifies the root.
+        updateIdentification();
     }
 
-    public void reset() {
+    private void clearSelections() {
         // Clear all selections
         qNumberGroup.clearSelection();
         tNumberGroup.clearSelection();
@@ -624,15 +639,63 @@ public class MeasurementUI extends PlugInFrame implements ActionListener {
                     bg.clearSelection();
             }
         }
+    }
 
-        commentsField.setText("");
-
-        // clearSelection() does NOT fire action events, so updateIdentification()
-        // is never triggered automatically. Call it explicitly so the measurement
-        // panels are re-disabled until the user re-identifies the root.
+    /**
+     * Selects the buttons with the given action commands without notifying the
+     * listener of each, e.g. to show a root restored from the session journal,
+     * then updates the identification once.
+     */
+    public void restoreSelections(List<String> actionCommands) {
+        select(actionCommands);
         updateIdentification();
     }
 
+    /**
+     * Shows the selections and comments of another root in place of the
+     * current ones, e.g. when the window switches to another image, without
+     * notifying the listener.
+     */
+    public void showSelections(List<String> actionCommands, String comments) {
+        clearSelections();
+        select(actionCommands);
+        commentsField.setText(comments);
+        updateMeasurementsEnabled();
+    }
+
+    private void select(List<String> actionCommands) {
+        Map<String, AbstractButton> buttons = new HashMap<>();
+        collectButtons(this, buttons);
+        for (String cmd : actionCommands) {
+            AbstractButton button = buttons.get(cmd);
+            if (button != null)
+                button.setSelected(true);
+        }
+    }
+
+    private static void collectButtons(Container container, Map<String, AbstractButton> buttons) {
+        for (Component c : container.getComponents()) {
+            if (c instanceof AbstractButton) {
+                AbstractButton button = (AbstractButton) c;
+                buttons.put(button.getActionCommand(), button);
+            } else if (c instanceof Container) {
+                collectButtons((Container) c, buttons);
+            }
+        }
+    }
+
+    @Override
+    public void windowActivated(WindowEvent e) {
+        super.windowActivated(e);
+        listener.onWindowActivated();
+    }
+
+    @Override
+    public void windowClosed(WindowEvent e) {
+        super.windowClosed(e);
+        listener.onWindowClosed();
+    }
+
     public String getComments() {
         return commentsField.getText();
     }
@@ -644,6 +707,15 @@ public class MeasurementUI extends PlugInFrame implements ActionListener {
         about.addActionListener(e -> showAbout());
         m.add(about);
         mb.add(m);
+
+        Menu view = new Menu("View");
+        CheckboxMenuItem contrast = new CheckboxMenuItem("Contrast preview (CLAHE)");
+        contrast.addItemListener(e -> listener.onContrastPreviewChanged(contrast.getState()));
+        view.add(contrast);
+        CheckboxMenuItem loupe = new CheckboxMenuItem("Loupe");
+        loupe.addItemListener(e -> listener.onLoupeChanged(loupe.getState()));
+        view.add(loupe);
+        mb.add(view);
         setMenuBar(mb);
     }
 
@@ -10,6 +10,7 @@ import java.util.Locale;
 import java.text.DecimalFormatSymbols;
 
 import ij.IJ;
+import ij.Prefs;
 
 /**
  * Handles application configuration loading and provides access to settings.
@@ -22,11 +23,24 @@ public class AppConfig {
     private String operator;
     private char decimalSeparator;
     private char csvSeparator;
-    private String measurementStore; // "top" or "local"
+    private String measurementStore; // "top", "shared" or "local"
     private boolean saveScoredCopy;
+    private long storeSyncIntervalMs;
+    private boolean binaryStore;
+    private boolean rasterizeHistoricMarkers;
+    private int worklistPrefetchCount;
+    private long worklistPrefetchMb;
+    private boolean snapCanalSides;
+    private long rasterCacheMb;
+    private boolean persistentWindow;
 
     private static final String DEFAULT_STORAGE_MODE = "local";
+    private static final long DEFAULT_STORE_SYNC_INTERVAL_MS = 1000;
+    private static final int DEFAULT_WORKLIST_PREFETCH_COUNT = 2;
+    private static final long DEFAULT_WORKLIST_PREFETCH_MB = 512;
+    private static final long DEFAULT_RASTER_CACHE_MB = 1024;
     private static final String CONFIG_FILE_NAME = "Endodontic_Measurements.cfg";
+    private static final String DATA_DIRECTORY_NAME = "Endodontic_Measurements";
 
     public AppConfig() {
         setDefaults();
@@ -39,6 +53,14 @@ public class AppConfig {
         updateCsvSeparator();
         this.measurementStore = DEFAULT_STORAGE_MODE;
         this.saveScoredCopy = true;
+        this.storeSyncIntervalMs = DEFAULT_STORE_SYNC_INTERVAL_MS;
+        this.binaryStore = false;
+        this.rasterizeHistoricMarkers = false;
+        this.worklistPrefetchCount = DEFAULT_WORKLIST_PREFETCH_COUNT;
+        this.worklistPrefetchMb = DEFAULT_WORKLIST_PREFETCH_MB;
+        this.snapCanalSides = true;
+        this.rasterCacheMb = DEFAULT_RASTER_CACHE_MB;
+        this.persistentWindow = true;
     }
 
     private void loadConfig() {
@@ -113,6 +135,46 @@ public class AppConfig {
             case "save_scored_image_copy":
                 this.saveScoredCopy = Boolean.parseBoolean(value);
                 break;
+            case "store_sync_interval_ms":
+                try {
+                    this.storeSyncIntervalMs = Math.max(0, Long.parseLong(value));
+                } catch (NumberFormatException e) {
+                    IJ.log("Invalid store_sync_interval_ms: " + value);
+                }
+                break;
+            case "binary_store":
+                this.binaryStore = Boolean.parseBoolean(value);
+                break;
+            case "rasterize_historic_markers":
+                this.rasterizeHistoricMarkers = Boolean.parseBoolean(value);
+                break;
+            case "worklist_prefetch_count":
+                try {
+                    this.worklistPrefetchCount = Math.max(0, Integer.parseInt(value));
+                } catch (NumberFormatException e) {
+                    IJ.log("Invalid worklist_prefetch_count: " + value);
+                }
+                break;
+            case "worklist_prefetch_mb":
+                try {
+                    this.worklistPrefetchMb = Math.max(0, Long.parseLong(value));
+                } catch (NumberFormatException e) {
+                    IJ.log("Invalid worklist_prefetch_mb: " + value);
+                }
+                break;
+            case "snap_canal_sides":
+                this.snapCanalSides = Boolean.parseBoolean(value);
+                break;
+            case "raster_cache_mb":
+                try {
+                    this.rasterCacheMb = Math.max(0, Long.parseLong(value));
+                } catch (NumberFormatException e) {
+                    IJ.log("Invalid raster_cache_mb: " + value);
+                }
+                break;
+            case "persistent_window":
+                this.persistentWindow = Boolean.parseBoolean(value);
+                break;
         }
     }
 
@@ -140,7 +202,87 @@ public class AppConfig {
         return saveScoredCopy;
     }
 
+    /**
+     * @return Maximum time in ms a saved row may stay unsynced to disk; 0 syncs
+     *         after every write.
+     */
+    public long getStoreSyncIntervalMs() {
+        return storeSyncIntervalMs;
+    }
+
+    /**
+     * @return true to mirror every saved row into a binary columnar store next to
+     *         the CSV file.
+     */
+    public boolean isBinaryStore() {
+        return binaryStore;
+    }
+
+    /**
+     * @return true to draw the markers of previously saved roots from cached
+     *         bitmaps, which keeps zooming and panning smooth on images with
+     *         many saved roots.
+     */
+    public boolean isRasterizeHistoricMarkers() {
+        return rasterizeHistoricMarkers;
+    }
+
+    /**
+     * @return Number of worklist images to open ahead of the one being measured.
+     */
+    public int getWorklistPrefetchCount() {
+        return worklistPrefetchCount;
+    }
+
+    /**
+     * @return Memory in bytes the worklist images opened ahead may take together.
+     */
+    public long getWorklistPrefetchBytes() {
+        return worklistPrefetchMb * 1024 * 1024;
+    }
+
+    /**
+     * @return true to propose the canal wall where it crosses the reference arc
+     *         for canal side points clicked near the arc; the point itself is
+     *         only moved once the reader accepts the proposal.
+     */
+    public boolean isSnapCanalSides() {
+        return snapCanalSides;
+    }
+
+    /**
+     * @return Disk space in bytes that rasters derived from images, such as
+     *         gradients, may take in the data directory.
+     */
+    public long getRasterCacheBytes() {
+        return rasterCacheMb * 1024 * 1024;
+    }
+
+    /**
+     * @return true to keep one plugin window open for all images, switching to
+     *         each image the plugin is run on, instead of one window per image.
+     */
+    public boolean isPersistentWindow() {
+        return persistentWindow;
+    }
+
+    /**
+     * @return Directory for the plugin's own working files, such as session
+     *         journals, in the ImageJ preferences folder.
+     */
+    public Path getDataDirectory() {
+        return Paths.get(Prefs.getPrefsDir(), DATA_DIRECTORY_NAME);
+    }
+
     public boolean isLocalStore() {
         return "local".equalsIgnoreCase(measurementStore);
     }
+
+    /**
+     * @return true for the global store written concurrently by several
+     *         workstations, which is locked and journaled on every write.
+     */
+    public boolean isSharedStore() {
+        return "shared".equalsIgnoreCase(measurementStore);
+    }
 }
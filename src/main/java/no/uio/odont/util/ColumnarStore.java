@@ -0,0 +1,178 @@
+package no.uio.odont.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import ij.IJ;
+
+/**
+ * Binary columnar mirror of a result file, written next to the CSV when
+ * {@code binary_store: true}.
+ *
+ * The file consists of a header, a sequence of self-describing blocks (one per
+ * row group of {@link ColumnarStoreWriter#ROW_GROUP_ROWS} rows) and a footer
+ * indexing the blocks. Each block holds, for its rows:
+ * <ul>
+ * <li>the timestamp as epoch milliseconds ({@code long}),</li>
+ * <li>the quadrant ({@code int}),</li>
+ * <li>one dictionary code ({@code int}) per text column: path, operator, image
+ * type, unit, tooth, root, the 13 qualitative observations and the comment,</li>
+ * <li>one {@code double} column per site coordinate, x and y for each site in
+ * row order ({@link MeasurementRow#SITE_NAMES}), NaN when missing.</li>
+ * </ul>
+ * Dictionary entries first used in a block are stored in that block, so the
+ * dictionaries are the concatenation of all blocks' entries. All values are
+ * little-endian and every column starts on an 8-byte boundary, so a
+ * memory-mapped file can be scanned through typed buffer views without copying.
+ *
+ * Layout: {@code header | block* | footer | trailer}. The footer lists block
+ * offsets and row counts; the 16-byte trailer holds the footer offset and an end
+ * marker. Appending overwrites footer and trailer; if a crash leaves them
+ * incomplete the blocks are found again by scanning from the header.
+ *
+ * Usage: {@code ColumnarStore convert <Measurements.csv>} builds the store from
+ * an existing result file; {@code ColumnarStore stats <file>} scans it.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public final class ColumnarStore {
+    public static final String EXTENSION = ".emcol";
+
+    static final long FILE_MAGIC = magic("EMCOLS01");
+    static final long END_MAGIC = magic("EMCOLEND");
+    static final int BLOCK_MAGIC = (int) magic("BLK1");
+    static final int FOOTER_MAGIC = (int) magic("FTR1");
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int BLOCK_HEADER_SIZE = 24;
+    static final int FOOTER_ENTRY_SIZE = 16;
+    static final int TRAILER_SIZE = 16;
+
+    // Dictionary-encoded text columns
+    public static final int PATH = 0;
+    public static final int OPERATOR = 1;
+    public static final int IMAGE_TYPE = 2;
+    public static final int UNIT = 3;
+    public static final int TOOTH = 4;
+    public static final int ROOT = 5;
+    public static final int FIRST_QUALITATIVE = 6;
+    public static final int COMMENT = FIRST_QUALITATIVE + MeasurementRow.QUALITATIVE_FIELDS;
+    public static final int TEXT_COLUMNS = COMMENT + 1;
+
+    /** Coordinate columns, x and y for every site. */
+    public static final int COORDINATE_COLUMNS = 2 * MeasurementRow.SITE_COUNT;
+
+    private ColumnarStore() {
+    }
+
+    /** The binary store belonging to a result file, e.g. Measurements.emcol. */
+    public static Path storeFor(Path csv) {
+        String name = csv.getFileName().toString();
+        int dotIndex = name.lastIndexOf('.');
+        return csv.resolveSibling((dotIndex > 0 ? name.substring(0, dotIndex) : name) + EXTENSION);
+    }
+
+    /** Coordinate column of a site, in row order. */
+    public static int coordinateColumn(int site, boolean y) {
+        return 2 * site + (y ? 1 : 0);
+    }
+
+    /** ASCII text read as a little-endian number, so the file shows it verbatim. */
+    private static long magic(String text) {
+        long value = 0;
+        for (int i = text.length() - 1; i >= 0; i--) {
+            value = (value << 8) | text.charAt(i);
+        }
+        return value;
+    }
+
+    static int align8(int n) {
+        return (n + 7) & ~7;
+    }
+
+    // Column offsets relative to the start of the column area of a block with n
+    // rows; the timestamp column comes first at offset 0
+    static int quadrantOffset(int rows) {
+        return 8 * rows;
+    }
+
+    static int textOffset(int rows, int column) {
+        return quadrantOffset(rows) + align8(4 * rows) + column * align8(4 * rows);
+    }
+
+    static int coordinateOffset(int rows, int column) {
+        return textOffset(rows, TEXT_COLUMNS) + column * 8 * rows;
+    }
+
+    static int columnAreaSize(int rows) {
+        return coordinateOffset(rows, COORDINATE_COLUMNS);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: ColumnarStore convert <Measurements.csv> | stats <file" + EXTENSION + ">");
+            System.exit(1);
+        }
+        Path file = new File(args[1]).toPath();
+        if ("convert".equals(args[0])) {
+            convert(file);
+        } else {
+            stats(file);
+        }
+    }
+
+    /** Rebuilds the binary store of a result file from scratch. */
+    private static void convert(Path csv) throws IOException {
+        Path target = storeFor(csv);
+        Files.deleteIfExists(target);
+        ColumnarStoreWriter writer = new ColumnarStoreWriter(target);
+        List<String> batch = new ArrayList<>();
+        long rows = 0;
+        try (BufferedReader in = Files.newBufferedReader(csv, Charset.defaultCharset())) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty())
+                    continue;
+                batch.add(line);
+                if (batch.size() == 4096) {
+                    writer.rowsWritten(batch);
+                    rows += batch.size();
+                    batch.clear();
+                }
+            }
+        }
+        writer.rowsWritten(batch);
+        writer.close();
+        rows += batch.size();
+        IJ.log("Read " + rows + " row(s) into " + target);
+    }
+
+    /** Prints row counts per operator, as an example of a zero-copy scan. */
+    private static void stats(Path file) throws IOException {
+        long start = System.nanoTime();
+        try (ColumnarStoreReader reader = ColumnarStoreReader.open(file)) {
+            int[] perOperator = new int[reader.getDictionarySize(OPERATOR)];
+            for (int b = 0; b < reader.getBlockCount(); b++) {
+                IntBuffer operators = reader.getTextColumn(b, OPERATOR);
+                while (operators.hasRemaining()) {
+                    perOperator[operators.get()]++;
+                }
+            }
+            double ms = (System.nanoTime() - start) / 1e6;
+            IJ.log(reader.getRowCount() + " row(s) in " + reader.getBlockCount() + " block(s), scanned in "
+                    + String.format("%.1f", ms) + " ms");
+            for (int code = 0; code < perOperator.length; code++) {
+                IJ.log("  " + reader.decode(OPERATOR, code) + ": " + perOperator[code]);
+            }
+        }
+    }
+}
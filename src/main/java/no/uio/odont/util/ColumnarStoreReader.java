@@ -0,0 +1,217 @@
+package no.uio.odont.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only, memory-mapped view of a {@link ColumnarStore} file.
+ *
+ * Column accessors return typed views straight onto the mapped file, so
+ * filtering and aggregating touches only the columns involved and copies
+ * nothing. Filters on text columns compare dictionary codes; use
+ * {@link #lookup(int, String)} once to translate the wanted value.
+ *
+ * The view reflects the file when it was opened. Blocks appended later are not
+ * visible, but never disturb an open reader since existing blocks are not
+ * rewritten.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public class ColumnarStoreReader implements Closeable {
+    private final MappedByteBuffer data;
+    private final long[] blockOffsets;
+    private final int[] blockRows;
+    private final int[] columnsOffsets;
+    private final List<List<String>> values = new ArrayList<>();
+    private final List<Map<String, Integer>> codes = new ArrayList<>();
+    private final long rowCount;
+
+    private ColumnarStoreReader(MappedByteBuffer data, List<long[]> blocks) {
+        this.data = data;
+        ColumnarStoreWriter.order(data);
+        int n = blocks.size();
+        blockOffsets = new long[n];
+        blockRows = new int[n];
+        columnsOffsets = new int[n];
+        for (int c = 0; c < ColumnarStore.TEXT_COLUMNS; c++) {
+            values.add(new ArrayList<String>());
+            codes.add(new HashMap<String, Integer>());
+        }
+
+        long rows = 0;
+        for (int b = 0; b < n; b++) {
+            int offset = (int) blocks.get(b)[0];
+            blockOffsets[b] = offset;
+            blockRows[b] = data.getInt(offset + 4);
+            columnsOffsets[b] = data.getInt(offset + 12);
+            rows += blockRows[b];
+            readDictionaryEntries(offset, data.getInt(offset + 8));
+        }
+        this.rowCount = rows;
+    }
+
+    /**
+     * Maps a store file. Files over 2 GB (several million rows) are not supported.
+     */
+    public static ColumnarStoreReader open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException(path + " is too large to map");
+            List<long[]> blocks = findBlocks(channel, size);
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return new ColumnarStoreReader(data, blocks);
+        }
+    }
+
+    private void readDictionaryEntries(int blockOffset, int entries) {
+        ByteBuffer dict = data.duplicate();
+        ColumnarStoreWriter.order(dict);
+        dict.position(blockOffset + ColumnarStore.BLOCK_HEADER_SIZE);
+        for (int i = 0; i < entries; i++) {
+            int column = dict.get();
+            byte[] text = new byte[dict.getInt()];
+            dict.get(text);
+            List<String> list = values.get(column);
+            String value = new String(text, StandardCharsets.UTF_8);
+            codes.get(column).put(value, list.size());
+            list.add(value);
+        }
+    }
+
+    public int getBlockCount() {
+        return blockOffsets.length;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public int getBlockRowCount(int block) {
+        return blockRows[block];
+    }
+
+    /** Epoch milliseconds of each row; Long.MIN_VALUE if the timestamp was unreadable. */
+    public LongBuffer getTimestamps(int block) {
+        return column(block, 0, 8).asLongBuffer();
+    }
+
+    public IntBuffer getQuadrants(int block) {
+        return column(block, ColumnarStore.quadrantOffset(blockRows[block]), 4).asIntBuffer();
+    }
+
+    /** Dictionary codes of a text column, e.g. {@link ColumnarStore#OPERATOR}. */
+    public IntBuffer getTextColumn(int block, int column) {
+        return column(block, ColumnarStore.textOffset(blockRows[block], column), 4).asIntBuffer();
+    }
+
+    /**
+     * Calibrated coordinates of one site, NaN where the site was missing.
+     *
+     * @param site Site index in row order ({@link MeasurementRow#SITE_NAMES}).
+     * @param y    true for the y-coordinate.
+     */
+    public DoubleBuffer getCoordinates(int block, int site, boolean y) {
+        int column = ColumnarStore.coordinateColumn(site, y);
+        return column(block, ColumnarStore.coordinateOffset(blockRows[block], column), 8).asDoubleBuffer();
+    }
+
+    public String decode(int column, int code) {
+        return values.get(column).get(code);
+    }
+
+    /** @return The code of a value in a text column, or -1 if it never occurs. */
+    public int lookup(int column, String value) {
+        Integer code = codes.get(column).get(value);
+        return code != null ? code : -1;
+    }
+
+    public int getDictionarySize(int column) {
+        return values.get(column).size();
+    }
+
+    private ByteBuffer column(int block, int offset, int width) {
+        ByteBuffer view = data.duplicate();
+        int start = (int) blockOffsets[block] + columnsOffsets[block] + offset;
+        view.position(start).limit(start + width * blockRows[block]);
+        return ColumnarStoreWriter.order(view.slice());
+    }
+
+    @Override
+    public void close() {
+        // Mapped buffers are released by the garbage collector
+    }
+
+    /**
+     * Lists the blocks of a store as {offset, rows} pairs. Uses the footer when
+     * the trailer is intact and otherwise scans the blocks from the header, which
+     * recovers a store whose footer write was interrupted.
+     */
+    static List<long[]> findBlocks(FileChannel channel, long size) throws IOException {
+        List<long[]> blocks = new ArrayList<>();
+        if (size >= ColumnarStore.HEADER_SIZE + ColumnarStore.TRAILER_SIZE + 8) {
+            ByteBuffer trailer = read(channel, size - ColumnarStore.TRAILER_SIZE, ColumnarStore.TRAILER_SIZE);
+            long footerOffset = trailer.getLong(0);
+            if (trailer.getLong(8) == ColumnarStore.END_MAGIC && footerOffset >= ColumnarStore.HEADER_SIZE
+                    && footerOffset + 8 <= size - ColumnarStore.TRAILER_SIZE) {
+                ByteBuffer head = read(channel, footerOffset, 8);
+                int count = head.getInt(4);
+                long footerSize = 8 + (long) count * ColumnarStore.FOOTER_ENTRY_SIZE;
+                if (head.getInt(0) == ColumnarStore.FOOTER_MAGIC && count >= 0
+                        && footerOffset + footerSize + ColumnarStore.TRAILER_SIZE == size) {
+                    ByteBuffer entries = read(channel, footerOffset + 8, (int) (footerSize - 8));
+                    for (int b = 0; b < count; b++) {
+                        blocks.add(new long[] { entries.getLong(), entries.getInt() });
+                        entries.getInt();
+                    }
+                    return blocks;
+                }
+            }
+        }
+
+        // No valid footer: walk the self-describing blocks
+        long offset = ColumnarStore.HEADER_SIZE;
+        while (offset + ColumnarStore.BLOCK_HEADER_SIZE <= size) {
+            ByteBuffer header = read(channel, offset, ColumnarStore.BLOCK_HEADER_SIZE);
+            long length = header.getLong(16);
+            if (header.getInt(0) != ColumnarStore.BLOCK_MAGIC || length <= 0 || offset + length > size)
+                break;
+            blocks.add(new long[] { offset, header.getInt(4) });
+            offset += length;
+        }
+        return blocks;
+    }
+
+    /** Offset just after the last of the given blocks. */
+    static long endOfBlocks(FileChannel channel, List<long[]> blocks) throws IOException {
+        if (blocks.isEmpty())
+            return ColumnarStore.HEADER_SIZE;
+        long last = blocks.get(blocks.size() - 1)[0];
+        return last + read(channel, last, ColumnarStore.BLOCK_HEADER_SIZE).getLong(16);
+    }
+
+    static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ColumnarStoreWriter.order(ByteBuffer.allocate(length));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of column store");
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,353 @@
+package no.uio.odont.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ij.IJ;
+
+/**
+ * Appends result rows to a {@link ColumnarStore} file. Registered as a batch
+ * listener on the result file's {@link GroupCommitWriter}, so every row written
+ * to the CSV also goes to the binary store.
+ *
+ * Batches of a few rows, as saved one root at a time, are collected in memory
+ * into row groups of {@link #ROW_GROUP_ROWS} rows, and each row group is
+ * written as one block. The rows of an unfinished group are written as a
+ * smaller block once the result file writer has been idle for
+ * {@link GroupCommitWriter#LISTENER_IDLE_MS}, and when ImageJ exits, so the
+ * store lags the CSV by seconds during interactive work while a batch import
+ * still gets full blocks. Blocks are only appended: the block index is kept in
+ * memory and only blocks added by other writers are read back.
+ *
+ * Appends take an OS file lock on the store, so several workstations in shared
+ * mode can append to the same file; dictionary entries added by others are
+ * picked up from their blocks before codes are assigned.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public class ColumnarStoreWriter implements GroupCommitWriter.BatchListener {
+    /** Rows collected before they are written as one block. */
+    public static final int ROW_GROUP_ROWS = 1024;
+
+    private static final Map<Path, ColumnarStoreWriter> WRITERS = new HashMap<>();
+
+    private final Path path;
+    private final MeasurementRow row = new MeasurementRow();
+    private final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+    // Dictionaries as known from the blocks read or written so far
+    private final List<Map<String, Integer>> codes = new ArrayList<>();
+    private final List<List<String>> values = new ArrayList<>();
+    private final List<Long> blockOffsets = new ArrayList<>();
+    private final List<Integer> blockRows = new ArrayList<>();
+    // End of the blocks and size of the file as this writer left them, or -1
+    private long knownEnd = -1;
+    private long knownSize = -1;
+
+    // Rows of the row group not yet written
+    private final List<String> pending = new ArrayList<>();
+
+    public ColumnarStoreWriter(Path path) {
+        this.path = path;
+        resetDictionaries();
+    }
+
+    /** Returns the shared writer for a binary store, creating it on first use. */
+    public static ColumnarStoreWriter forPath(Path path) {
+        Path key = path.toAbsolutePath().normalize();
+        synchronized (WRITERS) {
+            ColumnarStoreWriter writer = WRITERS.get(key);
+            if (writer == null) {
+                writer = new ColumnarStoreWriter(key);
+                WRITERS.put(key, writer);
+            }
+            return writer;
+        }
+    }
+
+    @Override
+    public synchronized void rowsWritten(List<String> rows) throws IOException {
+        pending.addAll(rows);
+        if (pending.size() >= ROW_GROUP_ROWS)
+            writeRowGroup();
+    }
+
+    /** Writes the rows of the unfinished row group, as a smaller block. */
+    @Override
+    public synchronized void idle() throws IOException {
+        if (!pending.isEmpty())
+            writeRowGroup();
+    }
+
+    /** Writes the rows of the unfinished row group. */
+    @Override
+    public void close() throws IOException {
+        idle();
+    }
+
+    private void writeRowGroup() throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            FileLock lock = channel.lock();
+            try {
+                writeRowGroup(channel);
+            } finally {
+                lock.release();
+            }
+        } catch (IOException e) {
+            // Codes may have been assigned without reaching the file; reload
+            // next time, and keep the rows for the next attempt
+            resetDictionaries();
+            throw e;
+        }
+    }
+
+    private void writeRowGroup(FileChannel channel) throws IOException {
+        long end = readIndex(channel);
+        ByteBuffer block = encodeBlock(pending);
+        if (block != null) {
+            int rowCount = block.getInt(4);
+            long footerOffset = end + block.capacity();
+            writeFully(channel, block, end);
+            blockOffsets.add(end);
+            blockRows.add(rowCount);
+            // The footer follows the blocks, so the next block overwrites it
+            ByteBuffer footer = encodeFooter(footerOffset);
+            writeFully(channel, footer, footerOffset);
+            knownEnd = footerOffset;
+            knownSize = footerOffset + footer.capacity();
+            channel.truncate(knownSize);
+            channel.force(false);
+        }
+        pending.clear();
+    }
+
+    @Override
+    public String toString() {
+        return path.toString();
+    }
+
+    /**
+     * Brings the in-memory block list and dictionaries up to date with the file
+     * and returns the offset where the next block goes.
+     */
+    private long readIndex(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size == knownSize) {
+            // Nothing appended by others since this writer's last block
+            return knownEnd;
+        }
+        if (size < ColumnarStore.HEADER_SIZE) {
+            ByteBuffer header = order(ByteBuffer.allocate(ColumnarStore.HEADER_SIZE));
+            header.putLong(ColumnarStore.FILE_MAGIC).putInt(ColumnarStore.VERSION)
+                    .putInt(MeasurementRow.SITE_COUNT).flip();
+            writeFully(channel, header, 0);
+            channel.truncate(ColumnarStore.HEADER_SIZE);
+            resetDictionaries();
+            return ColumnarStore.HEADER_SIZE;
+        }
+        checkHeader(channel);
+
+        List<long[]> blocks = ColumnarStoreReader.findBlocks(channel, size);
+        if (blocks.size() < blockOffsets.size()
+                || (!blockOffsets.isEmpty() && blocks.get(blockOffsets.size() - 1)[0] != last(blockOffsets))) {
+            // The file was replaced; start over
+            resetDictionaries();
+        }
+        for (int b = blockOffsets.size(); b < blocks.size(); b++) {
+            long offset = blocks.get(b)[0];
+            readDictionaryEntries(channel, offset);
+            blockOffsets.add(offset);
+            blockRows.add((int) blocks.get(b)[1]);
+        }
+        return ColumnarStoreReader.endOfBlocks(channel, blocks);
+    }
+
+    private void readDictionaryEntries(FileChannel channel, long offset) throws IOException {
+        ByteBuffer header = ColumnarStoreReader.read(channel, offset, ColumnarStore.BLOCK_HEADER_SIZE);
+        int entries = header.getInt(8);
+        int columnsOffset = header.getInt(12);
+        ByteBuffer dict = ColumnarStoreReader.read(channel, offset + ColumnarStore.BLOCK_HEADER_SIZE,
+                columnsOffset - ColumnarStore.BLOCK_HEADER_SIZE);
+        for (int i = 0; i < entries; i++) {
+            int column = dict.get();
+            byte[] text = new byte[dict.getInt()];
+            dict.get(text);
+            addValue(column, new String(text, StandardCharsets.UTF_8));
+        }
+    }
+
+    private ByteBuffer encodeBlock(List<String> rows) {
+        int capacity = rows.size();
+        int[][] textCodes = new int[ColumnarStore.TEXT_COLUMNS][capacity];
+        long[] timestamps = new long[capacity];
+        int[] quadrants = new int[capacity];
+        double[][] coordinates = new double[ColumnarStore.COORDINATE_COLUMNS][capacity];
+        ByteBuffer entries = order(ByteBuffer.allocate(1024));
+        int entryCount = 0;
+
+        int n = 0;
+        for (String text : rows) {
+            if (!row.parse(text, MeasurementRow.detectSeparator(text, ','))) {
+                IJ.log("Row not added to " + path + ", unexpected layout: " + text);
+                continue;
+            }
+            timestamps[n] = parseTimestamp(row.getTimestamp());
+            quadrants[n] = row.getQuadrant();
+            for (int c = 0; c < ColumnarStore.TEXT_COLUMNS; c++) {
+                String value = textValue(c);
+                Integer code = codes.get(c).get(value);
+                if (code == null) {
+                    // First use: the entry is stored in this block
+                    code = addValue(c, value);
+                    byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+                    entries = ensureCapacity(entries, 5 + utf8.length);
+                    entries.put((byte) c).putInt(utf8.length).put(utf8);
+                    entryCount++;
+                }
+                textCodes[c][n] = code;
+            }
+            for (int s = 0; s < MeasurementRow.SITE_COUNT; s++) {
+                coordinates[ColumnarStore.coordinateColumn(s, false)][n] = row.getX(s);
+                coordinates[ColumnarStore.coordinateColumn(s, true)][n] = row.getY(s);
+            }
+            n++;
+        }
+        if (n == 0)
+            return null;
+
+        int columnsOffset = ColumnarStore.BLOCK_HEADER_SIZE + ColumnarStore.align8(entries.position());
+        int length = columnsOffset + ColumnarStore.columnAreaSize(n);
+        ByteBuffer block = order(ByteBuffer.allocate(length));
+        block.putInt(ColumnarStore.BLOCK_MAGIC).putInt(n).putInt(entryCount).putInt(columnsOffset)
+                .putLong(length);
+        entries.flip();
+        block.put(entries);
+
+        for (int r = 0; r < n; r++) {
+            block.putLong(columnsOffset + 8 * r, timestamps[r]);
+            block.putInt(columnsOffset + ColumnarStore.quadrantOffset(n) + 4 * r, quadrants[r]);
+        }
+        for (int c = 0; c < ColumnarStore.TEXT_COLUMNS; c++) {
+            int base = columnsOffset + ColumnarStore.textOffset(n, c);
+            for (int r = 0; r < n; r++) {
+                block.putInt(base + 4 * r, textCodes[c][r]);
+            }
+        }
+        for (int c = 0; c < ColumnarStore.COORDINATE_COLUMNS; c++) {
+            int base = columnsOffset + ColumnarStore.coordinateOffset(n, c);
+            for (int r = 0; r < n; r++) {
+                block.putDouble(base + 8 * r, coordinates[c][r]);
+            }
+        }
+        block.clear();
+        return block;
+    }
+
+    private String textValue(int column) {
+        switch (column) {
+            case ColumnarStore.PATH:
+                return row.getPath();
+            case ColumnarStore.OPERATOR:
+                return row.getOperator();
+            case ColumnarStore.IMAGE_TYPE:
+                return row.getImageType();
+            case ColumnarStore.UNIT:
+                return row.getUnit();
+            case ColumnarStore.TOOTH:
+                return row.getTooth();
+            case ColumnarStore.ROOT:
+                return row.getRoot();
+            case ColumnarStore.COMMENT:
+                return row.getComment();
+            default:
+                return row.getQualitative(column - ColumnarStore.FIRST_QUALITATIVE);
+        }
+    }
+
+    private ByteBuffer encodeFooter(long footerOffset) {
+        int blocks = blockOffsets.size();
+        ByteBuffer footer = order(ByteBuffer.allocate(
+                8 + blocks * ColumnarStore.FOOTER_ENTRY_SIZE + ColumnarStore.TRAILER_SIZE));
+        footer.putInt(ColumnarStore.FOOTER_MAGIC).putInt(blocks);
+        for (int b = 0; b < blocks; b++) {
+            footer.putLong(blockOffsets.get(b)).putInt(blockRows.get(b)).putInt(0);
+        }
+        footer.putLong(footerOffset).putLong(ColumnarStore.END_MAGIC);
+        footer.flip();
+        return footer;
+    }
+
+    private long parseTimestamp(String text) {
+        try {
+            return timestampFormat.parse(text).getTime();
+        } catch (ParseException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private void checkHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ColumnarStoreReader.read(channel, 0, ColumnarStore.HEADER_SIZE);
+        if (header.getLong(0) != ColumnarStore.FILE_MAGIC || header.getInt(8) != ColumnarStore.VERSION) {
+            throw new IOException(path + " is not a measurement column store");
+        }
+    }
+
+    private int addValue(int column, String value) {
+        List<String> list = values.get(column);
+        int code = list.size();
+        list.add(value);
+        codes.get(column).put(value, code);
+        return code;
+    }
+
+    private void resetDictionaries() {
+        codes.clear();
+        values.clear();
+        for (int c = 0; c < ColumnarStore.TEXT_COLUMNS; c++) {
+            codes.add(new HashMap<String, Integer>());
+            values.add(new ArrayList<String>());
+        }
+        blockOffsets.clear();
+        blockRows.clear();
+        knownEnd = -1;
+        knownSize = -1;
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int extra) {
+        if (buffer.remaining() >= extra)
+            return buffer;
+        ByteBuffer grown = order(ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + extra)));
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    private static long last(List<Long> list) {
+        return list.get(list.size() - 1);
+    }
+
+    static ByteBuffer order(ByteBuffer buffer) {
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer bytes, long position) throws IOException {
+        while (bytes.hasRemaining()) {
+            position += channel.write(bytes, position);
+        }
+    }
+}
@@ -5,18 +5,24 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
-
-import java.awt.Color;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
 
 import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.Overlay;
-import ij.gui.PointRoi;
-import ij.gui.Roi;
 import ij.io.FileInfo;
-import ij.process.ImageProcessor;
+import ij.measure.Calibration;
 import no.uio.odont.model.MeasurementRoot;
+import no.uio.odont.model.SiteSchema;
 
 /**
  * Handles saving of measurement results and modified images.
@@ -28,26 +34,121 @@ import no.uio.odont.model.MeasurementRoot;
 public class DataStorage {
     private static final String GLOBAL_RESULT_FILENAME = "Measurements.csv";
 
+    // Writers used by this session, flushed when the session ends
+    private final Set<GroupCommitWriter> writers = new LinkedHashSet<>();
+
+    // The images of this session whose alias is recorded in each store
+    private final Map<Path, Set<String>> aliasedImages = new HashMap<>();
+
     /**
-     * Saves the measurement results to a CSV file.
+     * Queues the measurement results for appending to the CSV file. The row is
+     * written in the background by a {@link GroupCommitWriter}; call
+     * {@link #flush()} to make sure it has reached the disk.
      *
      * @param root    The MeasurementRoot containing data to be saved.
      * @param config  The application configuration.
      * @param content The data string to save.
+     * @return Completed once the row is forced to disk, or null if it could not
+     *         be queued (the error has been reported).
      */
-    public void saveResults(MeasurementRoot root, AppConfig config, String content, ImagePlus imp) {
+    public CompletableFuture<Void> saveResults(MeasurementRoot root, AppConfig config, String content,
+            ImagePlus imp) {
         Path filePath = resolveSavePath(imp, config);
 
         if (filePath == null) {
             IJ.error("Could not determine save path for results.");
-            return;
+            return null;
         }
 
         File file = filePath.toFile();
         ensureDirectoryExists(file.getParentFile());
 
-        // Append content to file
-        IJ.append(content, file.getAbsolutePath());
+        GroupCommitWriter writer = GroupCommitWriter.forPath(filePath, config.getStoreSyncIntervalMs(),
+                config.isSharedStore());
+        if (config.isBinaryStore()) {
+            writer.addBatchListener(ColumnarStoreWriter.forPath(ColumnarStore.storeFor(filePath)));
+        }
+        writers.add(writer);
+        CompletableFuture<Void> forced = writer.append(content);
+
+        // Let the index find these rows again if the image is moved; hashing the
+        // image and updating the alias file is left to the writer thread
+        String imagePath = imagePath(imp);
+        if (aliasedImages.computeIfAbsent(filePath, k -> new HashSet<>()).add(imagePath)) {
+            File image = imageFile(imp);
+            GroupCommitWriter.execute(() -> {
+                try {
+                    new MeasurementIndex(filePath).addAlias(ContentHash.cached(image), imagePath);
+                } catch (IOException e) {
+                    IJ.log("Could not update " + MeasurementIndex.aliasesFor(filePath) + ": " + e.getMessage());
+                }
+            });
+        }
+        return forced;
+    }
+
+    /**
+     * Returns the rows saved earlier for an image, matched by path or by content
+     * through the {@link MeasurementIndex} of its result file.
+     *
+     * @return The rows in file order; empty if there are none or the index could
+     *         not be read (the error is logged).
+     */
+    public List<MeasurementRow> loadPreviousRows(ImagePlus imp, AppConfig config) {
+        List<MeasurementRow> rows = new ArrayList<>();
+        Path filePath = resolveSavePath(imp, config);
+        if (filePath == null)
+            return rows;
+
+        // Rows still queued in this JVM must be in the file for the index to see them
+        GroupCommitWriter.flushAll();
+        try {
+            for (String text : new MeasurementIndex(filePath).findRows(imagePath(imp), contentHash(imp))) {
+                MeasurementRow row = new MeasurementRow();
+                if (row.parse(text, MeasurementRow.detectSeparator(text, config.getCsvSeparator())))
+                    rows.add(row);
+            }
+        } catch (IOException e) {
+            IJ.log("Could not read previous measurements from " + filePath + ": " + e.getMessage());
+        }
+        return rows;
+    }
+
+    /**
+     * @return The image path as written in the first column of a result row.
+     */
+    public static String imagePath(ImagePlus imp) {
+        FileInfo fi = imp.getOriginalFileInfo();
+        return (fi != null) ? fi.directory + fi.fileName : imp.getTitle();
+    }
+
+    private static long contentHash(ImagePlus imp) {
+        return ContentHash.cached(imageFile(imp));
+    }
+
+    /** @return The file an image was opened from, or null if it has none. */
+    private static File imageFile(ImagePlus imp) {
+        FileInfo fi = imp.getOriginalFileInfo();
+        return (fi != null && fi.directory != null && fi.fileName != null) ? new File(fi.directory, fi.fileName)
+                : null;
+    }
+
+    /**
+     * Synchronously writes and forces every row saved through this instance.
+     *
+     * @return false if a row could not be written; the error has been reported.
+     */
+    public boolean flush() {
+        boolean ok = true;
+        for (GroupCommitWriter writer : writers) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                IJ.error("Could not write results: " + e.getMessage());
+                ok = false;
+            }
+        }
+        return ok;
     }
 
     /**
@@ -57,14 +158,20 @@ public class DataStorage {
         FileInfo fi = imp.getOriginalFileInfo();
         String directory = (fi != null && fi.directory != null) ? fi.directory : System.getProperty("user.dir");
         String fileName = (fi != null && fi.fileName != null) ? fi.fileName : imp.getTitle();
+        return resultFile(directory, fileName, config);
+    }
 
+    /**
+     * @return The result file the rows of an image are saved to.
+     */
+    public static Path resultFile(String directory, String fileName, AppConfig config) {
         if (config.isLocalStore()) {
             // Local store: same folder as image, same name with .csv extension
             int dotIndex = fileName.lastIndexOf('.');
             String csvName = (dotIndex > 0 ? fileName.substring(0, dotIndex) : fileName) + ".csv";
             return Paths.get(directory, csvName);
         } else {
-            // Global store: folder above image folder, fixed filename
+            // Global (or shared) store: folder above image folder, fixed filename
             Path dirPath = Paths.get(directory);
             Path parentDir = dirPath.getParent();
             if (parentDir != null) {
@@ -83,35 +190,26 @@ public class DataStorage {
     /**
      * Saves a copy of the image with all accumulated markers burnt in.
      * Called only at "Save and close" so all measured roots appear together.
+     * The copy is rendered and written in the background by the
+     * {@link ScoredImageExporter}; the image may be closed as soon as this returns.
      *
      * @param imp            The source image.
      * @param historicOverlay The overlay containing every saved site across all roots.
      */
     public void saveScoredImageCopy(ImagePlus imp, Overlay historicOverlay) {
-        ImagePlus copy = imp.duplicate();
-
-        // Convert to RGB so colored markers are visible in standard image viewers
-        new ij.process.ImageConverter(copy).convertToRGB();
-
-        ImageProcessor ip = copy.getProcessor();
-
-        for (int i = 0; i < historicOverlay.size(); i++) {
-            Roi roi = historicOverlay.get(i);
-            if (!(roi instanceof PointRoi)) continue;
-
-            Color color = roi.getStrokeColor();
-            if (color == null) color = Color.RED;
-
-            int x = Math.round(roi.getFloatPolygon().xpoints[0]);
-            int y = Math.round(roi.getFloatPolygon().ypoints[0]);
+        FileInfo fi = imp.getOriginalFileInfo();
+        String directory = (fi != null && fi.directory != null) ? fi.directory : System.getProperty("user.dir");
 
-            ip.setColor(color);
-            ip.drawDot(x, y);
-            drawRing(ip, x, y, 5);
-        }
+        String newName = scoredCopyName(imp.getTitle(), new Date());
+        ScoredImageExporter.submit(imp, historicOverlay, Paths.get(directory, newName));
+    }
 
-        String timestamp = new SimpleDateFormat("yyyyMMdd_HHmm").format(new Date());
-        String originalName = imp.getTitle();
+    /**
+     * @return The file name of a scored copy made at the given time, e.g.
+     *         Measured-20261018_0915-LI.png for LI.tif.
+     */
+    public static String scoredCopyName(String originalName, Date date) {
+        String timestamp = new SimpleDateFormat("yyyyMMdd_HHmm").format(date);
         String newName = "Measured-" + timestamp + "-" + originalName;
 
         // Replace extension with .png
@@ -121,16 +219,41 @@ public class DataStorage {
         } else {
             newName += ".png";
         }
+        return newName;
+    }
 
-        FileInfo fi = imp.getOriginalFileInfo();
-        String directory = (fi != null && fi.directory != null) ? fi.directory : System.getProperty("user.dir");
-
-        IJ.saveAs(copy, "PNG", Paths.get(directory, newName).toString());
+    /**
+     * @return true if a file name is that of a scored copy of the image, made at
+     *         any time, as named by {@link #scoredCopyName}.
+     */
+    public static boolean isScoredCopyOf(String name, String originalName) {
+        String stamped = scoredCopyName(originalName, new Date(0));
+        int prefixLength = "Measured-yyyyMMdd_HHmm-".length();
+        return Pattern.matches("Measured-\\d{8}_\\d{4}-" + Pattern.quote(stamped.substring(prefixLength)), name);
     }
 
-    /** Draws a ring (circle outline) of the given radius around (x, y). */
-    private void drawRing(ImageProcessor ip, int x, int y, int radius) {
-        ip.drawOval(x - radius, y - radius, radius * 2, radius * 2);
+    /**
+     * Adds the markers of a saved row to an overlay, converting its calibrated
+     * coordinates back to pixels.
+     *
+     * @return false if the row was saved in another unit than the calibration
+     *         and cannot be placed.
+     */
+    public static boolean addMarkers(Overlay target, MeasurementRow row, Calibration cal) {
+        boolean pixels = row.getUnit().startsWith("pixel");
+        if (!pixels && !row.getUnit().equals(cal.getUnit()))
+            return false;
+
+        for (int s = 0; s < MeasurementRow.SITE_COUNT; s++) {
+            if (!row.hasSite(s))
+                continue;
+            String name = MeasurementRow.SITE_NAMES[s];
+            // Pixel rows are relative to the origin too, e.g. on a region of a large image
+            double x = pixels ? row.getX(s) + cal.xOrigin : cal.getRawX(row.getX(s));
+            double y = pixels ? row.getY(s) + cal.yOrigin : cal.getRawY(row.getY(s));
+            MeasurementRoot.addMarker(target, name, x, y, SiteSchema.color(name));
+        }
+        return true;
     }
 
     public String generateTimestamp() {
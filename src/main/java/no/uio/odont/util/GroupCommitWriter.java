@@ -0,0 +1,513 @@
+package no.uio.odont.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import ij.IJ;
+
+/**
+ * Long-lived append writer for one result file.
+ *
+ * Rows are queued by {@link #append(String)} and written by a background thread
+ * so saving never blocks the UI on slow (network) storage. Rows arriving within
+ * {@link #LINGER_MS} of each other are written together in a single channel
+ * write, and the channel stays open between writes.
+ *
+ * Durability guarantees:
+ * <ul>
+ * <li>When {@code append} returns, the row is only held in memory.</li>
+ * <li>Within {@link #LINGER_MS} it is written to the operating system, so it
+ * survives a crash of ImageJ itself.</li>
+ * <li>Within the configured sync interval it is forced to disk, so it survives
+ * a power loss or operating system crash. An interval of 0 forces after every
+ * write.</li>
+ * <li>{@link #flush()} writes and forces everything synchronously. It is called
+ * on "Save and close", when the plugin window closes and from a JVM shutdown
+ * hook.</li>
+ * </ul>
+ * The future returned by {@code append} completes once the row has been forced
+ * to disk, so a caller can drop its own copy of the row only then.
+ *
+ * Rows are encoded exactly like {@code IJ.append}: default charset, terminated
+ * by '\n'. A channel left idle for {@link #IDLE_CLOSE_MS} is closed and reopened
+ * on the next write, so no file handle lingers on a share between sessions.
+ *
+ * The writer's monitor only guards the queue: a batch is taken from it, and
+ * written, forced and passed to listeners under a separate I/O lock, so
+ * {@code append} never waits for the disk, even while a write to a slow share
+ * or a {@link #flush()} is in progress.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public class GroupCommitWriter {
+    /** How long to wait for further rows before writing a batch. */
+    public static final long LINGER_MS = 25;
+    /** How long after the last batch listeners are told the writer is idle. */
+    public static final long LISTENER_IDLE_MS = 2000;
+    private static final long IDLE_CLOSE_MS = 30000;
+
+    private static final Map<Path, GroupCommitWriter> WRITERS = new HashMap<>();
+    private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Endodontic Measurements writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(GroupCommitWriter::shutdown, "Endodontic Measurements flush"));
+    }
+
+    protected final Path path;
+    private final Charset charset = Charset.defaultCharset();
+    private volatile long syncIntervalMs;
+
+    // Guarded by this: the rows queued, completed once they are forced
+    private final StringBuilder pending = new StringBuilder();
+    private final List<CompletableFuture<Void>> queued = new ArrayList<>();
+    private ScheduledFuture<?> scheduledWrite;
+    private final Set<BatchListener> listeners = new LinkedHashSet<>();
+
+    // Guarded by io, taken before this where both are needed
+    private final Object io = new Object();
+    // The batch being written and its bytes not yet written, kept after a
+    // failed write so the retry continues where the write stopped
+    private String batch;
+    private ByteBuffer unwritten;
+    // Completed once their rows are forced: rows in the batch being written
+    // and written but not yet forced
+    private final List<CompletableFuture<Void>> batchWritten = new ArrayList<>();
+    private final List<CompletableFuture<Void>> unforced = new ArrayList<>();
+    // Rows of an earlier, interrupted batch written again along with the current one
+    private final List<String> recovered = new ArrayList<>();
+    private ScheduledFuture<?> scheduledSync;
+    private ScheduledFuture<?> scheduledClose;
+    private ScheduledFuture<?> scheduledIdle;
+    private FileChannel channel;
+    private boolean unsynced;
+    private long lastSync;
+    private boolean failureReported;
+
+    /**
+     * Receives the rows of every batch written to the result file, e.g. to keep a
+     * derived store up to date.
+     */
+    public interface BatchListener {
+        void rowsWritten(List<String> rows) throws IOException;
+
+        /**
+         * Called when no batch was written for {@link #LISTENER_IDLE_MS}, to write
+         * anything the listener still holds in memory.
+         */
+        default void idle() throws IOException {
+        }
+
+        /**
+         * Called once when ImageJ exits, after the last batch, to write anything
+         * the listener still holds in memory.
+         */
+        default void close() throws IOException {
+        }
+    }
+
+    protected GroupCommitWriter(Path path, long syncIntervalMs) {
+        this.path = path;
+        this.syncIntervalMs = syncIntervalMs;
+    }
+
+    /**
+     * Returns the shared writer for a result file, creating it on first use.
+     *
+     * @param path           The resolved result file.
+     * @param syncIntervalMs Maximum time a written row may stay unsynced.
+     */
+    public static GroupCommitWriter forPath(Path path, long syncIntervalMs) {
+        return forPath(path, syncIntervalMs, false);
+    }
+
+    /**
+     * Returns the shared writer for a result file, creating it on first use.
+     *
+     * @param path           The resolved result file.
+     * @param syncIntervalMs Maximum time a written row may stay unsynced.
+     * @param shared         Whether other processes append to the same file, in
+     *                       which case a {@link SharedStoreWriter} is used.
+     */
+    public static GroupCommitWriter forPath(Path path, long syncIntervalMs, boolean shared) {
+        Path key = path.toAbsolutePath().normalize();
+        synchronized (WRITERS) {
+            GroupCommitWriter writer = WRITERS.get(key);
+            if (writer == null) {
+                writer = shared ? new SharedStoreWriter(key, syncIntervalMs)
+                        : new GroupCommitWriter(key, syncIntervalMs);
+                WRITERS.put(key, writer);
+            }
+            writer.syncIntervalMs = syncIntervalMs;
+            return writer;
+        }
+    }
+
+    /**
+     * Runs a task on the writer thread, e.g. bookkeeping of a save that should
+     * not hold up the event thread. Tasks run one at a time, in order.
+     */
+    public static void execute(Runnable task) {
+        EXECUTOR.execute(task);
+    }
+
+    /**
+     * Writes and forces every writer's pending rows. Errors are logged.
+     */
+    public static void flushAll() {
+        List<GroupCommitWriter> writers;
+        synchronized (WRITERS) {
+            writers = new ArrayList<>(WRITERS.values());
+        }
+        for (GroupCommitWriter writer : writers) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                IJ.log("Could not write results to " + writer.path + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Flushes every writer and closes their listeners, when the JVM exits.
+     */
+    private static void shutdown() {
+        flushAll();
+        Set<BatchListener> all = new LinkedHashSet<>();
+        synchronized (WRITERS) {
+            for (GroupCommitWriter writer : WRITERS.values()) {
+                synchronized (writer) {
+                    all.addAll(writer.listeners);
+                }
+            }
+        }
+        for (BatchListener listener : all) {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                IJ.log("Could not close " + listener + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Registers a listener called on the writer thread after each batch has been
+     * written to the result file. Adding the same listener again has no effect.
+     */
+    public synchronized void addBatchListener(BatchListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Queues one row. The row is written by the background thread shortly after.
+     *
+     * @param row The row without line terminator.
+     * @return Completed on the writer thread once the row is forced to disk;
+     *         never completed while writing fails.
+     */
+    public synchronized CompletableFuture<Void> append(String row) {
+        pending.append(row).append('\n');
+        CompletableFuture<Void> forced = new CompletableFuture<>();
+        queued.add(forced);
+        if (scheduledWrite == null) {
+            scheduledWrite = EXECUTOR.schedule(this::backgroundWrite, LINGER_MS, TimeUnit.MILLISECONDS);
+        }
+        return forced;
+    }
+
+    /**
+     * Synchronously writes all pending rows and forces them to disk.
+     */
+    public void flush() throws IOException {
+        synchronized (this) {
+            cancel(scheduledWrite);
+            scheduledWrite = null;
+        }
+        synchronized (io) {
+            try {
+                writePending();
+                sync();
+            } catch (IOException e) {
+                // Keep the rows queued for the background thread to retry
+                abandonChannel();
+                scheduleRetry();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Flushes and closes the channel. The writer can still be used afterwards; it
+     * reopens the file on the next write.
+     */
+    public void close() throws IOException {
+        synchronized (io) {
+            flush();
+            closeChannel();
+        }
+    }
+
+    private void backgroundWrite() {
+        synchronized (this) {
+            scheduledWrite = null;
+        }
+        synchronized (io) {
+            try {
+                writePending();
+                long sinceSync = System.currentTimeMillis() - lastSync;
+                if (syncIntervalMs <= 0 || sinceSync >= syncIntervalMs) {
+                    sync();
+                } else if (scheduledSync == null) {
+                    scheduledSync = EXECUTOR.schedule(this::backgroundSync, syncIntervalMs - sinceSync,
+                            TimeUnit.MILLISECONDS);
+                }
+                failureReported = false;
+            } catch (IOException e) {
+                reportFailure(e);
+                // Keep the rows and try again later
+                abandonChannel();
+                scheduleRetry();
+            }
+            scheduleIdleClose();
+        }
+    }
+
+    private synchronized void scheduleRetry() {
+        cancel(scheduledWrite);
+        scheduledWrite = EXECUTOR.schedule(this::backgroundWrite, Math.max(1000, syncIntervalMs),
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void backgroundSync() {
+        synchronized (io) {
+            scheduledSync = null;
+            try {
+                sync();
+            } catch (IOException e) {
+                reportFailure(e);
+            }
+        }
+    }
+
+    private void idleClose() {
+        synchronized (io) {
+            scheduledClose = null;
+            synchronized (this) {
+                if (pending.length() > 0 || unwritten != null || scheduledWrite != null)
+                    return;
+            }
+            try {
+                close();
+            } catch (IOException e) {
+                reportFailure(e);
+            }
+        }
+    }
+
+    /** Writes the batch interrupted before, then the rows queued since; holding io. */
+    private void writePending() throws IOException {
+        while (true) {
+            if (unwritten == null) {
+                // Only taking the rows holds up append
+                synchronized (this) {
+                    if (pending.length() == 0)
+                        return;
+                    batch = pending.toString();
+                    pending.setLength(0);
+                    batchWritten.addAll(queued);
+                    queued.clear();
+                }
+                unwritten = charset.encode(batch);
+            }
+            boolean forced = writeBatch(openChannel(), unwritten);
+            String written = batch;
+            batch = null;
+            unwritten = null;
+            unsynced |= !forced;
+            unforced.addAll(batchWritten);
+            batchWritten.clear();
+            if (!unsynced)
+                complete(unforced);
+            notifyListeners(written);
+        }
+    }
+
+    private void notifyListeners(String batch) {
+        List<String> batchRows = Arrays.asList(batch.substring(0, batch.length() - 1).split("\n", -1));
+        // A retried batch may be recovered as well as written: a recovered row
+        // is dropped for each time it is in the batch, identical rows are kept
+        Map<String, Integer> inBatch = new HashMap<>();
+        for (String row : batchRows) {
+            inBatch.merge(row, 1, Integer::sum);
+        }
+        List<String> rows = new ArrayList<>();
+        for (String row : recovered) {
+            Integer count = inBatch.get(row);
+            if (count == null)
+                rows.add(row);
+            else if (count == 1)
+                inBatch.remove(row);
+            else
+                inBatch.put(row, count - 1);
+        }
+        recovered.clear();
+        rows.addAll(batchRows);
+
+        List<BatchListener> notified = listeners();
+        if (notified.isEmpty())
+            return;
+        for (BatchListener listener : notified) {
+            try {
+                listener.rowsWritten(rows);
+            } catch (IOException e) {
+                // The result file is the primary record; derived stores can be rebuilt from it
+                IJ.log("Could not update " + listener + " from " + path + ": " + e.getMessage());
+            }
+        }
+        cancel(scheduledIdle);
+        scheduledIdle = EXECUTOR.schedule(this::listenersIdle, LISTENER_IDLE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void listenersIdle() {
+        synchronized (io) {
+            scheduledIdle = null;
+            for (BatchListener listener : listeners()) {
+                try {
+                    listener.idle();
+                } catch (IOException e) {
+                    IJ.log("Could not update " + listener + " from " + path + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private synchronized List<BatchListener> listeners() {
+        return new ArrayList<>(listeners);
+    }
+
+    /**
+     * Opens the result file. The default channel is in append mode.
+     */
+    protected FileChannel openFile(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Writes one batch of encoded rows. If the write fails, the bytes left in
+     * {@code bytes} are the ones not in the file: they are passed again, to a
+     * reopened channel, on the retry.
+     *
+     * @return true if the batch has already been forced to disk.
+     */
+    protected boolean writeBatch(FileChannel channel, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        return false;
+    }
+
+    /**
+     * Records rows of an earlier batch that a subclass wrote to the result file
+     * again, e.g. from a journal after a crash, so listeners receive them with
+     * the current batch.
+     */
+    protected void rowsRecovered(List<String> rows) {
+        recovered.addAll(rows);
+    }
+
+    protected Charset getCharset() {
+        return charset;
+    }
+
+    private void sync() throws IOException {
+        cancel(scheduledSync);
+        scheduledSync = null;
+        if (unsynced) {
+            // A channel dropped after a failure is reopened: forcing it forces the file
+            openChannel().force(false);
+            unsynced = false;
+        }
+        lastSync = System.currentTimeMillis();
+        complete(unforced);
+    }
+
+    private static void complete(List<CompletableFuture<Void>> futures) {
+        for (CompletableFuture<Void> future : futures) {
+            future.complete(null);
+        }
+        futures.clear();
+    }
+
+    private FileChannel openChannel() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            channel = openFile(path);
+        }
+        return channel;
+    }
+
+    /**
+     * Drops the channel after a failed write or sync, e.g. to a share that went
+     * away, so the retry opens the file again.
+     */
+    private void abandonChannel() {
+        try {
+            closeChannel();
+        } catch (IOException e) {
+            channel = null;
+        }
+    }
+
+    private void closeChannel() throws IOException {
+        cancel(scheduledClose);
+        scheduledClose = null;
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        channelClosed();
+    }
+
+    /** Called after the result file channel has been closed. */
+    protected void channelClosed() throws IOException {
+    }
+
+    private void scheduleIdleClose() {
+        cancel(scheduledClose);
+        scheduledClose = EXECUTOR.schedule(this::idleClose, IDLE_CLOSE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static void cancel(ScheduledFuture<?> future) {
+        if (future != null)
+            future.cancel(false);
+    }
+
+    private void reportFailure(IOException e) {
+        IJ.log("Could not write results to " + path + ": " + e.getMessage());
+        if (!failureReported) {
+            failureReported = true;
+            IJ.showStatus("Saving results failed, retrying: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package no.uio.odont.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+
+/**
+ * Opens the next images of a worklist on a background thread while the
+ * current one is being measured, so moving on after "Save and close" does not
+ * wait for the TIFF to be read.
+ *
+ * Images are opened with {@code IJ.openImage}, exactly as when the reader
+ * opens them, so calibration and file info are the same; the screen image is
+ * created too, so the first repaint does not convert the pixels. At most
+ * {@code lookahead} images ahead of the current one are held, and an image is
+ * only prefetched while the images held, including it, fit in the memory
+ * budget. An image's size is estimated from its TIFF header: its pixels plus
+ * the 8-bit screen image; for other formats the file size is used.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public class ImagePrefetcher implements Closeable {
+    private final List<Path> images;
+    private final int lookahead;
+    private final long budgetBytes;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Image prefetch");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    // Guarded by this: prefetches by worklist index, and their estimated sizes
+    private final Map<Integer, Future<ImagePlus>> prefetched = new HashMap<>();
+    private final Map<Integer, Long> reserved = new HashMap<>();
+    private long reservedBytes;
+
+    /**
+     * @param images      The worklist, in measuring order.
+     * @param lookahead   Number of images to open ahead of the current one.
+     * @param budgetBytes Memory the prefetched images may take together.
+     */
+    public ImagePrefetcher(List<Path> images, int lookahead, long budgetBytes) {
+        this.images = images;
+        this.lookahead = Math.max(0, lookahead);
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Returns an image of the worklist, waiting for it if it is being prefetched
+     * or opening it now if not, and starts prefetching the ones after it.
+     * Prefetched images before it are dropped.
+     *
+     * @return The image, not shown yet, or null if it could not be opened.
+     */
+    public ImagePlus take(int index) {
+        Future<ImagePlus> future;
+        synchronized (this) {
+            future = prefetched.remove(index);
+            release(index);
+            // Images passed over are not needed any more
+            Iterator<Map.Entry<Integer, Future<ImagePlus>>> it = prefetched.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Future<ImagePlus>> entry = it.next();
+                if (entry.getKey() < index) {
+                    entry.getValue().cancel(false);
+                    release(entry.getKey());
+                    it.remove();
+                }
+            }
+        }
+
+        ImagePlus imp = null;
+        if (future != null) {
+            try {
+                imp = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                IJ.log("Could not prefetch " + images.get(index) + ": " + e.getCause());
+            }
+        }
+        if (imp == null)
+            imp = open(images.get(index));
+        schedule(index + 1);
+        return imp;
+    }
+
+    /** Starts prefetching the images from {@code first} on that fit the lookahead and budget. */
+    private synchronized void schedule(int first) {
+        for (int i = first; i < Math.min(images.size(), first + lookahead); i++) {
+            if (prefetched.containsKey(i))
+                continue;
+            long estimate = estimateBytes(images.get(i));
+            if (reservedBytes + estimate > budgetBytes)
+                break;
+            reserved.put(i, estimate);
+            reservedBytes += estimate;
+            Path path = images.get(i);
+            prefetched.put(i, executor.submit(() -> open(path)));
+        }
+    }
+
+    /**
+     * @return The memory an image takes once opened, estimated from its TIFF
+     *         header, or its file size if it is no TIFF.
+     */
+    static long estimateBytes(Path path) {
+        File file = path.toFile();
+        try {
+            FileInfo[] infos = new TiffDecoder(file.getParent() + File.separator, file.getName()).getTiffInfo();
+            if (infos != null && infos.length > 0) {
+                FileInfo info = infos[0];
+                long pixels = (long) info.width * info.height;
+                // RGB is held as one int per pixel, which the screen image shares
+                boolean rgb = info.getBytesPerPixel() == 3;
+                long perSlice = pixels * (rgb ? 4 : info.getBytesPerPixel());
+                return perSlice * Math.max(1, info.nImages) + (rgb ? 0 : pixels);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Not a TIFF, or an unusual one
+        }
+        return file.length();
+    }
+
+    private void release(int index) {
+        Long bytes = reserved.remove(index);
+        if (bytes != null)
+            reservedBytes -= bytes;
+    }
+
+    private static ImagePlus open(Path path) {
+        ImagePlus imp = IJ.openImage(path.toString());
+        if (imp != null) {
+            // Build the 8-bit screen image now rather than on the first repaint
+            imp.getImage();
+        }
+        return imp;
+    }
+
+    /** Stops prefetching and drops the images not taken. */
+    @Override
+    public synchronized void close() {
+        for (Future<ImagePlus> future : prefetched.values()) {
+            future.cancel(false);
+        }
+        prefetched.clear();
+        reserved.clear();
+        reservedBytes = 0;
+        executor.shutdownNow();
+    }
+}
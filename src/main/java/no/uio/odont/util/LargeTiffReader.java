@@ -0,0 +1,269 @@
+package no.uio.odont.util;
+
+import java.awt.Rectangle;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.FileOpener;
+import ij.io.ImageReader;
+import ij.io.TiffDecoder;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Opens grayscale TIFFs too large to decode as a whole, such as scanned films
+ * and high-resolution panoramic images, as a small overview plus full
+ * resolution regions read on demand.
+ *
+ * Uncompressed images are read row by row at the region's byte offsets, so
+ * only the region's pixels are read. Compressed strips are decoded by ImageJ's
+ * own {@code ImageReader}, one strip at a time, and kept in an LRU cache, so
+ * moving to a neighbouring region does not decode them again. The overview
+ * samples every n-th row and averages n pixels along it.
+ *
+ * A region keeps the image's file info and calibration, as opened by ImageJ,
+ * with the calibration origin at minus the region's corner. Sites placed on it
+ * are thereby written in full resolution coordinates, and rows saved earlier
+ * are found and placed, as on the whole image.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public class LargeTiffReader {
+    /** Image property holding the {@link Rectangle} a region covers in the full image. */
+    public static final String REGION_PROPERTY = "Endodontic region";
+
+    private static final long CACHE_BYTES = 64L * 1024 * 1024;
+
+    // Overviews shown, and the readers they came from
+    private static final Map<ImagePlus, LargeTiffReader> OVERVIEWS = new WeakHashMap<>();
+
+    private final File file;
+    private final FileInfo info;
+    private final int bytesPerPixel;
+    private final int rowsPerStrip;
+    private final Calibration calibration;
+    private int overviewScale = 1;
+
+    // Guarded by this: decoded strips by index, least recently used first
+    private final LinkedHashMap<Integer, Object> strips = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    private LargeTiffReader(File file, FileInfo info, Calibration calibration) {
+        this.file = file;
+        this.info = info;
+        this.bytesPerPixel = info.fileType == FileInfo.GRAY8 ? 1 : 2;
+        this.rowsPerStrip = info.rowsPerStrip > 0 ? Math.min(info.rowsPerStrip, info.height) : info.height;
+        this.calibration = calibration;
+    }
+
+    /**
+     * Reads the TIFF header of an image.
+     *
+     * @throws IOException if the file is not an 8 or 16-bit grayscale TIFF with
+     *                     strips this reader can decode.
+     */
+    public static LargeTiffReader open(File file) throws IOException {
+        FileInfo[] infos = new TiffDecoder(file.getParent() + File.separator, file.getName()).getTiffInfo();
+        if (infos == null || infos.length == 0)
+            throw new IOException("not a TIFF file");
+        FileInfo info = infos[0];
+        if (info.fileType != FileInfo.GRAY8 && info.fileType != FileInfo.GRAY16_UNSIGNED
+                && info.fileType != FileInfo.GRAY16_SIGNED)
+            throw new IOException("only 8 and 16-bit grayscale images can be opened in parts");
+        boolean compressed = info.compression > FileInfo.COMPRESSION_NONE;
+        if (compressed && (info.compression == FileInfo.JPEG || info.compression > FileInfo.ZIP_WITH_DIFFERENCING
+                || info.stripOffsets == null || info.stripLengths == null))
+            throw new IOException("unsupported TIFF compression");
+
+        // Calibration and properties exactly as ImageJ opens the image, from its first row
+        FileInfo firstRow = (FileInfo) info.clone();
+        firstRow.height = 1;
+        firstRow.nImages = 1;
+        ImagePlus template = new FileOpener(firstRow).openImage();
+        if (template == null)
+            throw new IOException("could not decode the image");
+        return new LargeTiffReader(file, info, template.getCalibration());
+    }
+
+    /** @return The reader an overview was opened by, or null if the image is no overview. */
+    public static synchronized LargeTiffReader forOverview(ImagePlus imp) {
+        return imp != null ? OVERVIEWS.get(imp) : null;
+    }
+
+    public int getWidth() {
+        return info.width;
+    }
+
+    public int getHeight() {
+        return info.height;
+    }
+
+    /**
+     * Opens an overview, scaled down by a power of two until it fits the size
+     * given. Its calibration is scaled to match.
+     */
+    public ImagePlus openOverview(int maxSize) throws IOException {
+        int scale = 1;
+        while (Math.max(info.width, info.height) / scale > maxSize) {
+            scale *= 2;
+        }
+        int width = Math.max(1, info.width / scale);
+        int height = Math.max(1, info.height / scale);
+        ImageProcessor ip = createProcessor(width, height);
+        Object row = createPixels(info.width);
+
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            for (int y = 0; y < height; y++) {
+                readRow(in, Math.min(info.height - 1, y * scale + scale / 2), 0, info.width, row);
+                for (int x = 0; x < width; x++) {
+                    double sum = 0;
+                    for (int i = x * scale; i < (x + 1) * scale; i++) {
+                        sum += value(row, i);
+                    }
+                    ip.setf(x, y, (float) (sum / scale));
+                }
+            }
+        }
+
+        ip.resetMinAndMax();
+
+        ImagePlus overview = new ImagePlus(file.getName() + " (overview 1:" + scale + ")", ip);
+        Calibration cal = calibration.copy();
+        cal.pixelWidth *= scale;
+        cal.pixelHeight *= scale;
+        overview.setCalibration(cal);
+        overviewScale = scale;
+        synchronized (LargeTiffReader.class) {
+            OVERVIEWS.put(overview, this);
+        }
+        return overview;
+    }
+
+    /** @return A rectangle of the overview in full resolution pixels, within the image. */
+    public Rectangle toFullResolution(Rectangle overviewBounds) {
+        Rectangle full = new Rectangle(overviewBounds.x * overviewScale, overviewBounds.y * overviewScale,
+                overviewBounds.width * overviewScale, overviewBounds.height * overviewScale);
+        return full.intersection(new Rectangle(0, 0, info.width, info.height));
+    }
+
+    /**
+     * Opens a region at full resolution, with the image's file info and a
+     * calibration whose origin makes calibrated coordinates those of the full
+     * image.
+     */
+    public ImagePlus openRegion(Rectangle region) throws IOException {
+        ImageProcessor ip = createProcessor(region.width, region.height);
+        Object pixels = ip.getPixels();
+        Object row = createPixels(region.width);
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            for (int y = 0; y < region.height; y++) {
+                readRow(in, region.y + y, region.x, region.width, row);
+                System.arraycopy(row, 0, pixels, y * region.width, region.width);
+            }
+        }
+        ip.resetMinAndMax();
+
+        ImagePlus imp = new ImagePlus(file.getName() + " [" + region.x + "," + region.y + " " + region.width + "x"
+                + region.height + "]", ip);
+        Calibration cal = calibration.copy();
+        cal.xOrigin -= region.x;
+        cal.yOrigin -= region.y;
+        imp.setCalibration(cal);
+
+        FileInfo fi = (FileInfo) info.clone();
+        fi.width = region.width;
+        fi.height = region.height;
+        fi.nImages = 1;
+        imp.setFileInfo(fi);
+        imp.setProperty(REGION_PROPERTY, new Rectangle(region));
+        return imp;
+    }
+
+    /** Reads {@code width} pixels of row {@code y} from column {@code x} into {@code row}. */
+    private void readRow(RandomAccessFile in, int y, int x, int width, Object row) throws IOException {
+        int strip = y / rowsPerStrip;
+        int stripRow = y - strip * rowsPerStrip;
+        if (info.compression > FileInfo.COMPRESSION_NONE) {
+            System.arraycopy(strip(in, strip), stripRow * info.width + x, row, 0, width);
+            return;
+        }
+
+        long start = info.stripOffsets != null && strip < info.stripOffsets.length
+                ? info.stripOffsets[strip] & 0xffffffffL
+                : info.getOffset() + (long) strip * rowsPerStrip * info.width * bytesPerPixel;
+        byte[] bytes = new byte[width * bytesPerPixel];
+        in.seek(start + ((long) stripRow * info.width + x) * bytesPerPixel);
+        in.readFully(bytes);
+        if (bytesPerPixel == 1) {
+            System.arraycopy(bytes, 0, row, 0, width);
+            return;
+        }
+        short[] shorts = (short[]) row;
+        // Signed images are shifted to unsigned, as ImageJ does
+        int shift = info.fileType == FileInfo.GRAY16_SIGNED ? 32768 : 0;
+        for (int i = 0; i < width; i++) {
+            int b0 = bytes[2 * i] & 0xff;
+            int b1 = bytes[2 * i + 1] & 0xff;
+            shorts[i] = (short) ((info.intelByteOrder ? (b1 << 8) | b0 : (b0 << 8) | b1) + shift);
+        }
+    }
+
+    /** Returns the pixels of a compressed strip, decoding it if it is not cached. */
+    private synchronized Object strip(RandomAccessFile in, int strip) throws IOException {
+        Object pixels = strips.get(strip);
+        if (pixels != null)
+            return pixels;
+
+        // Decode the strip on its own, as if it were a one-strip image
+        byte[] compressed = new byte[info.stripLengths[strip]];
+        in.seek(info.stripOffsets[strip] & 0xffffffffL);
+        in.readFully(compressed);
+        FileInfo fi = (FileInfo) info.clone();
+        fi.height = Math.min(rowsPerStrip, info.height - strip * rowsPerStrip);
+        fi.nImages = 1;
+        fi.stripOffsets = new int[] { 0 };
+        fi.stripLengths = new int[] { compressed.length };
+        fi.offset = 0;
+        fi.longOffset = 0;
+        pixels = new ImageReader(fi).readPixels(new ByteArrayInputStream(compressed), 0);
+        if (pixels == null)
+            throw new IOException("could not decode strip " + strip + " of " + file);
+
+        strips.put(strip, pixels);
+        cachedBytes += (long) info.width * fi.height * bytesPerPixel;
+        Iterator<Map.Entry<Integer, Object>> it = strips.entrySet().iterator();
+        while (cachedBytes > CACHE_BYTES && it.hasNext()) {
+            Map.Entry<Integer, Object> eldest = it.next();
+            if (eldest.getKey() == strip)
+                break;
+            cachedBytes -= (long) info.width * Math.min(rowsPerStrip, info.height - eldest.getKey() * rowsPerStrip)
+                    * bytesPerPixel;
+            it.remove();
+        }
+        return pixels;
+    }
+
+    private ImageProcessor createProcessor(int width, int height) {
+        return bytesPerPixel == 1 ? new ByteProcessor(width, height) : new ShortProcessor(width, height);
+    }
+
+    private Object createPixels(int length) {
+        return bytesPerPixel == 1 ? new byte[length] : new short[length];
+    }
+
+    private static int value(Object row, int i) {
+        return row instanceof byte[] ? ((byte[]) row)[i] & 0xff : ((short[]) row)[i] & 0xffff;
+    }
+}
@@ -0,0 +1,568 @@
+package no.uio.odont.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On-disk index from image to rows of a result file, kept in
+ * {@code <result file>.idx}, so the roots saved earlier for an image can be
+ * shown again without reading the whole store.
+ *
+ * The index is a hash table of fixed-size records, one per row, keyed by the
+ * hash of the image path and pointing at the row's byte range, so a lookup
+ * reads a few records wherever the image's rows are in the file. The table is
+ * rewritten twice as large when it is three quarters full. The content hash of
+ * every image saved is kept as an alias of the path hash it was saved under, in
+ * the append-only {@code <result file>.aliases}, so a moved or renamed image is
+ * still matched to its rows. The aliases are kept in memory per result file and
+ * only the ones appended since are read when the alias file grew.
+ *
+ * Result files are append-only, so the header remembers how much of the file
+ * is indexed and each lookup only indexes the rows appended since. If the
+ * result file was replaced or truncated, the table is rebuilt. Index updates
+ * are serialized with an OS file lock, so several workstations sharing a store
+ * can use the same index. The OS lock is held per process, so threads of one
+ * ImageJ, e.g. batch measurement workers, also share a monitor per index.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public class MeasurementIndex {
+    public static final String EXTENSION = ".idx";
+    public static final String ALIAS_EXTENSION = ".aliases";
+
+    private static final long MAGIC = 0x3230305844494d45L; // "EMIDX002"
+    // Rows and aliases in one unsorted list; only the aliases are taken over
+    private static final long OLD_MAGIC = 0x3130305844494d45L; // "EMIDX001"
+    private static final int OLD_RECORD_SIZE = 24;
+    private static final int OLD_TYPE_ALIAS = 1;
+    private static final int HEADER_SIZE = 48;
+    private static final int SLOT_SIZE = 24;
+    private static final int MIN_SLOTS = 1024;
+    // Slots read at a time when probing for a key
+    private static final int PROBE_SLOTS = 64;
+
+    private static final long ALIAS_MAGIC = 0x315341494c414d45L; // "EMALIAS1"
+    private static final int ALIAS_HEADER_SIZE = 16;
+    private static final int ALIAS_SIZE = 16;
+
+    // Bytes at the start of the result file used to recognise it
+    private static final int PREFIX_LENGTH = 4096;
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    private static final Map<Path, Object> MONITORS = new ConcurrentHashMap<>();
+    // Guarded by the monitor of the index
+    private static final Map<Path, Aliases> ALIASES = new HashMap<>();
+    private static final Random GENERATIONS = new Random();
+
+    private final Path store;
+    private final Path indexPath;
+    private final Path aliasPath;
+    private final Charset charset = Charset.defaultCharset();
+    private final Object monitor;
+
+    /** The aliases of a result file, as read up to a size of its alias file. */
+    private static final class Aliases {
+        long generation;
+        long size;
+        final Map<Long, Set<Long>> paths = new HashMap<>();
+
+        void clear(long generation) {
+            this.generation = generation;
+            size = ALIAS_HEADER_SIZE;
+            paths.clear();
+        }
+    }
+
+    public MeasurementIndex(Path store) {
+        this.store = store;
+        this.indexPath = indexFor(store);
+        this.aliasPath = aliasesFor(store);
+        this.monitor = MONITORS.computeIfAbsent(indexPath.toAbsolutePath().normalize(), k -> new Object());
+    }
+
+    /** The index belonging to a result file, e.g. Measurements.csv.idx. */
+    public static Path indexFor(Path store) {
+        return Paths.get(store.toString() + EXTENSION);
+    }
+
+    /** The aliases belonging to a result file, e.g. Measurements.csv.aliases. */
+    public static Path aliasesFor(Path store) {
+        return Paths.get(store.toString() + ALIAS_EXTENSION);
+    }
+
+    /**
+     * Returns the rows saved for an image, in file order.
+     *
+     * @param imagePath   The image path as written in the first column.
+     * @param contentHash The image's {@link ContentHash}, or
+     *                    {@link ContentHash#UNKNOWN} to match by path only.
+     */
+    public List<String> findRows(String imagePath, long contentHash) throws IOException {
+        List<String> rows = new ArrayList<>();
+        if (!Files.exists(store))
+            return rows;
+
+        long pathKey = ContentHash.ofString(imagePath);
+        synchronized (monitor) {
+            // The path itself plus every path the same content was saved under
+            Set<Long> keys = new HashSet<>();
+            keys.add(pathKey);
+            if (contentHash != ContentHash.UNKNOWN) {
+                Set<Long> paths = knownAliases().paths.get(contentHash);
+                if (paths != null)
+                    keys.addAll(paths);
+            }
+
+            try (FileChannel index = openIndex(); FileChannel csv = FileChannel.open(store, StandardOpenOption.READ)) {
+                FileLock lock = index.lock();
+                try {
+                    update(index, csv);
+                    long[] ranges = lookup(index, keys);
+
+                    // Read the rows; a path mismatch can only be a hash collision
+                    MeasurementRow row = new MeasurementRow();
+                    Set<Long> offsets = new HashSet<>();
+                    for (int i = 0; i < ranges.length; i += 3) {
+                        // An update interrupted before its header was written indexes rows twice
+                        if (!offsets.add(ranges[i]))
+                            continue;
+                        ByteBuffer bytes = ByteBuffer.allocate((int) ranges[i + 1]);
+                        while (bytes.hasRemaining()) {
+                            if (csv.read(bytes, ranges[i] + bytes.position()) < 0)
+                                break;
+                        }
+                        String text = new String(bytes.array(), 0, bytes.position(), charset);
+                        if (ranges[i + 2] == pathKey && (!row.parse(text, MeasurementRow.detectSeparator(text, ','))
+                                || !imagePath.equals(row.getPath())))
+                            continue;
+                        rows.add(text);
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Records that an image with the given content was saved under a path, so
+     * its rows are found after the image is moved. Recording the same alias again
+     * has no effect, and does not touch the alias file if it is known already.
+     */
+    public void addAlias(long contentHash, String imagePath) throws IOException {
+        if (contentHash == ContentHash.UNKNOWN)
+            return;
+        long pathKey = ContentHash.ofString(imagePath);
+        synchronized (monitor) {
+            if (contains(knownAliases(), contentHash, pathKey))
+                return;
+            try (FileChannel channel = openAliases()) {
+                FileLock lock = channel.lock();
+                try {
+                    // Another workstation may have recorded it since
+                    Aliases aliases = readAliases(channel);
+                    if (contains(aliases, contentHash, pathKey))
+                        return;
+                    ByteBuffer alias = order(ByteBuffer.allocate(ALIAS_SIZE));
+                    alias.putLong(contentHash).putLong(pathKey).flip();
+                    aliases.size = write(channel, alias, aliases.size);
+                    aliases.paths.computeIfAbsent(contentHash, k -> new HashSet<>()).add(pathKey);
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns every alias recorded for the result file.
+     *
+     * @return The hashes of the paths each content was saved under, by
+     *         {@link ContentHash}; empty if there are no aliases yet.
+     */
+    public Map<Long, Set<Long>> aliases() throws IOException {
+        Map<Long, Set<Long>> copy = new HashMap<>();
+        if (!Files.exists(aliasPath) && !Files.exists(indexPath))
+            return copy;
+        synchronized (monitor) {
+            for (Map.Entry<Long, Set<Long>> entry : knownAliases().paths.entrySet()) {
+                copy.put(entry.getKey(), new HashSet<>(entry.getValue()));
+            }
+        }
+        return copy;
+    }
+
+    private static boolean contains(Aliases aliases, long contentHash, long pathKey) {
+        Set<Long> paths = aliases.paths.get(contentHash);
+        return paths != null && paths.contains(pathKey);
+    }
+
+    /**
+     * Returns the aliases of the result file, reading the alias file again only
+     * if its size changed. Called holding the monitor.
+     */
+    private Aliases knownAliases() throws IOException {
+        Aliases aliases = ALIASES.get(aliasPath.toAbsolutePath().normalize());
+        if (aliases != null) {
+            try {
+                if (Files.size(aliasPath) == aliases.size)
+                    return aliases;
+            } catch (NoSuchFileException e) {
+                // Deleted: start over
+            }
+        }
+        try (FileChannel channel = openAliases()) {
+            FileLock lock = channel.lock();
+            try {
+                return readAliases(channel);
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Reads the aliases appended since they were last read, or all of them if
+     * the alias file was created again. Called holding the monitor and the
+     * alias file's lock.
+     */
+    private Aliases readAliases(FileChannel channel) throws IOException {
+        Aliases aliases = ALIASES.computeIfAbsent(aliasPath.toAbsolutePath().normalize(), k -> new Aliases());
+        long size = channel.size();
+        ByteBuffer header = read(channel, 0, ALIAS_HEADER_SIZE);
+        if (size < ALIAS_HEADER_SIZE || header.getLong(0) != ALIAS_MAGIC) {
+            createAliases(channel);
+            size = channel.size();
+            header = read(channel, 0, ALIAS_HEADER_SIZE);
+        }
+        if (header.getLong(8) != aliases.generation || aliases.size < ALIAS_HEADER_SIZE || size < aliases.size)
+            aliases.clear(header.getLong(8));
+
+        // A torn trailing alias is overwritten by the next one
+        size -= (size - ALIAS_HEADER_SIZE) % ALIAS_SIZE;
+        ByteBuffer records = read(channel, aliases.size, (int) (size - aliases.size));
+        while (records.remaining() >= ALIAS_SIZE) {
+            aliases.paths.computeIfAbsent(records.getLong(), k -> new HashSet<>()).add(records.getLong());
+        }
+        aliases.size = size;
+        return aliases;
+    }
+
+    /**
+     * Starts a new alias file, taking over the aliases of an index of the old
+     * format, which kept them among the rows.
+     */
+    private void createAliases(FileChannel channel) throws IOException {
+        ByteBuffer taken = order(ByteBuffer.allocate(0));
+        if (Files.exists(indexPath)) {
+            try (FileChannel index = openIndex()) {
+                FileLock lock = index.lock();
+                try {
+                    taken = oldAliases(index);
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+        long generation;
+        synchronized (GENERATIONS) {
+            generation = GENERATIONS.nextLong();
+        }
+        ByteBuffer header = order(ByteBuffer.allocate(ALIAS_HEADER_SIZE));
+        header.putLong(ALIAS_MAGIC).putLong(generation).flip();
+        channel.truncate(0);
+        write(channel, header, 0);
+        write(channel, taken, ALIAS_HEADER_SIZE);
+        channel.force(false);
+    }
+
+    /** Returns the aliases of an old-format index as alias records. */
+    private static ByteBuffer oldAliases(FileChannel index) throws IOException {
+        long size = index.size();
+        if (size < HEADER_SIZE || read(index, 0, 8).getLong(0) != OLD_MAGIC)
+            return order(ByteBuffer.allocate(0));
+        // The old header was 32 bytes
+        ByteBuffer records = read(index, 32, (int) (size - 32));
+        ByteBuffer aliases = order(ByteBuffer.allocate(records.limit()));
+        for (int p = 0; p + OLD_RECORD_SIZE <= records.limit(); p += OLD_RECORD_SIZE) {
+            if (records.getInt(p + 20) == OLD_TYPE_ALIAS)
+                aliases.putLong(records.getLong(p)).putLong(records.getLong(p + 8));
+        }
+        aliases.flip();
+        return aliases;
+    }
+
+    private FileChannel openIndex() throws IOException {
+        return FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    private FileChannel openAliases() throws IOException {
+        return FileChannel.open(aliasPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Returns the header as {indexed, prefix hash, slots, rows}; all zero if the
+     * index is new, unreadable or of the old format, so it is rebuilt.
+     */
+    private static long[] readHeader(FileChannel index) throws IOException {
+        ByteBuffer header = read(index, 0, HEADER_SIZE);
+        long slots = header.limit() == HEADER_SIZE ? header.getLong(24) : 0;
+        if (header.limit() < HEADER_SIZE || header.getLong(0) != MAGIC || Long.bitCount(slots) != 1
+                || index.size() < HEADER_SIZE + slots * SLOT_SIZE)
+            return new long[4];
+        return new long[] { header.getLong(8), header.getLong(16), slots, header.getLong(32) };
+    }
+
+    /** Indexes the rows appended to the result file since the last update. */
+    private void update(FileChannel index, FileChannel csv) throws IOException {
+        long[] header = readHeader(index);
+        long indexed = header[0];
+        long prefixHash = header[1];
+        long csvSize = csv.size();
+
+        if (indexed > csvSize || (indexed > 0 && prefixHash(csv, indexed) != prefixHash)) {
+            // The result file was replaced: rebuild the table
+            indexed = 0;
+        }
+        if (indexed == csvSize && header[2] > 0)
+            return;
+
+        // Key, offset and length of each complete line; a row still being
+        // written is picked up next time
+        long[] rows = new long[3 * 64];
+        int n = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        byte[] line = new byte[1024];
+        int lineLength = 0;
+        long lineStart = indexed;
+        long position = indexed;
+
+        while (position < csvSize) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), csvSize - position));
+            int read = csv.read(buffer, position);
+            if (read <= 0)
+                break;
+            buffer.flip();
+            for (int i = 0; i < read; i++) {
+                byte b = buffer.get(i);
+                if (b != '\n') {
+                    if (lineLength == line.length)
+                        line = Arrays.copyOf(line, line.length * 2);
+                    line[lineLength++] = b;
+                    continue;
+                }
+                long lineEnd = position + i;
+                String path = pathOf(line, lineLength);
+                if (path != null) {
+                    if (n == rows.length)
+                        rows = Arrays.copyOf(rows, n * 2);
+                    rows[n++] = ContentHash.ofString(path);
+                    rows[n++] = lineStart;
+                    rows[n++] = lineEnd - lineStart;
+                }
+                lineLength = 0;
+                lineStart = lineEnd + 1;
+            }
+            position += read;
+        }
+
+        long count = (indexed == 0 ? 0 : header[3]) + n / 3;
+        long slots = header[2];
+        if (indexed == 0 || count > slots / 4 * 3) {
+            rebuild(index, indexed == 0 ? 0 : slots, Arrays.copyOf(rows, n), count, lineStart,
+                    prefixHash(csv, lineStart));
+            return;
+        }
+        for (int i = 0; i < n; i += 3) {
+            insert(index, slots, rows[i], rows[i + 1], rows[i + 2]);
+        }
+        index.force(false);
+        writeHeader(index, lineStart, prefixHash(csv, lineStart), slots, count);
+    }
+
+    /** Writes a row record into the first free slot from the key's own. */
+    private static void insert(FileChannel index, long slots, long key, long offset, long length)
+            throws IOException {
+        long slot = slotOf(key, slots);
+        while (true) {
+            int chunk = (int) Math.min(PROBE_SLOTS, slots - slot);
+            ByteBuffer records = read(index, HEADER_SIZE + slot * SLOT_SIZE, chunk * SLOT_SIZE);
+            for (int s = 0; s < chunk; s++) {
+                if (records.getLong(s * SLOT_SIZE) == 0) {
+                    ByteBuffer record = order(ByteBuffer.allocate(SLOT_SIZE));
+                    record.putLong(key).putLong(offset).putInt((int) length).putInt(0).flip();
+                    write(index, record, HEADER_SIZE + (slot + s) * SLOT_SIZE);
+                    return;
+                }
+            }
+            slot = (slot + chunk) % slots;
+        }
+    }
+
+    /**
+     * Writes the table again with room for twice its rows, keeping the rows of
+     * the first {@code oldSlots} slots and adding the new ones.
+     */
+    private static void rebuild(FileChannel index, long oldSlots, long[] rows, long count, long indexed,
+            long prefixHash) throws IOException {
+        long slots = MIN_SLOTS;
+        while (slots < count * 2)
+            slots *= 2;
+        ByteBuffer table = order(ByteBuffer.allocate((int) (slots * SLOT_SIZE)));
+        if (oldSlots > 0) {
+            ByteBuffer old = read(index, HEADER_SIZE, (int) (oldSlots * SLOT_SIZE));
+            for (int p = 0; p + SLOT_SIZE <= old.limit(); p += SLOT_SIZE) {
+                long key = old.getLong(p);
+                if (key != 0)
+                    put(table, slots, key, old.getLong(p + 8), old.getInt(p + 16));
+            }
+        }
+        for (int i = 0; i < rows.length; i += 3) {
+            put(table, slots, rows[i], rows[i + 1], rows[i + 2]);
+        }
+
+        // A rebuild cut short leaves an index that is rebuilt from scratch
+        writeHeader(index, 0, 0, 0, 0);
+        index.force(false);
+        index.truncate(HEADER_SIZE);
+        write(index, table, HEADER_SIZE);
+        index.force(false);
+        writeHeader(index, indexed, prefixHash, slots, count);
+    }
+
+    /** Puts a row record into the first free slot of a table in memory. */
+    private static void put(ByteBuffer table, long slots, long key, long offset, long length) {
+        long slot = slotOf(key, slots);
+        while (table.getLong((int) (slot * SLOT_SIZE)) != 0)
+            slot = (slot + 1) % slots;
+        int p = (int) (slot * SLOT_SIZE);
+        table.putLong(p, key).putLong(p + 8, offset).putInt(p + 16, (int) length);
+    }
+
+    private static long slotOf(long key, long slots) {
+        return ((key * 0x9e3779b97f4a7c15L) >>> 20) & (slots - 1);
+    }
+
+    /**
+     * Returns the image path of a row, or null if the line is not a result row.
+     * Works on the raw bytes, like {@link MeasurementRow#detectSeparator}, so
+     * indexing a large store does not parse every row.
+     */
+    private String pathOf(byte[] line, int length) {
+        int semicolons = 0, commas = 0, firstSemicolon = -1, firstComma = -1;
+        for (int i = 0; i < length; i++) {
+            if (line[i] == ';') {
+                if (semicolons++ == 0)
+                    firstSemicolon = i;
+            } else if (line[i] == ',') {
+                if (commas++ == 0)
+                    firstComma = i;
+            }
+        }
+        int end;
+        if (semicolons >= MeasurementRow.FIELD_COUNT - 1)
+            end = firstSemicolon;
+        else if (commas >= MeasurementRow.FIELD_COUNT - 1)
+            end = firstComma;
+        else
+            return null;
+        return new String(line, 0, end, charset).trim();
+    }
+
+    /**
+     * Returns {offset, length, key} triples of the rows matching any of the
+     * keys, sorted by offset. Only the slots from each key's own to the next
+     * free one are read.
+     */
+    private static long[] lookup(FileChannel index, Set<Long> keys) throws IOException {
+        long slots = readHeader(index)[2];
+        List<long[]> found = new ArrayList<>();
+        for (long key : keys) {
+            if (slots == 0)
+                break;
+            long slot = slotOf(key, slots);
+            probe: while (true) {
+                int chunk = (int) Math.min(PROBE_SLOTS, slots - slot);
+                // Read, not mapped: a mapping would keep the index from being truncated on Windows
+                ByteBuffer records = read(index, HEADER_SIZE + slot * SLOT_SIZE, chunk * SLOT_SIZE);
+                for (int p = 0; p + SLOT_SIZE <= records.limit(); p += SLOT_SIZE) {
+                    long k = records.getLong(p);
+                    if (k == 0)
+                        break probe;
+                    if (k == key)
+                        found.add(new long[] { records.getLong(p + 8), records.getInt(p + 16), key });
+                }
+                slot = (slot + chunk) % slots;
+            }
+        }
+        found.sort((a, b) -> Long.compare(a[0], b[0]));
+        long[] ranges = new long[found.size() * 3];
+        for (int i = 0; i < found.size(); i++) {
+            System.arraycopy(found.get(i), 0, ranges, i * 3, 3);
+        }
+        return ranges;
+    }
+
+    private long prefixHash(FileChannel csv, long indexed) throws IOException {
+        ByteBuffer prefix = read(csv, 0, (int) Math.min(PREFIX_LENGTH, indexed));
+        long hash = 0xcbf29ce484222325L;
+        while (prefix.hasRemaining()) {
+            hash ^= prefix.get() & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static void writeHeader(FileChannel index, long indexed, long prefixHash, long slots, long count)
+            throws IOException {
+        ByteBuffer header = order(ByteBuffer.allocate(HEADER_SIZE));
+        header.putLong(MAGIC).putLong(indexed).putLong(prefixHash).putLong(slots).putLong(count).putLong(0)
+                .flip();
+        write(index, header, 0);
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = order(ByteBuffer.allocate(length));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                break;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static long write(FileChannel channel, ByteBuffer bytes, long position) throws IOException {
+        while (bytes.hasRemaining()) {
+            position += channel.write(bytes, position);
+        }
+        return position;
+    }
+
+    private static ByteBuffer order(ByteBuffer buffer) {
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
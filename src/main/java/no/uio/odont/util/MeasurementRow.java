@@ -0,0 +1,252 @@
+package no.uio.odont.util;
+
+import no.uio.odont.logic.BatchCalculations;
+import no.uio.odont.model.SiteSchema;
+
+/**
+ * Mutable, reusable view of one result row as written by
+ * {@code Endodontic_Measurements_2.onSaveRequested}.
+ *
+ * Row layout: filepath, timestamp, operator, image type, unit, quadrant, tooth,
+ * root, 13 qualitative observations, 15 sites as x/y pairs, comment. Missing
+ * sites are written as "X" and parsed to {@code Double.NaN}. The comment is
+ * the free-text remainder of the line and may itself contain separators.
+ *
+ * A single instance is meant to be reused for every line of a file so that
+ * streaming readers do not allocate per row beyond the field strings.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public class MeasurementRow {
+    public static final int HEADER_FIELDS = 8;
+    public static final int QUALITATIVE_FIELDS = 13;
+    public static final int SITE_COUNT = SiteSchema.COUNT;
+    public static final int FIELD_COUNT = HEADER_FIELDS + QUALITATIVE_FIELDS + 2 * SITE_COUNT + 1;
+
+    /** Site names in the order their coordinates appear in a row. */
+    public static final String[] SITE_NAMES = SiteSchema.names();
+
+    /** Maps the row site order above to the Table 1 columns of {@link BatchCalculations}. */
+    public static final int[] SITE_TO_TABLE1 = { BatchCalculations.APEX, BatchCalculations.APEX_GP,
+            BatchCalculations.CANAL_DEVIATION, BatchCalculations.CANAL_ENTRANCE,
+            BatchCalculations.LESION_PERIPHERY, BatchCalculations.LESION_MESIAL, BatchCalculations.LESION_DISTAL,
+            BatchCalculations.BONE_MESIAL, BatchCalculations.BONE_DISTAL, BatchCalculations.CEJ_MESIAL,
+            BatchCalculations.CEJ_DISTAL, BatchCalculations.CANAL_1MM_MESIAL, BatchCalculations.CANAL_1MM_DISTAL,
+            BatchCalculations.CANAL_4MM_MESIAL, BatchCalculations.CANAL_4MM_DISTAL };
+
+    public static final String MISSING = "X";
+
+    private String path;
+    private String timestamp;
+    private String operator;
+    private String imageType;
+    private String unit;
+    private int quadrant;
+    private String tooth;
+    private String root;
+    private final String[] qualitative = new String[QUALITATIVE_FIELDS];
+    private final double[] x = new double[SITE_COUNT];
+    private final double[] y = new double[SITE_COUNT];
+    private String comment;
+    private char separator;
+
+    // Start index of every field in the current line, reused between rows
+    private final int[] fieldStart = new int[FIELD_COUNT];
+    private final int[] fieldEnd = new int[FIELD_COUNT];
+
+    /**
+     * Guesses the separator of a row. Rows written with ',' as decimal separator
+     * use ';' between fields and therefore contain at least one ';' per field;
+     * otherwise ',' is used.
+     *
+     * @param line     The row text.
+     * @param fallback Separator to use when the row is too short to tell.
+     */
+    public static char detectSeparator(CharSequence line, char fallback) {
+        int semicolons = 0, commas = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == ';')
+                semicolons++;
+            else if (c == ',')
+                commas++;
+        }
+        if (semicolons >= FIELD_COUNT - 1)
+            return ';';
+        if (commas >= FIELD_COUNT - 1)
+            return ',';
+        return fallback;
+    }
+
+    /**
+     * Parses a row into this instance.
+     *
+     * @param line      The row without line terminator.
+     * @param separator The field separator (',' or ';').
+     * @return false if the line does not have the expected number of fields.
+     */
+    public boolean parse(String line, char separator) {
+        this.separator = separator;
+        int field = 0;
+        int start = 0;
+        int len = line.length();
+        // All fields but the last are separator-terminated; the comment is the rest
+        while (field < FIELD_COUNT - 1) {
+            int end = line.indexOf(separator, start);
+            if (end < 0)
+                return false;
+            fieldStart[field] = start;
+            fieldEnd[field] = end;
+            field++;
+            start = end + 1;
+        }
+        fieldStart[field] = start;
+        fieldEnd[field] = len;
+
+        path = field(line, 0);
+        timestamp = field(line, 1);
+        operator = field(line, 2);
+        imageType = field(line, 3);
+        unit = field(line, 4);
+        quadrant = (int) parseNumber(line, fieldStart[5], fieldEnd[5], separator);
+        tooth = field(line, 6);
+        root = field(line, 7);
+        for (int i = 0; i < QUALITATIVE_FIELDS; i++) {
+            qualitative[i] = field(line, HEADER_FIELDS + i);
+        }
+        int coordBase = HEADER_FIELDS + QUALITATIVE_FIELDS;
+        for (int s = 0; s < SITE_COUNT; s++) {
+            int fx = coordBase + 2 * s;
+            x[s] = parseNumber(line, fieldStart[fx], fieldEnd[fx], separator);
+            y[s] = parseNumber(line, fieldStart[fx + 1], fieldEnd[fx + 1], separator);
+        }
+        comment = line.substring(fieldStart[FIELD_COUNT - 1], fieldEnd[FIELD_COUNT - 1]).trim();
+        return true;
+    }
+
+    private String field(String line, int index) {
+        return line.substring(fieldStart[index], fieldEnd[index]).trim();
+    }
+
+    /**
+     * Parses a plain decimal number in {@code [start, end)}, accepting either '.'
+     * or ',' as decimal separator (',' is only a decimal separator when the
+     * field separator is ';'). Returns NaN for "X", empty or malformed fields.
+     */
+    static double parseNumber(CharSequence s, int start, int end, char separator) {
+        while (start < end && s.charAt(start) == ' ')
+            start++;
+        while (end > start && s.charAt(end - 1) == ' ')
+            end--;
+        if (start == end || s.charAt(start) == 'X')
+            return Double.NaN;
+
+        boolean negative = false;
+        int i = start;
+        char c = s.charAt(i);
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        for (; i < end; i++) {
+            c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (digits >= 15)
+                    return slowParse(s, start, end, separator);
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (fractionDigits >= 0)
+                    fractionDigits++;
+            } else if ((c == '.' || (c == ',' && separator != ',')) && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                return slowParse(s, start, end, separator);
+            }
+        }
+        if (digits == 0)
+            return Double.NaN;
+        double value = mantissa;
+        if (fractionDigits > 0)
+            value /= POWERS_OF_TEN[fractionDigits];
+        return negative ? -value : value;
+    }
+
+    // Exact up to 1e15, so mantissa / power is correctly rounded like Double.parseDouble
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15 };
+
+    private static double slowParse(CharSequence s, int start, int end, char separator) {
+        String text = s.subSequence(start, end).toString();
+        if (separator != ',')
+            text = text.replace(',', '.');
+        try {
+            return Double.parseDouble(text);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getTimestamp() {
+        return timestamp;
+    }
+
+    public String getOperator() {
+        return operator;
+    }
+
+    public String getImageType() {
+        return imageType;
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    public int getQuadrant() {
+        return quadrant;
+    }
+
+    public String getTooth() {
+        return tooth;
+    }
+
+    public String getRoot() {
+        return root;
+    }
+
+    /** @param index Qualitative column, 0 = PAI, then the order of README Table 3. */
+    public String getQualitative(int index) {
+        return qualitative[index];
+    }
+
+    /** @param site Site index in row order ({@link #SITE_NAMES}). */
+    public double getX(int site) {
+        return x[site];
+    }
+
+    /** @param site Site index in row order ({@link #SITE_NAMES}). */
+    public double getY(int site) {
+        return y[site];
+    }
+
+    public boolean hasSite(int site) {
+        return !Double.isNaN(x[site]) && !Double.isNaN(y[site]);
+    }
+
+    public String getComment() {
+        return comment;
+    }
+
+    public char getSeparator() {
+        return separator;
+    }
+}
@@ -0,0 +1,280 @@
+package no.uio.odont.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+import ij.IJ;
+import no.uio.odont.logic.BatchCalculations;
+
+/**
+ * Streams a result file (e.g. the global Measurements.csv) and appends one row
+ * of derived Table 2 quantities per measured root to a derived-metrics file.
+ *
+ * The input is read through a fixed-size NIO buffer and processed in batches,
+ * so memory use is constant regardless of the input size. The byte offset of
+ * the last processed line is remembered in a small state file next to the
+ * output, so a re-run only processes rows appended since the previous run.
+ * Only complete, newline-terminated lines are consumed; a row still being
+ * written is picked up next time.
+ *
+ * Usage: {@code MeasurementsPostProcessor <Measurements.csv> [derived.csv]}
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public class MeasurementsPostProcessor {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int BATCH_ROWS = 1024;
+    private static final String STATE_SUFFIX = ".offset";
+    private static final String KEY_INPUT_OFFSET = "inputOffset";
+    private static final String KEY_OUTPUT_LENGTH = "outputLength";
+
+    private final Path input;
+    private final Path output;
+    private final Path stateFile;
+    private final char defaultSeparator;
+    private final Charset charset = Charset.defaultCharset(); // IJ.append writes with the default charset
+
+    // Batch buffers, reused for every batch
+    private final double[][] x = new double[BatchCalculations.SITE_COUNT][BATCH_ROWS];
+    private final double[][] y = new double[BatchCalculations.SITE_COUNT][BATCH_ROWS];
+    private final int[] quadrant = new int[BATCH_ROWS];
+    private final double[][] derived = new double[BatchCalculations.QUANTITY_COUNT][BATCH_ROWS];
+    private final String[][] identification = new String[BATCH_ROWS][];
+    private final char[] rowSeparator = new char[BATCH_ROWS];
+    private int batchSize;
+
+    private final MeasurementRow row = new MeasurementRow();
+    private final RowEncoder pointEncoder = new RowEncoder('.', ',', '-');
+    private final RowEncoder commaEncoder = new RowEncoder(',', ';', '-');
+
+    private long rowsWritten;
+    private long rowsSkipped;
+
+    /**
+     * @param input            The result file to read.
+     * @param output           The derived-metrics file to append to.
+     * @param defaultSeparator Separator assumed for rows where it cannot be
+     *                         detected, normally {@link AppConfig#getCsvSeparator()}.
+     */
+    public MeasurementsPostProcessor(Path input, Path output, char defaultSeparator) {
+        this.input = input;
+        this.output = output;
+        this.stateFile = Paths.get(output.toString() + STATE_SUFFIX);
+        this.defaultSeparator = defaultSeparator;
+        for (int i = 0; i < BATCH_ROWS; i++) {
+            identification[i] = new String[7];
+        }
+    }
+
+    /**
+     * Default output location: {@code <input name>-derived.csv} beside the input.
+     */
+    public static Path defaultOutput(Path input) {
+        String name = input.getFileName().toString();
+        int dotIndex = name.lastIndexOf('.');
+        String base = dotIndex > 0 ? name.substring(0, dotIndex) : name;
+        return input.resolveSibling(base + "-derived.csv");
+    }
+
+    /**
+     * Processes all complete rows appended since the previous run.
+     *
+     * @return The number of derived rows written.
+     */
+    public long process() throws IOException {
+        Properties state = loadState();
+        long offset = Long.parseLong(state.getProperty(KEY_INPUT_OFFSET, "0"));
+        long outputLength = Long.parseLong(state.getProperty(KEY_OUTPUT_LENGTH, "0"));
+
+        rowsWritten = 0;
+        rowsSkipped = 0;
+
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+
+            if (in.size() < offset) {
+                // Input was replaced or truncated: start over
+                offset = 0;
+                outputLength = 0;
+            }
+            // Drop anything written after the last saved state, e.g. by an interrupted run
+            out.truncate(outputLength);
+            out.position(outputLength);
+
+            BufferedWriter writer = new BufferedWriter(
+                    new OutputStreamWriter(Channels.newOutputStream(out), charset), READ_BUFFER_SIZE);
+            if (outputLength == 0) {
+                writeHeader(writer);
+            }
+
+            in.position(offset);
+            offset = readLines(in, offset, writer);
+            flushBatch(writer);
+            writer.flush();
+            out.force(false);
+
+            state.setProperty(KEY_INPUT_OFFSET, Long.toString(offset));
+            state.setProperty(KEY_OUTPUT_LENGTH, Long.toString(out.size()));
+        }
+        saveState(state);
+
+        if (rowsSkipped > 0) {
+            IJ.log("Skipped " + rowsSkipped + " malformed row(s) in " + input);
+        }
+        return rowsWritten;
+    }
+
+    /**
+     * Reads complete lines from the channel, returning the offset just after the
+     * last complete line.
+     */
+    private long readLines(FileChannel in, long offset, BufferedWriter writer) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        byte[] line = new byte[1024];
+        int lineLength = 0;
+        long position = offset;
+
+        while (in.read(buffer) > 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                position++;
+                if (b == '\n') {
+                    int end = lineLength;
+                    if (end > 0 && line[end - 1] == '\r')
+                        end--;
+                    if (end > 0)
+                        acceptLine(new String(line, 0, end, charset), writer);
+                    lineLength = 0;
+                    offset = position;
+                } else {
+                    if (lineLength == line.length) {
+                        byte[] grown = new byte[line.length * 2];
+                        System.arraycopy(line, 0, grown, 0, lineLength);
+                        line = grown;
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+            buffer.clear();
+        }
+        return offset;
+    }
+
+    private void acceptLine(String text, BufferedWriter writer) throws IOException {
+        char sep = MeasurementRow.detectSeparator(text, defaultSeparator);
+        if (!row.parse(text, sep)) {
+            rowsSkipped++;
+            return;
+        }
+
+        int i = batchSize;
+        for (int s = 0; s < MeasurementRow.SITE_COUNT; s++) {
+            int column = MeasurementRow.SITE_TO_TABLE1[s];
+            x[column][i] = row.getX(s);
+            y[column][i] = row.getY(s);
+        }
+        quadrant[i] = row.getQuadrant();
+        String[] id = identification[i];
+        id[0] = row.getPath();
+        id[1] = row.getTimestamp();
+        id[2] = row.getOperator();
+        id[3] = row.getImageType();
+        id[4] = Integer.toString(row.getQuadrant());
+        id[5] = row.getTooth();
+        id[6] = row.getRoot();
+        rowSeparator[i] = sep;
+
+        if (++batchSize == BATCH_ROWS) {
+            flushBatch(writer);
+        }
+    }
+
+    private void flushBatch(BufferedWriter writer) throws IOException {
+        if (batchSize == 0)
+            return;
+        BatchCalculations.computeRange(x, y, quadrant, derived, 0, batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            RowEncoder encoder = (rowSeparator[i] == ';' ? commaEncoder : pointEncoder).reset();
+            for (String field : identification[i]) {
+                encoder.field(field);
+            }
+            for (int q = 0; q < BatchCalculations.QUANTITY_COUNT; q++) {
+                double value = derived[q][i];
+                if (Double.isNaN(value))
+                    encoder.text(MeasurementRow.MISSING);
+                else
+                    encoder.fixed(value);
+                if (q < BatchCalculations.QUANTITY_COUNT - 1)
+                    encoder.separator();
+            }
+            encoder.writeTo(writer);
+            writer.newLine();
+            rowsWritten++;
+        }
+        batchSize = 0;
+    }
+
+    private void writeHeader(BufferedWriter writer) throws IOException {
+        char sep = defaultSeparator;
+        writer.write("filepath" + sep + "timestamp" + sep + "operator" + sep + "image type" + sep + "quadrant"
+                + sep + "tooth" + sep + "root");
+        for (String name : BatchCalculations.QUANTITY_NAMES) {
+            writer.write(sep);
+            writer.write(name);
+        }
+        writer.newLine();
+    }
+
+    private Properties loadState() throws IOException {
+        Properties state = new Properties();
+        if (Files.exists(stateFile) && Files.exists(output)) {
+            try (InputStream in = Files.newInputStream(stateFile)) {
+                state.load(in);
+            }
+        }
+        return state;
+    }
+
+    /** Writes the state to a temporary file first so a crash never leaves it half written. */
+    private void saveState(Properties state) throws IOException {
+        Path tmp = Paths.get(stateFile.toString() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            state.store(out, "MeasurementsPostProcessor state for " + input);
+        }
+        Files.move(tmp, stateFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public long getRowsSkipped() {
+        return rowsSkipped;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: MeasurementsPostProcessor <Measurements.csv> [derived.csv]");
+            System.exit(1);
+        }
+        Path in = new File(args[0]).toPath();
+        Path out = args.length > 1 ? new File(args[1]).toPath() : defaultOutput(in);
+        MeasurementsPostProcessor processor = new MeasurementsPostProcessor(in, out,
+                new AppConfig().getCsvSeparator());
+        long rows = processor.process();
+        IJ.log("Wrote " + rows + " derived row(s) to " + out);
+    }
+}
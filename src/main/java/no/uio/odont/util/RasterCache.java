@@ -0,0 +1,279 @@
+package no.uio.odont.util;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileInfo;
+
+/**
+ * Float rasters derived from images, such as gradients, kept on disk so they
+ * are not computed again when an image is opened again, e.g. in consensus
+ * sessions.
+ *
+ * Entries are keyed by the {@link ContentHash} of the image file, so they
+ * follow an image that was moved or renamed, and by the kind of raster. They
+ * are written once, to a temporary file renamed into place, and memory-mapped
+ * read-only on reuse, so a hit costs no decoding and no heap. The cache is
+ * bounded by total bytes; the least recently used entries are removed first.
+ * Use is recorded as the entry's modification time, so the order survives
+ * restarts of ImageJ.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public class RasterCache {
+    public static final String DIRECTORY_NAME = "raster-cache";
+
+    private static final int MAGIC = 0x454d5243; // "EMRC"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 20;
+    private static final String SUFFIX = ".raster";
+
+    private static final Map<Path, RasterCache> CACHES = new HashMap<>();
+
+    private final Path directory;
+    private final long maxBytes;
+
+    // Guarded by this: entry sizes by file name, least recently used first;
+    // null until the directory is read
+    private LinkedHashMap<String, Long> entries;
+    private long totalBytes;
+
+    private RasterCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /** @return The cache in the data directory, shared by all images. */
+    public static synchronized RasterCache of(AppConfig config) {
+        Path directory = config.getDataDirectory().resolve(DIRECTORY_NAME);
+        RasterCache cache = CACHES.get(directory);
+        if (cache == null || cache.maxBytes != config.getRasterCacheBytes()) {
+            cache = new RasterCache(directory, config.getRasterCacheBytes());
+            CACHES.put(directory, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Identifies the pixels of an image by the content of its file, plus the
+     * region for a region of a large image.
+     *
+     * @return The key, or null if the image has no file or was changed since it
+     *         was opened, so its pixels are not those of the file.
+     */
+    public static String sourceKey(ImagePlus imp) {
+        FileInfo fi = imp.getOriginalFileInfo();
+        if (imp.changes || fi == null || fi.directory == null || fi.fileName == null)
+            return null;
+        long hash = ContentHash.cached(new File(fi.directory, fi.fileName));
+        if (hash == ContentHash.UNKNOWN)
+            return null;
+        String key = Long.toHexString(hash);
+        Object region = imp.getProperty(LargeTiffReader.REGION_PROPERTY);
+        if (region instanceof Rectangle) {
+            Rectangle r = (Rectangle) region;
+            key += "-" + r.x + "_" + r.y + "_" + r.width + "_" + r.height;
+        }
+        return key;
+    }
+
+    /**
+     * Returns a cached raster, memory-mapped.
+     *
+     * @param source A {@link #sourceKey(ImagePlus)}.
+     * @param kind   What was derived and how, as part of a file name.
+     * @return The planes of the raster, or null if it is not cached with this
+     *         size.
+     */
+    public FloatBuffer[] get(String source, String kind, int width, int height) {
+        Path file = directory.resolve(source + "." + kind + SUFFIX);
+        FloatBuffer[] planes;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            if (mapped.remaining() < HEADER_BYTES || mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION
+                    || mapped.getInt(8) != width || mapped.getInt(12) != height)
+                return null;
+            int count = mapped.getInt(16);
+            long planeBytes = 4L * width * height;
+            if (count < 1 || mapped.capacity() != HEADER_BYTES + count * planeBytes)
+                return null;
+            planes = new FloatBuffer[count];
+            for (int p = 0; p < count; p++) {
+                mapped.position((int) (HEADER_BYTES + p * planeBytes));
+                mapped.limit((int) (HEADER_BYTES + (p + 1) * planeBytes));
+                planes[p] = mapped.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+                mapped.limit(mapped.capacity());
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            IJ.log("Could not read the cached raster " + file + ": " + e.getMessage());
+            return null;
+        }
+        touch(file);
+        return planes;
+    }
+
+    /**
+     * Returns a cached raster, or computes and stores it.
+     *
+     * @param source A {@link #sourceKey(ImagePlus)}; null to compute without
+     *               the cache.
+     */
+    public FloatBuffer[] getOrCompute(String source, String kind, int width, int height,
+            Supplier<float[][]> compute) {
+        FloatBuffer[] planes = source != null ? get(source, kind, width, height) : null;
+        if (planes != null)
+            return planes;
+        float[][] computed = compute.get();
+        if (source != null)
+            put(source, kind, width, height, computed);
+        planes = new FloatBuffer[computed.length];
+        for (int p = 0; p < computed.length; p++) {
+            planes[p] = FloatBuffer.wrap(computed[p]);
+        }
+        return planes;
+    }
+
+    /**
+     * Stores a raster, then removes the least recently used entries until the
+     * cache is within its size. Failures are logged; the raster is then simply
+     * computed again next time.
+     */
+    public void put(String source, String kind, int width, int height, float[]... planes) {
+        long bytes = HEADER_BYTES + 4L * width * height * planes.length;
+        if (bytes > maxBytes || bytes > Integer.MAX_VALUE)
+            return;
+        String name = source + "." + kind + SUFFIX;
+        Path file = directory.resolve(name);
+        Path temp = directory.resolve(name + ".tmp");
+        try {
+            Files.createDirectories(directory);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.allocate(256 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+                buffer.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(planes.length);
+                for (float[] plane : planes) {
+                    for (float v : plane) {
+                        if (buffer.remaining() < 4)
+                            write(channel, buffer);
+                        buffer.putFloat(v);
+                    }
+                }
+                write(channel, buffer);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            IJ.log("Could not cache " + kind + " of " + source + ": " + e.getMessage());
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                // Left for the next eviction
+            }
+            return;
+        }
+        synchronized (this) {
+            readEntries();
+            Long previous = entries.remove(name);
+            if (previous != null)
+                totalBytes -= previous;
+            entries.put(name, bytes);
+            totalBytes += bytes;
+            evict(name);
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /** Records the use of an entry. */
+    private void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // Only the eviction order suffers
+        }
+        synchronized (this) {
+            readEntries();
+            String name = file.getFileName().toString();
+            Long bytes = entries.remove(name);
+            if (bytes != null)
+                entries.put(name, bytes);
+        }
+    }
+
+    /** Reads the entries of the directory, oldest use first, unless read already. */
+    private void readEntries() {
+        if (entries != null)
+            return;
+        entries = new LinkedHashMap<>();
+        totalBytes = 0;
+        List<Path> files = new ArrayList<>();
+        Map<Path, Long> used = new HashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+                used.put(file, Files.getLastModifiedTime(file).toMillis());
+            }
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException e) {
+            IJ.log("Could not list the raster cache " + directory + ": " + e.getMessage());
+            return;
+        }
+        files.sort((a, b) -> Long.compare(used.get(a), used.get(b)));
+        for (Path file : files) {
+            long bytes = file.toFile().length();
+            entries.put(file.getFileName().toString(), bytes);
+            totalBytes += bytes;
+        }
+    }
+
+    /** Removes the least recently used entries, except {@code keep}, until the cache fits. */
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            if (eldest.getKey().equals(keep))
+                continue;
+            try {
+                Files.deleteIfExists(directory.resolve(eldest.getKey()));
+            } catch (IOException e) {
+                // Still mapped on some systems; tried again on the next eviction
+                continue;
+            }
+            totalBytes -= eldest.getValue();
+            it.remove();
+        }
+    }
+}
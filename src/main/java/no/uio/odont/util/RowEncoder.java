@@ -0,0 +1,209 @@
+package no.uio.odont.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Arrays;
+
+/**
+ * Builds result rows in a reusable character buffer, so writing a row does not
+ * go through {@code String.format}, {@code DecimalFormat} and intermediate
+ * strings per field.
+ *
+ * Numbers are written exactly as the {@code DecimalFormat} patterns used so
+ * far: {@code "0.00"} for calibrated coordinates and {@code "####"} for pixel
+ * coordinates, rounded half-even on the exact binary value, with "-0.00" for
+ * small negative values. The fast path scales and rounds in {@code double};
+ * values too close to a rounding tie for that to be exact, and non-finite or
+ * huge values, are handed to {@code BigDecimal} or {@code DecimalFormat}.
+ *
+ * An encoder is not thread safe; use one per thread and {@link #reset()} it
+ * before every row.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public class RowEncoder {
+    // Beyond this the scaled value no longer has a fractional part to round
+    private static final double FAST_PATH_LIMIT = 1e12;
+
+    private final char decimalSeparator;
+    private final char csvSeparator;
+    private final char minusSign;
+    private final boolean asciiDigits;
+    private DecimalFormat[] fallback;
+
+    private char[] buffer = new char[512];
+    private int length;
+    private final char[] digits = new char[20];
+
+    /**
+     * Encoder with the minus sign of the default locale, as used for result rows.
+     *
+     * @param decimalSeparator The configured decimal separator.
+     * @param csvSeparator     The field separator, normally
+     *                         {@link AppConfig#getCsvSeparator()}.
+     */
+    public RowEncoder(char decimalSeparator, char csvSeparator) {
+        this(decimalSeparator, csvSeparator, new DecimalFormatSymbols().getMinusSign());
+    }
+
+    public RowEncoder(char decimalSeparator, char csvSeparator, char minusSign) {
+        this.decimalSeparator = decimalSeparator;
+        this.csvSeparator = csvSeparator;
+        this.minusSign = minusSign;
+        this.asciiDigits = new DecimalFormatSymbols().getZeroDigit() == '0';
+    }
+
+    public char getCsvSeparator() {
+        return csvSeparator;
+    }
+
+    /** Empties the buffer for the next row. */
+    public RowEncoder reset() {
+        length = 0;
+        return this;
+    }
+
+    /** Appends a field followed by the separator. */
+    public RowEncoder field(String value) {
+        return text(value).separator();
+    }
+
+    public RowEncoder field(int value) {
+        return integer(value).separator();
+    }
+
+    /**
+     * Appends a site coordinate as written in a row: the value, the separator
+     * and a space.
+     *
+     * @param wholePixels true for pixel coordinates, written without decimals.
+     */
+    public RowEncoder coordinate(double value, boolean wholePixels) {
+        number(value, wholePixels ? 0 : 2);
+        return separator().text(" ");
+    }
+
+    /** Appends the two fields of a missing site. */
+    public RowEncoder missingSite() {
+        return field(MeasurementRow.MISSING).field(MeasurementRow.MISSING);
+    }
+
+    /** Appends a number with two decimals and no separator. */
+    public RowEncoder fixed(double value) {
+        return number(value, 2);
+    }
+
+    /** Appends text as it is, e.g. the free-text comment at the end of a row. */
+    public RowEncoder text(String value) {
+        int n = value.length();
+        ensureCapacity(n);
+        value.getChars(0, n, buffer, length);
+        length += n;
+        return this;
+    }
+
+    public RowEncoder separator() {
+        ensureCapacity(1);
+        buffer[length++] = csvSeparator;
+        return this;
+    }
+
+    private RowEncoder integer(long value) {
+        if (value < 0) {
+            ensureCapacity(1);
+            buffer[length++] = '-';
+            value = -value;
+        }
+        appendDigits(value, 1);
+        return this;
+    }
+
+    /** Appends a value rounded half-even to 0 or 2 decimals. */
+    private RowEncoder number(double value, int decimals) {
+        if (!asciiDigits || Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= FAST_PATH_LIMIT)
+            return text(fallback(decimals).format(value));
+
+        boolean negative = value < 0 || (value == 0 && 1 / value < 0);
+        double magnitude = Math.abs(value);
+        double scaled = decimals == 0 ? magnitude : magnitude * 100;
+        double floor = Math.floor(scaled);
+        double fraction = scaled - floor;
+
+        long units;
+        if (Math.abs(fraction - 0.5) <= 2 * Math.ulp(scaled)) {
+            // Too close to a tie to trust the scaled double: round the exact value
+            units = new BigDecimal(magnitude).setScale(decimals, RoundingMode.HALF_EVEN).unscaledValue()
+                    .longValue();
+        } else {
+            units = (long) floor + (fraction > 0.5 ? 1 : 0);
+        }
+
+        ensureCapacity(1);
+        if (negative)
+            buffer[length++] = minusSign;
+        if (decimals == 0) {
+            appendDigits(units, 1);
+        } else {
+            appendDigits(units / 100, 1);
+            ensureCapacity(3);
+            int cents = (int) (units % 100);
+            buffer[length++] = decimalSeparator;
+            buffer[length++] = (char) ('0' + cents / 10);
+            buffer[length++] = (char) ('0' + cents % 10);
+        }
+        return this;
+    }
+
+    private void appendDigits(long value, int minimumDigits) {
+        int n = 0;
+        do {
+            digits[n++] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0 || n < minimumDigits);
+        ensureCapacity(n);
+        while (n > 0) {
+            buffer[length++] = digits[--n];
+        }
+    }
+
+    private DecimalFormat fallback(int decimals) {
+        if (fallback == null) {
+            fallback = new DecimalFormat[3];
+        }
+        if (fallback[decimals] == null) {
+            DecimalFormat format = new DecimalFormat(decimals == 0 ? "####" : "0.00");
+            DecimalFormatSymbols symbols = new DecimalFormatSymbols();
+            symbols.setDecimalSeparator(decimalSeparator);
+            symbols.setMinusSign(minusSign);
+            format.setDecimalFormatSymbols(symbols);
+            fallback[decimals] = format;
+        }
+        return fallback[decimals];
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /** Writes the row without creating a string. */
+    public void writeTo(Writer writer) throws IOException {
+        writer.write(buffer, 0, length);
+    }
+
+    /** @return The row as a string, e.g. for {@link GroupCommitWriter#append(String)}. */
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length);
+    }
+}
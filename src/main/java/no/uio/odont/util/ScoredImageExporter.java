@@ -0,0 +1,193 @@
+package no.uio.odont.util;
+
+import java.awt.Color;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.Overlay;
+import ij.gui.PointRoi;
+import ij.gui.Roi;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Renders and writes scored image copies in the background, so closing an
+ * image does not wait for RGB conversion and PNG encoding.
+ *
+ * The caller takes a snapshot of the markers, which is cheap, and the rest
+ * runs on a small pool of worker threads. The queue is bounded because every
+ * queued export keeps the pixels of a closed image alive: when it is full, the
+ * export runs on the calling thread instead, which slows down a reader closing
+ * images faster than they can be written rather than letting memory grow.
+ * Progress and failures are reported in the ImageJ status bar and log.
+ *
+ * Workers are not daemon threads, so exports still queued when ImageJ quits are
+ * completed before the JVM exits.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public final class ScoredImageExporter {
+    private static final int WORKERS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    private static final int QUEUE_CAPACITY = 2 * WORKERS;
+    private static final int RING_RADIUS = 5;
+    // Size of one rendered RGB band; at least one row is rendered at a time
+    private static final int BAND_BYTES = 1024 * 1024;
+
+    private static final AtomicInteger PENDING = new AtomicInteger();
+    // Notified when the last pending export is done
+    private static final Object IDLE = new Object();
+    private static final ThreadPoolExecutor EXECUTOR = createExecutor();
+
+    private ScoredImageExporter() {
+    }
+
+    private static ThreadPoolExecutor createExecutor() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory factory = r -> new Thread(r, "Scored image export " + threadNumber.incrementAndGet());
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(WORKERS, WORKERS, 5, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), factory, new ThreadPoolExecutor.CallerRunsPolicy());
+        // Let idle workers end so they do not keep the JVM alive
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Queues a scored copy of an image for writing. Must be called while the
+     * image is still open. The markers are copied; the pixels are not, the
+     * export keeps a reference to the image's processor instead, which stays
+     * valid after the image is closed.
+     *
+     * @param imp     The source image.
+     * @param markers Overlay whose point markers are burnt into the copy.
+     * @param target  The PNG file to write.
+     */
+    public static void submit(ImagePlus imp, Overlay markers, Path target) {
+        Export export = new Export(imp.getProcessor(), markers, target);
+        int pending = PENDING.incrementAndGet();
+        IJ.showStatus("Exporting scored image" + (pending > 1 ? "s (" + pending + " pending)" : "") + "...");
+        EXECUTOR.execute(export);
+    }
+
+    /** @return Number of exports queued or running. */
+    public static int getPendingCount() {
+        return PENDING.get();
+    }
+
+    /** Waits until every queued export has been written, e.g. before a batch run exits. */
+    public static void awaitIdle() throws InterruptedException {
+        synchronized (IDLE) {
+            while (PENDING.get() > 0) {
+                IDLE.wait();
+            }
+        }
+    }
+
+    /** Counts an export as done, and wakes {@link #awaitIdle()} after the last. */
+    private static int done() {
+        int pending = PENDING.decrementAndGet();
+        if (pending == 0) {
+            synchronized (IDLE) {
+                IDLE.notifyAll();
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Streams an image through its display range and LUT into a PNG, one band of
+     * rows at a time, drawing the markers that intersect each band. Besides the
+     * source pixels, only one RGB band and a few PNG rows are held in memory.
+     */
+    static void writeScoredPng(ImageProcessor ip, List<Roi> points, Path target) throws IOException {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        int bandHeight = Math.max(1, Math.min(height, BAND_BYTES / (4 * width)));
+        Object pixels = ip.getPixels();
+
+        try (StreamingPngWriter png = new StreamingPngWriter(
+                new BufferedOutputStream(Files.newOutputStream(target)), width, height)) {
+            ImageProcessor source = ip instanceof ColorProcessor ? null : ip.createProcessor(width, bandHeight);
+            for (int top = 0; top < height; top += bandHeight) {
+                int rows = Math.min(bandHeight, height - top);
+                if (source != null && rows < bandHeight)
+                    source = ip.createProcessor(width, rows);
+
+                ColorProcessor band;
+                if (source == null) {
+                    band = new ColorProcessor(width, rows);
+                    System.arraycopy(pixels, top * width, band.getPixels(), 0, rows * width);
+                } else {
+                    // Same conversion as ImageConverter.convertToRGB, limited to the band
+                    System.arraycopy(pixels, top * width, source.getPixels(), 0, rows * width);
+                    source.setMinAndMax(ip.getMin(), ip.getMax());
+                    band = (ColorProcessor) source.convertToRGB();
+                }
+                drawMarkers(band, points, top);
+
+                int[] rgb = (int[]) band.getPixels();
+                for (int r = 0; r < rows; r++) {
+                    png.writeRow(rgb, r * width);
+                }
+            }
+        }
+    }
+
+    /** Draws the markers reaching into a band whose first row is image row {@code top}. */
+    private static void drawMarkers(ColorProcessor band, List<Roi> points, int top) {
+        int bottom = top + band.getHeight();
+        for (Roi roi : points) {
+            int x = Math.round(roi.getFloatPolygon().xpoints[0]);
+            int y = Math.round(roi.getFloatPolygon().ypoints[0]);
+            if (y + RING_RADIUS < top || y - RING_RADIUS >= bottom)
+                continue;
+
+            Color color = roi.getStrokeColor();
+            band.setColor(color != null ? color : Color.RED);
+            band.drawDot(x, y - top);
+            band.drawOval(x - RING_RADIUS, y - top - RING_RADIUS, RING_RADIUS * 2, RING_RADIUS * 2);
+        }
+    }
+
+    /** A snapshot of the markers of one image, rendered and written when run. */
+    private static class Export implements Runnable {
+        private final ImageProcessor ip;
+        private final Path target;
+        private final List<Roi> points = new ArrayList<>();
+
+        Export(ImageProcessor ip, Overlay markers, Path target) {
+            this.ip = ip;
+            this.target = target;
+            for (int i = 0; i < markers.size(); i++) {
+                Roi roi = markers.get(i);
+                if (roi instanceof PointRoi)
+                    points.add(roi);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                writeScoredPng(ip, points, target);
+                int pending = done();
+                IJ.showStatus("Saved " + target.getFileName() + (pending > 0 ? " (" + pending + " pending)" : ""));
+            } catch (IOException | RuntimeException e) {
+                done();
+                IJ.log("Could not save scored image " + target + ": " + e.getMessage());
+                IJ.showStatus("Scored image export failed, see Log window");
+            }
+        }
+    }
+}
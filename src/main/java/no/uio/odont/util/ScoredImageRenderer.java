@@ -0,0 +1,225 @@
+package no.uio.odont.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+
+/**
+ * Headless batch command that regenerates scored image copies from the result
+ * files, e.g. after the marker style changed or copies were lost.
+ *
+ * Every result file below the given directory is read and its rows grouped by
+ * image. Images are located by the path in the rows or, if the tree was moved,
+ * by file name within the tree. An image whose newest scored copy is more
+ * recent than its newest row is skipped, so repeated runs only render what
+ * changed. Images are rendered in parallel, each through the same banded
+ * renderer used when saving.
+ *
+ * Usage: {@code ScoredImageRenderer <directory> [--workers n] [--force]}
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public class ScoredImageRenderer {
+    private static final String DERIVED_SUFFIX = "-derived.csv";
+    private static final String[] IMAGE_EXTENSIONS = { ".tif", ".tiff", ".png", ".jpg", ".jpeg", ".bmp", ".dcm" };
+
+    private final Path root;
+    private final int workers;
+    private final boolean force;
+    private final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+    // Image path as written in the rows -> rows, and newest row time
+    private final Map<String, List<String>> rowsByImage = new LinkedHashMap<>();
+    private final Map<String, Long> newestRow = new HashMap<>();
+    // Image file name -> files of that name in the tree, to find moved images
+    private final Map<String, List<Path>> imagesByName = new HashMap<>();
+
+    private final AtomicInteger rendered = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    public ScoredImageRenderer(Path root, int workers, boolean force) {
+        this.root = root;
+        this.workers = Math.max(1, workers);
+        this.force = force;
+    }
+
+    /**
+     * Renders every image in the tree that needs it.
+     *
+     * @return false if any image could not be found or rendered.
+     */
+    public boolean run() throws IOException, InterruptedException {
+        List<Path> resultFiles = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(root)) {
+            files.filter(Files::isRegularFile).forEach(file -> {
+                String name = file.getFileName().toString();
+                String lower = name.toLowerCase();
+                if (lower.endsWith(".csv") && !lower.endsWith(DERIVED_SUFFIX)) {
+                    resultFiles.add(file);
+                } else if (isImage(lower) && !name.startsWith("Measured-")) {
+                    imagesByName.computeIfAbsent(name, k -> new ArrayList<>()).add(file);
+                }
+            });
+        }
+        for (Path file : resultFiles) {
+            readRows(file);
+        }
+        IJ.log("Found " + rowsByImage.size() + " measured image(s) in " + resultFiles.size() + " result file(s)");
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        for (Map.Entry<String, List<String>> entry : rowsByImage.entrySet()) {
+            String imagePath = entry.getKey();
+            List<String> rows = entry.getValue();
+            executor.execute(() -> render(imagePath, rows));
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+
+        IJ.log("Rendered " + rendered + ", up to date " + skipped + ", failed " + failed);
+        return failed.get() == 0;
+    }
+
+    private void readRows(Path file) throws IOException {
+        MeasurementRow row = new MeasurementRow();
+        try (BufferedReader in = Files.newBufferedReader(file, Charset.defaultCharset())) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                // Other CSV files in the tree simply have no matching rows
+                if (!row.parse(line, MeasurementRow.detectSeparator(line, ',')))
+                    continue;
+                rowsByImage.computeIfAbsent(row.getPath(), k -> new ArrayList<>()).add(line);
+                newestRow.merge(row.getPath(), parseTimestamp(row.getTimestamp()), Math::max);
+            }
+        }
+    }
+
+    private void render(String imagePath, List<String> rows) {
+        try {
+            Path image = locate(imagePath);
+            if (image == null) {
+                IJ.log("Image not found: " + imagePath);
+                failed.incrementAndGet();
+                return;
+            }
+            if (!force && isUpToDate(image, newestRow.get(imagePath))) {
+                skipped.incrementAndGet();
+                return;
+            }
+
+            ImagePlus imp = IJ.openImage(image.toString());
+            if (imp == null) {
+                IJ.log("Could not open " + image);
+                failed.incrementAndGet();
+                return;
+            }
+
+            Overlay markers = new Overlay();
+            MeasurementRow row = new MeasurementRow();
+            for (String line : rows) {
+                row.parse(line, MeasurementRow.detectSeparator(line, ','));
+                if (!DataStorage.addMarkers(markers, row, imp.getCalibration()))
+                    IJ.log("Root saved in " + row.getUnit() + " skipped for " + image);
+            }
+            List<Roi> points = new ArrayList<>();
+            for (Roi roi : markers.toArray()) {
+                if (roi.getType() == Roi.POINT)
+                    points.add(roi);
+            }
+
+            String name = DataStorage.scoredCopyName(image.getFileName().toString(), new Date());
+            ScoredImageExporter.writeScoredPng(imp.getProcessor(), points, image.resolveSibling(name));
+            imp.flush();
+            rendered.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            IJ.log("Could not render " + imagePath + ": " + e.getMessage());
+            failed.incrementAndGet();
+        }
+    }
+
+    /** Resolves an image by its saved path, or by a unique file name in the tree. */
+    private Path locate(String imagePath) {
+        try {
+            Path saved = Paths.get(imagePath);
+            if (Files.isRegularFile(saved))
+                return saved;
+        } catch (InvalidPathException e) {
+            // A path from another operating system; fall back to the file name
+        }
+        // Saved on another workstation, possibly with other path separators
+        String name = new File(imagePath.replace('\\', '/')).getName();
+        List<Path> candidates = imagesByName.get(name);
+        if (candidates == null || candidates.size() != 1)
+            return null;
+        return candidates.get(0);
+    }
+
+    /** @return true if a scored copy of the image is newer than its newest row. */
+    private boolean isUpToDate(Path image, long newestRow) throws IOException {
+        String base = image.getFileName().toString();
+        try (Stream<Path> siblings = Files.list(image.getParent())) {
+            return siblings.anyMatch(p -> DataStorage.isScoredCopyOf(p.getFileName().toString(), base)
+                    && p.toFile().lastModified() > newestRow);
+        }
+    }
+
+    private synchronized long parseTimestamp(String text) {
+        try {
+            return timestampFormat.parse(text).getTime();
+        } catch (ParseException e) {
+            // Unknown age: always render
+            return Long.MAX_VALUE;
+        }
+    }
+
+    static boolean isImage(String lowerCaseName) {
+        for (String extension : IMAGE_EXTENSIONS) {
+            if (lowerCaseName.endsWith(extension))
+                return true;
+        }
+        return false;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: ScoredImageRenderer <directory> [--workers n] [--force]");
+            System.exit(1);
+        }
+        int workers = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        boolean force = false;
+        for (int i = 1; i < args.length; i++) {
+            if ("--workers".equals(args[i]) && i + 1 < args.length) {
+                workers = Integer.parseInt(args[++i]);
+            } else if ("--force".equals(args[i])) {
+                force = true;
+            }
+        }
+        boolean ok = new ScoredImageRenderer(new File(args[0]).toPath(), workers, force).run();
+        System.exit(ok ? 0 : 1);
+    }
+}
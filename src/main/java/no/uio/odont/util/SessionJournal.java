@@ -0,0 +1,462 @@
+package no.uio.odont.util;
+
+import java.awt.Color;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import ij.IJ;
+
+/**
+ * Append-only journal of the root being measured on one image, so a crash of
+ * ImageJ does not lose the sites placed since the last save.
+ *
+ * Every placement, removal, identification and qualitative choice is written
+ * as a small binary record {@code length | type | payload | CRC32}. The write
+ * itself only reaches the operating system cache, which survives an ImageJ
+ * crash; forcing it to disk is batched on a background thread at most
+ * {@link #SYNC_DELAY_MS} later, so a click never waits for the disk.
+ *
+ * When the image is opened again the records are replayed; a torn record at
+ * the end is dropped. Saving a root is recorded too, with the timestamp of its
+ * row so the replay can tell whether that row reached the result file, and its
+ * records are only dropped once the result file writer confirms the row is on
+ * disk, so a root whose row was lost is still replayed. Once no save is waiting
+ * for its confirmation, saving or resetting empties the journal.
+ * Journals are kept per image path in the plugin's data directory. Failing to
+ * journal never blocks measuring: the error is logged once and journaling stops.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public class SessionJournal implements Closeable {
+    /** Longest time a record may stay unsynced to disk. */
+    public static final long SYNC_DELAY_MS = 500;
+
+    private static final String DIRECTORY_NAME = "sessions";
+    private static final byte IMAGE = 1;
+    private static final byte SITE_ADDED = 2;
+    private static final byte SITE_REMOVED = 3;
+    private static final byte IDENTIFICATION = 4;
+    private static final byte QUALITATIVE = 5;
+    private static final byte ROOT_SAVED = 6;
+    private static final byte SAVE_CONFIRMED = 7;
+    private static final byte ROOT_RESET = 8;
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+    private static final ScheduledExecutorService SYNC = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Session journal sync");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** Receives the recorded actions when a journal is replayed. */
+    public interface Replay {
+        void siteAdded(String name, double x, double y, Color color);
+
+        void siteRemoved(String name);
+
+        void identificationChanged(int quadrant, String tooth, String root, String imageType);
+
+        void qualitativeSelected(String key, String value);
+
+        /**
+         * Called after the records of a root that was being saved but whose save
+         * was never confirmed.
+         *
+         * @param timestamp The timestamp of the row being saved, which tells it
+         *                  from earlier saves of the same root; null if the
+         *                  journal was written before it was recorded.
+         * @return true if the row is in the result file after all and replaying
+         *         goes on with the next root; false to stop with this root.
+         */
+        boolean rootSaved(String timestamp);
+    }
+
+    private final Path file;
+    private final String imagePath;
+    private FileChannel channel;
+    private FileLock lock;
+    private final List<byte[]> recovered = new ArrayList<>();
+    private ScheduledFuture<?> scheduledSync;
+    // Saves recorded but not yet confirmed, and whether the last record ends a root
+    private int unconfirmed;
+    private boolean atBoundary = true;
+
+    private SessionJournal(Path file, String imagePath) {
+        this.file = file;
+        this.imagePath = imagePath;
+    }
+
+    /**
+     * Opens the journal of an image, keeping the records left by an earlier
+     * session for {@link #replay(Replay)}. If the journal is in use by another
+     * ImageJ or cannot be opened, a journal that records nothing is returned.
+     */
+    public static SessionJournal open(Path dataDirectory, String imagePath) {
+        Path directory = dataDirectory.resolve(DIRECTORY_NAME);
+        Path file = directory.resolve(Long.toHexString(ContentHash.ofString(imagePath)) + ".journal");
+        SessionJournal journal = new SessionJournal(file, imagePath);
+        try {
+            Files.createDirectories(directory);
+            journal.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                journal.lock = journal.channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                journal.lock = null;
+            }
+            if (journal.lock == null) {
+                IJ.log("Session journal not used: " + imagePath + " is open in another session.");
+                journal.channel.close();
+                journal.channel = null;
+                return journal;
+            }
+            journal.recover();
+        } catch (IOException e) {
+            journal.disable(e);
+        }
+        return journal;
+    }
+
+    /**
+     * Applies the records of an earlier session in their original order. Roots
+     * reset, or saved with a confirmation, are skipped. The journal is then
+     * rewritten to hold only the root replayed last.
+     *
+     * @return The number of records of that root.
+     */
+    public synchronized int replay(Replay target) {
+        // Confirmations come in the order of the saves
+        int confirmations = 0;
+        for (byte[] record : recovered) {
+            if (record[0] == SAVE_CONFIRMED)
+                confirmations++;
+        }
+
+        List<byte[]> root = new ArrayList<>();
+        int saves = 0;
+        boolean stopped = false;
+        for (byte[] record : recovered) {
+            if (record[0] == SAVE_CONFIRMED)
+                continue;
+            if (record[0] == ROOT_RESET || (record[0] == ROOT_SAVED && ++saves <= confirmations)) {
+                root.clear();
+            } else if (record[0] == ROOT_SAVED) {
+                apply(root, target);
+                if (!target.rootSaved(readTimestamp(record))) {
+                    stopped = true;
+                    break;
+                }
+                root.clear();
+            } else {
+                root.add(record);
+            }
+        }
+        if (!stopped)
+            apply(root, target);
+        recovered.clear();
+
+        if (channel != null) {
+            try {
+                channel.truncate(0);
+                writeImageRecord();
+                for (byte[] record : root) {
+                    write(record);
+                }
+                atBoundary = root.isEmpty();
+                scheduleSync();
+            } catch (IOException e) {
+                disable(e);
+            }
+        }
+        return root.size();
+    }
+
+    private static void apply(List<byte[]> records, Replay target) {
+        for (byte[] record : records) {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+                switch (in.readByte()) {
+                    case SITE_ADDED:
+                        target.siteAdded(in.readUTF(), in.readDouble(), in.readDouble(), new Color(in.readInt()));
+                        break;
+                    case SITE_REMOVED:
+                        target.siteRemoved(in.readUTF());
+                        break;
+                    case IDENTIFICATION:
+                        target.identificationChanged(in.readInt(), in.readUTF(), in.readUTF(), in.readUTF());
+                        break;
+                    case QUALITATIVE:
+                        target.qualitativeSelected(in.readUTF(), in.readUTF());
+                        break;
+                    default:
+                        break;
+                }
+            } catch (IOException e) {
+                // Cannot happen for a record that passed its checksum
+            }
+        }
+    }
+
+    public void siteAdded(String name, double x, double y, Color color) {
+        append(new Record(SITE_ADDED).string(name).number(x).number(y).integer(color.getRGB()));
+    }
+
+    public void siteRemoved(String name) {
+        append(new Record(SITE_REMOVED).string(name));
+    }
+
+    public void identificationChanged(int quadrant, String tooth, String root, String imageType) {
+        append(new Record(IDENTIFICATION).integer(quadrant).string(tooth).string(root).string(imageType));
+    }
+
+    public void qualitativeSelected(String key, String value) {
+        append(new Record(QUALITATIVE).string(key).string(value));
+    }
+
+    /**
+     * Records that the root was saved. Its records are kept until
+     * {@link #saveConfirmed()}.
+     *
+     * @param timestamp The timestamp written in the root's row.
+     */
+    public synchronized void rootSaved(String timestamp) {
+        unconfirmed++;
+        endRoot(new Record(ROOT_SAVED).string(timestamp));
+    }
+
+    /**
+     * Drops the records of the oldest saved root, once its row is on disk.
+     * Called in the order of {@link #rootSaved()}, from any thread.
+     */
+    public synchronized void saveConfirmed() {
+        if (unconfirmed > 0)
+            unconfirmed--;
+        if (channel == null)
+            return;
+        try {
+            if (unconfirmed == 0 && atBoundary)
+                empty();
+            else
+                write(new Record(SAVE_CONFIRMED).toBytes());
+            scheduleSync();
+        } catch (IOException e) {
+            disable(e);
+        }
+    }
+
+    /** Drops the records of the root, which was reset without saving. */
+    public synchronized void clear() {
+        endRoot(new Record(ROOT_RESET));
+    }
+
+    private void endRoot(Record record) {
+        if (channel == null)
+            return;
+        try {
+            // Records of a saved root waiting for confirmation must stay
+            if (unconfirmed == 0)
+                empty();
+            else
+                write(record.toBytes());
+            atBoundary = true;
+            scheduleSync();
+        } catch (IOException e) {
+            disable(e);
+        }
+    }
+
+    private void empty() throws IOException {
+        channel.truncate(0);
+        writeImageRecord();
+    }
+
+    /**
+     * Closes and removes the journal, e.g. when the measurement window is
+     * closed. It is kept while a save is waiting for its confirmation.
+     */
+    @Override
+    public synchronized void close() {
+        if (channel == null)
+            return;
+        try {
+            lock.release();
+            channel.close();
+            if (unconfirmed == 0)
+                Files.deleteIfExists(file);
+        } catch (IOException e) {
+            IJ.log("Could not remove session journal " + file + ": " + e.getMessage());
+        }
+        channel = null;
+    }
+
+    private synchronized void append(Record record) {
+        if (channel == null)
+            return;
+        try {
+            write(record.toBytes());
+            atBoundary = false;
+            scheduleSync();
+        } catch (IOException e) {
+            disable(e);
+        }
+    }
+
+    private void scheduleSync() {
+        if (scheduledSync == null || scheduledSync.isDone())
+            scheduledSync = SYNC.schedule(this::sync, SYNC_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void sync() {
+        if (channel == null)
+            return;
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            disable(e);
+        }
+    }
+
+    /** Reads the complete records of an earlier session and drops a torn tail. */
+    private void recover() throws IOException {
+        long size = channel.size();
+        ByteBuffer content = ByteBuffer.allocate((int) Math.min(size, Integer.MAX_VALUE));
+        while (content.hasRemaining() && channel.read(content, content.position()) >= 0) {
+        }
+        content.flip();
+
+        List<byte[]> records = new ArrayList<>();
+        long valid = 0;
+        while (content.remaining() >= 8) {
+            int length = content.getInt(content.position());
+            if (length <= 0 || length > MAX_RECORD_SIZE || content.remaining() < 8 + length)
+                break;
+            byte[] payload = new byte[length];
+            content.position(content.position() + 4);
+            content.get(payload);
+            if (content.getInt() != crc(payload))
+                break;
+            records.add(payload);
+            valid = content.position();
+        }
+
+        // Records of another image (a hash collision) are not ours to replay
+        if (!records.isEmpty() && imagePath.equals(readImagePath(records.get(0)))) {
+            recovered.addAll(records.subList(1, records.size()));
+            channel.truncate(valid);
+        } else {
+            channel.truncate(0);
+            writeImageRecord();
+        }
+        channel.position(channel.size());
+    }
+
+    private static String readImagePath(byte[] record) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+            return in.readByte() == IMAGE ? in.readUTF() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** @return The timestamp of a root saved record, or null if it has none. */
+    private static String readTimestamp(byte[] record) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+            in.readByte();
+            return in.readUTF();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void writeImageRecord() throws IOException {
+        write(new Record(IMAGE).string(imagePath).toBytes());
+    }
+
+    private void write(byte[] payload) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(payload.length + 8);
+        buffer.putInt(payload.length).put(payload).putInt(crc(payload)).flip();
+        long position = channel.size();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void disable(IOException e) {
+        IJ.log("Session journal disabled, unsaved sites will not survive a crash: " + e.getMessage());
+        try {
+            if (channel != null)
+                channel.close();
+        } catch (IOException ignored) {
+            // Already failing
+        }
+        channel = null;
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /** Builds the payload of one record. */
+    private static class Record {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        Record(byte type) {
+            bytes.write(type);
+        }
+
+        // A ByteArrayOutputStream does not fail; only over-long strings would
+        Record string(String value) {
+            try {
+                out.writeUTF(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+
+        Record number(double value) {
+            try {
+                out.writeDouble(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+
+        Record integer(int value) {
+            try {
+                out.writeInt(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this;
+        }
+
+        byte[] toBytes() {
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package no.uio.odont.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import ij.IJ;
+
+/**
+ * Writer for a result file shared by several workstations (measurement_store:
+ * shared).
+ *
+ * Each batch is first appended to a per-client journal and forced. The result
+ * file is then locked with an OS file lock only for the short critical section
+ * of writing the batch at the current end of file and forcing it, after which
+ * the journal is cleared. While another workstation holds the lock, the writer
+ * thread tries again with a growing pause; rows saved meanwhile are queued. If
+ * ImageJ or the workstation dies between journaling and clearing, the journal
+ * still holds the rows on the next save: under the lock, any of them not found
+ * in the result file are appended again before the new batch. The same recovery runs on the retry when writing or forcing the
+ * result file failed, so a row that did reach the file is not appended twice.
+ * A result file that ends in a torn row from such a crash is cut back to its
+ * last complete row, so the next row is never glued onto the fragment; the
+ * fragment is kept in the journal directory.
+ *
+ * Journals live in {@code <result file>.journal/} and are named after the host
+ * and user; a second ImageJ of the same user on the same host gets its own
+ * numbered journal.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public class SharedStoreWriter extends GroupCommitWriter {
+    private static final String JOURNAL_DIR_SUFFIX = ".journal";
+    private static final int MAX_JOURNALS_PER_CLIENT = 100;
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+    // Waiting for the result file lock: first and longest pause, and when to give up
+    private static final long LOCK_FIRST_PAUSE_MS = 5;
+    private static final long LOCK_MAX_PAUSE_MS = 500;
+    private static final long LOCK_TIMEOUT_MS = 30000;
+
+    private FileChannel journal;
+    private FileLock journalLock;
+
+    protected SharedStoreWriter(Path path, long syncIntervalMs) {
+        super(path, syncIntervalMs);
+    }
+
+    @Override
+    protected FileChannel openFile(Path path) throws IOException {
+        // Not in append mode: the end of file is looked up under the lock instead
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    @Override
+    protected boolean writeBatch(FileChannel channel, ByteBuffer bytes) throws IOException {
+        FileChannel journal = openJournal();
+        List<String> unconfirmed = readJournal(journal);
+
+        // Journal the batch before touching the shared file
+        long journalStart = journal.size();
+        int batchStart = bytes.position();
+        try {
+            while (bytes.hasRemaining()) {
+                journal.write(bytes, journal.size());
+            }
+            journal.force(false);
+        } catch (IOException e) {
+            // Not journaled: the batch is journaled again on retry
+            journal.truncate(journalStart);
+            bytes.position(batchStart);
+            throw e;
+        }
+        bytes.position(batchStart);
+
+        FileLock lock = lockStore(channel);
+        try {
+            long end = truncateTornRow(channel);
+            if (!unconfirmed.isEmpty()) {
+                List<String> missing = findMissingRows(channel, end, unconfirmed);
+                if (!missing.isEmpty()) {
+                    StringBuilder recovered = new StringBuilder();
+                    for (String row : missing) {
+                        recovered.append(row).append('\n');
+                    }
+                    end = writeFully(channel, getCharset().encode(recovered.toString()), end);
+                    rowsRecovered(missing);
+                }
+            }
+            writeFully(channel, bytes, end);
+            channel.force(false);
+        } catch (IOException e) {
+            // The batch is in the journal, and maybe in the result file too if
+            // only forcing it failed: the retry appends the rows still missing
+            bytes.position(bytes.limit());
+            throw e;
+        } finally {
+            if (lock.isValid())
+                lock.release();
+        }
+
+        journal.truncate(0);
+        return true;
+    }
+
+    /**
+     * Locks the result file, retrying with a growing pause while another
+     * workstation holds the lock. Runs on the writer thread, outside the
+     * writer's monitor, so saving goes on meanwhile.
+     *
+     * @throws IOException if the lock is still held after {@link #LOCK_TIMEOUT_MS};
+     *                     the batch is retried later.
+     */
+    private FileLock lockStore(FileChannel channel) throws IOException {
+        long deadline = System.currentTimeMillis() + LOCK_TIMEOUT_MS;
+        long pause = LOCK_FIRST_PAUSE_MS;
+        while (true) {
+            FileLock lock = channel.tryLock();
+            if (lock != null)
+                return lock;
+            if (System.currentTimeMillis() >= deadline)
+                throw new IOException(path + " is locked by another workstation");
+            try {
+                Thread.sleep(pause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the lock of " + path);
+            }
+            pause = Math.min(pause * 2, LOCK_MAX_PAUSE_MS);
+        }
+    }
+
+    /**
+     * Removes a torn row left at the end of the result file by a writer that
+     * died while appending, so the next row starts on a line of its own. The
+     * fragment is kept in this client's journal directory.
+     *
+     * @return The end of the last complete row.
+     */
+    private long truncateTornRow(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long end = size;
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        while (end > 0) {
+            int length = (int) Math.min(buffer.capacity(), end);
+            buffer.clear();
+            buffer.limit(length);
+            readFully(channel, buffer, end - length);
+            int i = length - 1;
+            while (i >= 0 && buffer.get(i) != '\n') {
+                i--;
+            }
+            if (i >= 0) {
+                end = end - length + i + 1;
+                break;
+            }
+            end -= length;
+        }
+        if (end == size)
+            return end;
+
+        ByteBuffer fragment = ByteBuffer.allocate((int) Math.min(size - end, Integer.MAX_VALUE));
+        readFully(channel, fragment, end);
+        fragment.flip();
+        Path torn = Paths.get(path.toString() + JOURNAL_DIR_SUFFIX, clientId() + ".torn");
+        try (FileChannel out = FileChannel.open(torn, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            while (fragment.hasRemaining()) {
+                out.write(fragment);
+            }
+            out.write(ByteBuffer.wrap(new byte[] { '\n' }));
+            out.force(false);
+        }
+        channel.truncate(end);
+        IJ.log("Removed an incomplete row of " + (size - end) + " bytes from the end of " + path + "; it is kept in "
+                + torn);
+        return end;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0)
+                throw new IOException("Unexpected end of file");
+        }
+    }
+
+    @Override
+    protected void channelClosed() throws IOException {
+        if (journalLock != null) {
+            journalLock.release();
+            journalLock = null;
+        }
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    private static long writeFully(FileChannel channel, ByteBuffer bytes, long position) throws IOException {
+        while (bytes.hasRemaining()) {
+            position += channel.write(bytes, position);
+        }
+        return position;
+    }
+
+    /**
+     * Returns the complete rows left in the journal by an interrupted write and
+     * drops a torn trailing row, which was never written to the result file.
+     */
+    private List<String> readJournal(FileChannel journal) throws IOException {
+        List<String> rows = new ArrayList<>();
+        long size = journal.size();
+        if (size == 0)
+            return rows;
+
+        ByteBuffer content = ByteBuffer.allocate((int) size);
+        while (content.hasRemaining()) {
+            if (journal.read(content, content.position()) < 0)
+                break;
+        }
+        String text = new String(content.array(), 0, content.position(), getCharset());
+        int lastNewline = text.lastIndexOf('\n');
+        if (lastNewline >= 0) {
+            for (String row : text.substring(0, lastNewline).split("\n")) {
+                if (!row.isEmpty())
+                    rows.add(row);
+            }
+        }
+        journal.truncate(getCharset().encode(text.substring(0, lastNewline + 1)).remaining());
+        return rows;
+    }
+
+    /**
+     * Streams the result file up to {@code end} and returns the journaled rows
+     * that are not in it. Only runs after an interrupted write.
+     */
+    private List<String> findMissingRows(FileChannel channel, long end, List<String> journaled)
+            throws IOException {
+        Set<String> missing = new HashSet<>(journaled);
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        byte[] line = new byte[1024];
+        int lineLength = 0;
+        long position = 0;
+
+        while (position < end && !missing.isEmpty()) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read <= 0)
+                break;
+            position += read;
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    missing.remove(new String(line, 0, lineLength, getCharset()));
+                    lineLength = 0;
+                } else {
+                    if (lineLength == line.length) {
+                        byte[] grown = new byte[line.length * 2];
+                        System.arraycopy(line, 0, grown, 0, lineLength);
+                        line = grown;
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+        }
+
+        List<String> result = new ArrayList<>();
+        for (String row : journaled) {
+            if (missing.remove(row))
+                result.add(row);
+        }
+        return result;
+    }
+
+    private FileChannel openJournal() throws IOException {
+        if (journal != null && journal.isOpen())
+            return journal;
+
+        Path dir = Paths.get(path.toString() + JOURNAL_DIR_SUFFIX);
+        Files.createDirectories(dir);
+        String client = clientId();
+        for (int i = 1; i <= MAX_JOURNALS_PER_CLIENT; i++) {
+            Path file = dir.resolve(i == 1 ? client + ".journal" : client + "-" + i + ".journal");
+            FileChannel candidate = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            FileLock lock;
+            try {
+                lock = candidate.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock != null) {
+                journal = candidate;
+                journalLock = lock;
+                return journal;
+            }
+            candidate.close();
+        }
+        throw new IOException("No free journal in " + dir);
+    }
+
+    private static String clientId() {
+        String host = System.getenv("COMPUTERNAME");
+        if (host == null)
+            host = System.getenv("HOSTNAME");
+        if (host == null) {
+            try {
+                host = java.net.InetAddress.getLocalHost().getHostName();
+            } catch (IOException e) {
+                host = "unknown";
+            }
+        }
+        String user = System.getProperty("user.name", "unknown");
+        return (host + "-" + user).replaceAll("[^A-Za-z0-9_.-]", "_");
+    }
+}
@@ -0,0 +1,91 @@
+package no.uio.odont.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+/**
+ * The images of a study folder with work left, measured one after the other.
+ * The next images are opened in the background by an {@link ImagePrefetcher}
+ * while the current one is measured.
+ *
+ * The work is found by a {@link WorklistScanner}: the images and roots of the
+ * folder's {@code worklist.txt}, or all images of the folder tree, less what
+ * the result files already record.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public class Worklist implements Closeable {
+    private final Path folder;
+    private final List<WorklistScanner.Item> items;
+    private final List<Path> images = new ArrayList<>();
+    private final ImagePrefetcher prefetcher;
+    private int next;
+
+    public Worklist(Path folder, List<WorklistScanner.Item> items, AppConfig config) {
+        this.folder = folder;
+        this.items = Collections.unmodifiableList(new ArrayList<>(items));
+        for (WorklistScanner.Item item : items) {
+            images.add(item.getImage());
+        }
+        this.prefetcher = new ImagePrefetcher(images, config.getWorklistPrefetchCount(),
+                config.getWorklistPrefetchBytes());
+    }
+
+    /** Finds the work left in a folder. */
+    public static Worklist of(Path folder, AppConfig config) throws IOException {
+        return new Worklist(folder, WorklistScanner.forFolder(folder).scan(config), config);
+    }
+
+    /**
+     * Opens the next image of the worklist. Images that cannot be opened are
+     * logged and passed over.
+     *
+     * @return The image, not shown yet, or null when the worklist is done.
+     */
+    public ImagePlus next() {
+        while (next < images.size()) {
+            int index = next++;
+            ImagePlus imp = prefetcher.take(index);
+            if (imp != null)
+                return imp;
+            IJ.log("Worklist: could not open " + images.get(index) + ", passed over");
+        }
+        return null;
+    }
+
+    /**
+     * @return The roots left to measure on the image last returned by
+     *         {@link #next()}; empty if any root of it is wanted.
+     */
+    public List<String> getOutstandingRoots() {
+        return next > 0 ? items.get(next - 1).getRoots() : Collections.<String>emptyList();
+    }
+
+    /** @return Number of images not opened yet. */
+    public int remaining() {
+        return images.size() - next;
+    }
+
+    public int size() {
+        return images.size();
+    }
+
+    public Path getFolder() {
+        return folder;
+    }
+
+    /** Stops opening images ahead. */
+    @Override
+    public void close() {
+        prefetcher.close();
+    }
+}
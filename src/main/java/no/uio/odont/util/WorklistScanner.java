@@ -0,0 +1,440 @@
+package no.uio.odont.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ij.IJ;
+
+/**
+ * Finds the work left in a study folder by comparing its images with the
+ * result files they are saved to, matching rows by image path, quadrant, tooth
+ * and root as written by {@code Endodontic_Measurements_2.onSaveRequested}.
+ * An image with work left by path is also matched by content, through the
+ * aliases in the {@link MeasurementIndex} of its result file, so an image
+ * measured before it was moved or renamed is not listed again. Images are only
+ * hashed for this when an alias of their result file points at a path with
+ * saved roots that is no longer among the expected images, i.e. some image
+ * was moved since it was measured.
+ *
+ * The expected work is the {@code worklist.txt} of the folder: one image path
+ * per line, relative to the folder, optionally followed by quadrant, tooth and
+ * root separated by tabs or semicolons, e.g. {@code P12/LI.tif;3;6;M}. An image
+ * without roots, or every image of the folder tree when there is no worklist
+ * file, is outstanding until any root of it is saved.
+ *
+ * One scanner is kept per folder, so scanning again is incremental: a directory
+ * is only listed again when its modification time changed, and a result file is
+ * only read from where the last scan stopped. A result file that shrank is read
+ * again from the start. Index aliases are read again when the alias file changed.
+ * Outstanding work is returned grouped per image, in worklist order or by path,
+ * so every image is opened once.
+ *
+ * @author Gerald Torgersen
+ * @version 2.0
+ * @date October 2026
+ */
+public class WorklistScanner {
+    public static final String LIST_FILE_NAME = "worklist.txt";
+
+    // Directories changed this recently may change again within the same timestamp
+    private static final long SETTLE_MS = 2000;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final Map<Path, WorklistScanner> SCANNERS = new HashMap<>();
+
+    private final Path folder;
+    private final Charset charset = Charset.defaultCharset();
+    private final Map<Path, Listing> listings = new HashMap<>();
+    private final Map<Path, Store> stores = new HashMap<>();
+    private FileTime listModified;
+    private Map<Path, List<String>> listed;
+
+    // Paths already checked during the current scan, and the number of the scan
+    private final Set<Path> checked = new HashSet<>();
+    private int scans;
+    // Path hashes of the images expected in the current scan
+    private final Set<Long> expectedKeys = new HashSet<>();
+
+    /** An image with work left. */
+    public static final class Item {
+        private final Path image;
+        private final List<String> roots;
+
+        Item(Path image, List<String> roots) {
+            this.image = image;
+            this.roots = roots;
+        }
+
+        public Path getImage() {
+            return image;
+        }
+
+        /**
+         * @return The roots left to measure, as {@link #rootKey}; empty if the
+         *         image has no roots listed and none is saved yet.
+         */
+        public List<String> getRoots() {
+            return roots;
+        }
+    }
+
+    /** Directory contents at a modification time. */
+    private static final class Listing {
+        final FileTime modified;
+        final boolean settled;
+        final List<Path> images = new ArrayList<>();
+        final List<Path> directories = new ArrayList<>();
+        final Set<String> names = new HashSet<>();
+
+        Listing(FileTime modified) {
+            this.modified = modified;
+            this.settled = System.currentTimeMillis() - modified.toMillis() > SETTLE_MS;
+        }
+    }
+
+    /** What a result file records, up to the offset read so far. */
+    private static final class Store {
+        long offset;
+        // Saved roots by the hash of the image path they were saved under
+        final Map<Long, Set<String>> roots = new HashMap<>();
+        // The aliases of the result file's index, read at the alias file's size and time
+        Map<Long, Set<Long>> aliases;
+        long indexSize;
+        FileTime indexModified;
+        // Whether an alias points at a saved image that was moved, as of a scan
+        boolean moved;
+        int movedScan = -1;
+
+        void clear() {
+            offset = 0;
+            roots.clear();
+        }
+    }
+
+    private WorklistScanner(Path folder) {
+        this.folder = folder;
+    }
+
+    /** @return The scanner of a study folder, kept for as long as ImageJ runs. */
+    public static synchronized WorklistScanner forFolder(Path folder) {
+        return SCANNERS.computeIfAbsent(folder.toAbsolutePath().normalize(), WorklistScanner::new);
+    }
+
+    /**
+     * @return How a root is named in a worklist and in messages, e.g. "Q3 T6 M".
+     */
+    public static String rootKey(int quadrant, String tooth, String root) {
+        return "Q" + quadrant + " T" + tooth.trim() + " " + root.trim();
+    }
+
+    /**
+     * Returns the outstanding work, reading only what changed since the last
+     * scan of this folder.
+     *
+     * @param config Decides which result file each image is saved to.
+     */
+    public synchronized List<Item> scan(AppConfig config) throws IOException {
+        checked.clear();
+        scans++;
+        Map<Path, List<String>> expected = readList();
+        if (expected == null) {
+            expected = new LinkedHashMap<>();
+            List<Path> images = new ArrayList<>();
+            walk(folder, images);
+            for (Path image : images) {
+                expected.put(image, Collections.<String>emptyList());
+            }
+        }
+        expectedKeys.clear();
+        for (Path image : expected.keySet()) {
+            expectedKeys.add(ContentHash.ofString(image.toString()));
+        }
+
+        List<Item> outstanding = new ArrayList<>();
+        for (Map.Entry<Path, List<String>> entry : expected.entrySet()) {
+            Path image = entry.getKey();
+            Listing parent = listing(image.getParent());
+            if (parent == null || !parent.names.contains(image.getFileName().toString())) {
+                IJ.log("Worklist: " + image + " not found");
+                continue;
+            }
+            Path file = DataStorage.resultFile(image.getParent().toString(), image.getFileName().toString(),
+                    config);
+            Store store = store(file, config.getCsvSeparator());
+            List<String> roots = left(entry.getValue(), store.roots.get(ContentHash.ofString(image.toString())));
+            if (roots != null) {
+                // Saved before the image was moved or renamed?
+                Set<String> saved = savedByContent(image, file, store);
+                if (saved != null)
+                    roots = left(entry.getValue(), saved);
+            }
+            if (roots != null)
+                outstanding.add(new Item(image, roots));
+        }
+        return outstanding;
+    }
+
+    /**
+     * @param expected The roots listed for an image; empty for any root.
+     * @param saved    The roots saved for it, or null if none.
+     * @return The roots left, empty if any root is left; null if none is.
+     */
+    private static List<String> left(List<String> expected, Set<String> saved) {
+        if (expected.isEmpty())
+            return saved == null ? expected : null;
+        List<String> roots = new ArrayList<>();
+        for (String root : expected) {
+            if (saved == null || !saved.contains(root))
+                roots.add(root);
+        }
+        return roots.isEmpty() ? null : roots;
+    }
+
+    /**
+     * Returns the roots saved for an image under any path its content was saved
+     * under, as recorded by the index of its result file. The image is only
+     * hashed if some image saved to the result file was moved.
+     *
+     * @return null if none is saved, or the image cannot be read.
+     */
+    private Set<String> savedByContent(Path image, Path file, Store store) {
+        Map<Long, Set<Long>> aliases = aliases(file, store);
+        if (aliases.isEmpty() || !moved(store))
+            return null;
+        long hash = ContentHash.cached(image.toFile());
+        if (hash == ContentHash.UNKNOWN)
+            return null;
+        Set<Long> paths = aliases.get(hash);
+        if (paths == null)
+            return null;
+        Set<String> saved = new HashSet<>();
+        for (Long path : paths) {
+            Set<String> roots = store.roots.get(path);
+            if (roots != null)
+                saved.addAll(roots);
+        }
+        return saved.isEmpty() ? null : saved;
+    }
+
+    /**
+     * @return true if an alias points at a path with saved roots that is not an
+     *         expected image, so an image may be found by content; checked once
+     *         per scan.
+     */
+    private boolean moved(Store store) {
+        if (store.movedScan == scans)
+            return store.moved;
+        store.movedScan = scans;
+        store.moved = false;
+        for (Set<Long> paths : store.aliases.values()) {
+            for (Long path : paths) {
+                if (store.roots.containsKey(path) && !expectedKeys.contains(path)) {
+                    store.moved = true;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Returns the aliases of a result file's index, reading them again if it changed. */
+    private Map<Long, Set<Long>> aliases(Path file, Store store) {
+        Path index = MeasurementIndex.aliasesFor(file);
+        if (store.aliases != null && !checked.add(index))
+            return store.aliases;
+        checked.add(index);
+        try {
+            long size = Files.size(index);
+            FileTime modified = Files.getLastModifiedTime(index);
+            if (store.aliases == null || size != store.indexSize || !modified.equals(store.indexModified)) {
+                store.aliases = new MeasurementIndex(file).aliases();
+                store.indexSize = size;
+                store.indexModified = modified;
+            }
+        } catch (NoSuchFileException e) {
+            store.aliases = Collections.emptyMap();
+        } catch (IOException e) {
+            IJ.log("Worklist: could not read " + index + ": " + e.getMessage());
+            store.aliases = Collections.emptyMap();
+        }
+        return store.aliases;
+    }
+
+    /**
+     * Reads the worklist file again if it changed.
+     *
+     * @return Roots by image, in the order images first appear; null if the
+     *         folder has no worklist file.
+     */
+    private Map<Path, List<String>> readList() throws IOException {
+        Path listFile = folder.resolve(LIST_FILE_NAME);
+        FileTime modified;
+        try {
+            modified = Files.getLastModifiedTime(listFile);
+        } catch (NoSuchFileException e) {
+            listed = null;
+            return null;
+        }
+        if (listed != null && modified.equals(listModified))
+            return listed;
+
+        Map<Path, List<String>> roots = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(listFile, charset)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] fields = line.split(line.indexOf('\t') >= 0 ? "\t" : ";");
+            Path image = folder.resolve(fields[0].trim()).normalize();
+            List<String> imageRoots = roots.computeIfAbsent(image, k -> new ArrayList<>());
+            if (fields.length >= 4) {
+                try {
+                    String key = rootKey(Integer.parseInt(fields[1].trim()), fields[2], fields[3]);
+                    if (!imageRoots.contains(key))
+                        imageRoots.add(key);
+                } catch (NumberFormatException e) {
+                    IJ.log("Worklist: invalid quadrant in '" + line + "'");
+                }
+            }
+        }
+        listModified = modified;
+        listed = roots;
+        return roots;
+    }
+
+    private void walk(Path directory, List<Path> images) throws IOException {
+        Listing listing = listing(directory);
+        if (listing == null)
+            return;
+        images.addAll(listing.images);
+        for (Path subdirectory : listing.directories) {
+            walk(subdirectory, images);
+        }
+    }
+
+    /**
+     * Returns a directory's contents, listing it again only if it changed.
+     *
+     * @return null if the directory does not exist.
+     */
+    private Listing listing(Path directory) throws IOException {
+        Listing listing = listings.get(directory);
+        if (listing != null && !checked.add(directory))
+            return listing;
+        checked.add(directory);
+
+        FileTime modified;
+        try {
+            modified = Files.getLastModifiedTime(directory);
+        } catch (NoSuchFileException e) {
+            listings.remove(directory);
+            return null;
+        }
+        if (listing != null && listing.settled && listing.modified.equals(modified))
+            return listing;
+
+        listing = new Listing(modified);
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (name.startsWith("."))
+                    continue;
+                listing.names.add(name);
+                if (Files.isDirectory(entry)) {
+                    listing.directories.add(entry);
+                } else if (ScoredImageRenderer.isImage(name.toLowerCase()) && !name.startsWith("Measured-")) {
+                    listing.images.add(entry);
+                }
+            }
+        }
+        Collections.sort(listing.images);
+        Collections.sort(listing.directories);
+        listings.put(directory, listing);
+        return listing;
+    }
+
+    /** Returns what a result file records, reading the rows appended since the last scan. */
+    private Store store(Path file, char csvSeparator) throws IOException {
+        Store store = stores.get(file);
+        if (store == null) {
+            store = new Store();
+            stores.put(file, store);
+        }
+        if (!checked.add(file))
+            return store;
+
+        // Most images have no local result file: the listing tells without a lookup
+        Listing parent = listing(file.getParent());
+        if (parent == null || !parent.names.contains(file.getFileName().toString())) {
+            store.clear();
+            return store;
+        }
+        long size;
+        try {
+            size = Files.size(file);
+        } catch (NoSuchFileException e) {
+            store.clear();
+            return store;
+        }
+        if (size < store.offset)
+            store.clear();
+        if (size > store.offset)
+            read(file, store, size, csvSeparator);
+        return store;
+    }
+
+    /** Reads the complete rows between the store's offset and {@code size}. */
+    private void read(Path file, Store store, long size, char csvSeparator) throws IOException {
+        MeasurementRow row = new MeasurementRow();
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        byte[] line = new byte[1024];
+        int lineLength = 0;
+        long lineStart = store.offset;
+        long position = store.offset;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (position < size) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), size - position));
+                int read = channel.read(buffer, position);
+                if (read <= 0)
+                    break;
+                for (int i = 0; i < read; i++) {
+                    byte b = buffer.get(i);
+                    if (b != '\n') {
+                        if (lineLength == line.length)
+                            line = Arrays.copyOf(line, line.length * 2);
+                        line[lineLength++] = b;
+                        continue;
+                    }
+                    String text = new String(line, 0, lineLength, charset);
+                    if (row.parse(text, MeasurementRow.detectSeparator(text, csvSeparator))) {
+                        store.roots.computeIfAbsent(ContentHash.ofString(row.getPath()), k -> new HashSet<>())
+                                .add(rootKey(row.getQuadrant(), row.getTooth(), row.getRoot()));
+                    }
+                    lineLength = 0;
+                    lineStart = position + i + 1;
+                }
+                position += read;
+            }
+        }
+        // A row still being written is read next time
+        store.offset = lineStart;
+    }
+}